@@ -0,0 +1,150 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of piece indexes packed 64 to a word in an AtomicLongArray. Bits are set
+ * with a CAS, so any thread can read or update it without a lock, and the
+ * number of set bits is kept up to date on every change so "how many pieces"
+ * and "is it complete" are O(1) instead of a scan over the whole file.
+ *
+ * The wire format (BITFIELD payload: piece 0 is the high bit of the first
+ * byte) is only produced on demand by toByteArray(), as a snapshot.
+ */
+public class Bitfield {
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Bitfield(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(int index) {
+        checkIndex(index);
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * This method is used to mark one piece as present.
+     *
+     * @return true if the bit was not set before (only one caller wins a race)
+     */
+    public boolean set(int index) {
+        checkIndex(index); // A spare bit of the last word would count as a phantom piece
+        int w = index >>> 6;
+        long bit = 1L << index;
+        while (true) {
+            long word = words.get(w);
+            if ((word & bit) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(w, word, word | bit)) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    // Marks every piece as present, e.g. for a seeder
+    public void setAll() {
+        for (int w = 0; w < words.length(); w++) {
+            words.set(w, lastWordMask(w));
+        }
+        count.set(size);
+    }
+
+    // Number of pieces present, maintained incrementally
+    public int cardinality() {
+        return count.get();
+    }
+
+    public boolean isComplete() {
+        return count.get() == size;
+    }
+
+    // Next present piece at or after 'from', or -1
+    public int nextSetBit(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words.get(w) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++w == words.length()) {
+                return -1;
+            }
+            word = words.get(w);
+        }
+    }
+
+    // True if this set has a piece that 'other' lacks, compared a word at a time
+    public boolean hasAnyNotIn(Bitfield other) {
+        for (int w = 0; w < words.length(); w++) {
+            if ((words.get(w) & ~other.words.get(w)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Number of pieces in this set that 'other' lacks, counted a word at a time
+    public int countNotIn(Bitfield other) {
+        int total = 0;
+        for (int w = 0; w < words.length(); w++) {
+            total += Long.bitCount(words.get(w) & ~other.words.get(w));
+        }
+        return total;
+    }
+
+    // Replaces the contents with a received BITFIELD payload; spare bits past 'size' are ignored
+    public void load(byte[] wire) {
+        int total = 0;
+        for (int w = 0; w < words.length(); w++) {
+            long word = 0;
+            for (int b = 0; b < 8; b++) {
+                int byteIndex = (w << 3) + b;
+                if (byteIndex < wire.length) {
+                    // Reverse the byte so piece 8k (the high bit on the wire) becomes the low bit here
+                    long reversed = (Integer.reverse(wire[byteIndex] & 0xFF) >>> 24) & 0xFFL;
+                    word |= reversed << (b << 3);
+                }
+            }
+            word &= lastWordMask(w);
+            words.set(w, word);
+            total += Long.bitCount(word);
+        }
+        count.set(total);
+    }
+
+    // Snapshot in wire format; later changes do not affect the returned array
+    public byte[] toByteArray() {
+        byte[] wire = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < wire.length; i++) {
+            long word = words.get(i >>> 3);
+            int bits = (int) (word >>> ((i & 7) << 3)) & 0xFF;
+            wire[i] = (byte) (Integer.reverse(bits) >>> 24);
+        }
+        return wire;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Piece " + index + " outside 0.." + (size - 1));
+        }
+    }
+
+    // All ones for full words, only the valid low bits for the last one
+    private long lastWordMask(int w) {
+        int bitsInWord = Math.min(64, size - (w << 6));
+        return bitsInWord == 64 ? -1L : (1L << bitsInWord) - 1;
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits pieces into fixed-size blocks addressed by (index, offset, length) and
+ * remembers which blocks of each partially downloaded piece have been written,
+ * so blocks of one piece can come from different neighbors and be reassembled
+ * in storage. In whole-piece mode the block size equals the piece size and
+ * every piece is a single block.
+ *
+ * A piece whose blocks are all written stays here, counted as received, until
+ * its hash check is done. If the check fails, the piece is dropped and the
+ * neighbors that sent its blocks are returned, so they can be penalized.
+ */
+public class BlockTracker {
+    private final int pieceSize;
+    private final int blockSize;
+    private final long fileSize;
+    private final int totalPieces;
+
+    // Blocks already written (and who sent them) for pieces that are not verified yet
+    private final Map<Integer, PartialPiece> partialPieces = new HashMap<>();
+
+    public BlockTracker(long fileSize, int pieceSize, int blockSize, int totalPieces) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.blockSize = blockSize > 0 ? Math.min(blockSize, pieceSize) : pieceSize;
+        this.totalPieces = totalPieces;
+    }
+
+    // Packs a (piece index, offset) pair into one key for sets and maps
+    public static long key(int pieceIndex, int offset) {
+        return ((long) pieceIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    public static int pieceIndex(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int offset(long key) {
+        return (int) key;
+    }
+
+    public int getBlockSize() { return blockSize; }
+
+    // The last piece is usually shorter than the others
+    public int pieceLength(int pieceIndex) {
+        if (pieceIndex == totalPieces - 1) {
+            return (int) (fileSize - (long) pieceIndex * pieceSize);
+        }
+        return pieceSize;
+    }
+
+    public int blockCount(int pieceIndex) {
+        return (pieceLength(pieceIndex) + blockSize - 1) / blockSize;
+    }
+
+    public int blockLength(int pieceIndex, int offset) {
+        return Math.min(blockSize, pieceLength(pieceIndex) - offset);
+    }
+
+    // Checks that a requested or received range lines up with a block of this piece
+    public boolean isValidBlock(int pieceIndex, int offset, int length) {
+        return pieceIndex >= 0 && pieceIndex < totalPieces
+                && offset >= 0 && offset % blockSize == 0 && offset < pieceLength(pieceIndex)
+                && length == blockLength(pieceIndex, offset);
+    }
+
+    public synchronized boolean isReceived(int pieceIndex, int offset) {
+        PartialPiece piece = partialPieces.get(pieceIndex);
+        return piece != null && piece.blocks.get(offset / blockSize);
+    }
+
+    /**
+     * This method is used to record a block that has been written to storage.
+     *
+     * @param senderID Neighbor the block came from
+     * @return true if this block completed its piece (which now waits for verification)
+     */
+    public synchronized boolean markReceived(int pieceIndex, int offset, int senderID) {
+        PartialPiece piece = partialPieces.computeIfAbsent(pieceIndex, i -> new PartialPiece(blockCount(i)));
+        if (piece.blocks.get(offset / blockSize)) {
+            return false; // Endgame duplicate that raced the first copy
+        }
+        piece.blocks.set(offset / blockSize);
+        piece.senders.add(senderID);
+        return piece.blocks.cardinality() == blockCount(pieceIndex);
+    }
+
+    // A piece an earlier run left on disk: all its blocks count as received until it is hashed
+    public synchronized void markPieceOnDisk(int pieceIndex) {
+        PartialPiece piece = partialPieces.computeIfAbsent(pieceIndex, i -> new PartialPiece(blockCount(i)));
+        piece.blocks.set(0, blockCount(pieceIndex));
+    }
+
+    // The piece passed its hash check and is now in the bitfield
+    public synchronized void verified(int pieceIndex) {
+        partialPieces.remove(pieceIndex);
+    }
+
+    // The piece failed its hash check: all its blocks have to be fetched again
+    public synchronized Set<Integer> rejected(int pieceIndex) {
+        PartialPiece piece = partialPieces.remove(pieceIndex);
+        return piece != null ? piece.senders : Set.of();
+    }
+
+    private static final class PartialPiece {
+        final BitSet blocks;
+        final Set<Integer> senders = new HashSet<>(2);
+
+        PartialPiece(int blockCount) {
+            this.blocks = new BitSet(blockCount);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of reusable ByteBuffers in power-of-two size classes, shared by all
+ * connections of a peer. Read buffers and outgoing frame buffers are taken
+ * from here and handed back instead of being allocated per message. With
+ * direct buffers, channel I/O skips the extra copy through a temporary
+ * native buffer.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 6;  // Smallest class: 64 bytes
+    private static final int MAX_SHIFT = 26; // Largest pooled class: 64 MiB; bigger buffers are not kept
+    private static final int PER_CLASS = 32; // Buffers kept per size class
+
+    private final boolean direct;
+    private final ByteBuffer[][] free = new ByteBuffer[MAX_SHIFT + 1][PER_CLASS];
+    private final int[] counts = new int[MAX_SHIFT + 1];
+
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+    }
+
+    public boolean isDirect() { return direct; }
+
+    // Returns a cleared buffer with at least the requested capacity
+    public ByteBuffer acquire(int minCapacity) {
+        int shift = sizeClass(minCapacity);
+        if (shift <= MAX_SHIFT) {
+            synchronized (free[shift]) {
+                if (counts[shift] > 0) {
+                    ByteBuffer buffer = free[shift][--counts[shift]];
+                    free[shift][counts[shift]] = null;
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+        int capacity = shift <= MAX_SHIFT ? 1 << shift : minCapacity;
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // Hands a buffer back; it must not be used by the caller afterwards
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(buffer.capacity());
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        synchronized (free[shift]) {
+            if (counts[shift] < PER_CLASS) {
+                free[shift][counts[shift]++] = buffer;
+            }
+        }
+    }
+
+    private static int sizeClass(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1);
+        return Math.max(MIN_SHIFT, shift);
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps this peer connected to every neighbor it is responsible for dialing (the
+ * ones listed before it in PeerInfo.cfg; later ones dial us). All of them are
+ * dialed at once at startup. A connect or handshake that fails, and a connection
+ * that drops later, is retried after an exponential backoff with jitter:
+ *
+ *   delay = d/2 + random(0, d/2), d = min(maxDelay, baseDelay * 2^(failures in a row))
+ *
+ * so a neighbor that is down costs one attempt per maxDelay at most, and peers
+ * that lost the same neighbor at the same moment do not all come back at once.
+ * A successful handshake resets the backoff.
+ *
+ * With a tracker, the swarm is open and each peer keeps a bounded random set of
+ * neighbors instead. Peers learned from the tracker, PEX or PeerInfo.cfg become
+ * candidates, and topUp() dials random ones until MaxNeighbors are connected.
+ * A candidate that failed waits out the same backoff before it can be picked
+ * again, and is forgotten after MAX_CANDIDATE_FAILURES failures in a row. A
+ * dropped candidate is not redialed on purpose; it just goes back into the pool.
+ *
+ * The Dialer only starts an attempt; it reports the outcome through connected()
+ * or failed(), from whatever thread finishes it.
+ */
+public class ConnectionManager {
+    // Starts one connection attempt; the outcome is reported back asynchronously
+    public interface Dialer {
+        void dial(PeerConfiguration target);
+    }
+
+    private static final int MAX_DOUBLINGS = 20; // Keeps baseDelay * 2^n far from overflowing
+    private static final int MAX_CANDIDATE_FAILURES = 3;
+
+    private final String peerID;
+    private final Dialer dialer;
+    private final ScheduledExecutorService scheduler;
+    private final Logger logger;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Map<Integer, Target> targets = new HashMap<>(); // Guarded by this
+    private boolean stopped = false;
+
+    // Dial state of one neighbor
+    private static final class Target {
+        final PeerConfiguration info;
+        final boolean redial;        // Fixed neighbor (PeerInfo.cfg full mesh), as opposed to a candidate
+        int failures = 0;            // Failed attempts since the last successful handshake
+        boolean pending = false;     // An attempt is in flight or scheduled
+        boolean connected = false;
+        boolean abandoned = false;   // Never dialed again (e.g. it sent too many corrupt pieces)
+        long notBefore;              // Candidates: earliest System.nanoTime() of the next attempt
+
+        Target(PeerConfiguration info, boolean redial) {
+            this.info = info;
+            this.redial = redial;
+            this.notBefore = System.nanoTime();
+        }
+    }
+
+    public ConnectionManager(String peerID, Dialer dialer, ScheduledExecutorService scheduler, Logger logger,
+                             long baseDelayMillis, long maxDelayMillis) {
+        this.peerID = peerID;
+        this.dialer = dialer;
+        this.scheduler = scheduler;
+        this.logger = logger;
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    // Dials every target right away; the attempts run concurrently
+    public void dialAll(Collection<PeerConfiguration> peers) {
+        for (PeerConfiguration info : peers) {
+            Target target;
+            synchronized (this) {
+                if (stopped || targets.containsKey(info.ID)) {
+                    continue;
+                }
+                target = new Target(info, true);
+                target.pending = true;
+                targets.put(info.ID, target);
+            }
+            attempt(target);
+        }
+    }
+
+    /**
+     * This method is used for every peer learned from the tracker, PEX or PeerInfo.cfg
+     * in bounded mode. A known candidate that is idle takes the new address.
+     *
+     * @return true if the peer was not known before
+     */
+    public synchronized boolean learn(PeerConfiguration info) {
+        if (stopped || String.valueOf(info.ID).equals(peerID)) {
+            return false;
+        }
+        Target known = targets.get(info.ID);
+        if (known == null || (!known.redial && !known.pending && !known.connected && !known.abandoned
+                && (known.info.portNumber != info.portNumber || !known.info.hostName.equals(info.hostName)))) {
+            targets.put(info.ID, new Target(info, false));
+            return known == null;
+        }
+        return false;
+    }
+
+    // Listening address of a known peer, or null
+    public synchronized PeerConfiguration addressOf(int remoteID) {
+        Target target = targets.get(remoteID);
+        return target != null ? target.info : null;
+    }
+
+    // Dials random idle candidates until the neighbors plus the attempts in flight reach 'wanted'
+    public void topUp(Set<Integer> neighbors, int wanted) {
+        List<Target> chosen = new ArrayList<>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            int inFlight = 0;
+            List<Target> idle = new ArrayList<>();
+            long now = System.nanoTime();
+            for (Target target : targets.values()) {
+                if (target.redial || target.abandoned || neighbors.contains(target.info.ID)) {
+                    continue;
+                }
+                if (target.pending) {
+                    inFlight++;
+                } else if (target.notBefore - now <= 0) {
+                    idle.add(target);
+                }
+            }
+            int missing = wanted - neighbors.size() - inFlight;
+            if (missing <= 0 || idle.isEmpty()) {
+                return;
+            }
+            Collections.shuffle(idle);
+            for (Target target : idle.subList(0, Math.min(missing, idle.size()))) {
+                target.pending = true;
+                chosen.add(target);
+            }
+        }
+        for (Target target : chosen) {
+            attempt(target);
+        }
+    }
+
+    // A dialed neighbor completed the handshake
+    public synchronized void connected(int remoteID) {
+        Target target = targets.get(remoteID);
+        if (target != null) {
+            target.failures = 0;
+            target.pending = false;
+            target.connected = true;
+        }
+    }
+
+    // An attempt to a dialed neighbor failed before or during the handshake
+    public void failed(int remoteID, String reason) {
+        long delay;
+        synchronized (this) {
+            Target target = targets.get(remoteID);
+            if (target == null || !target.pending) {
+                return;
+            }
+            if (!target.redial) {
+                target.pending = false;
+                if (++target.failures >= MAX_CANDIDATE_FAILURES) {
+                    targets.remove(remoteID);
+                    logger.log(Logger.Level.WARN, "Peer [" + peerID + "] could not connect to [" + remoteID + "]: " + reason
+                            + "; forgetting it after " + target.failures + " failures.");
+                } else {
+                    target.notBefore = System.nanoTime() + backoff(target.failures - 1) * 1_000_000L;
+                    logger.log(Logger.Level.WARN, "Peer [" + peerID + "] could not connect to [" + remoteID + "]: " + reason + ".");
+                }
+                return;
+            }
+            delay = retryLater(target);
+        }
+        if (delay >= 0) {
+            logger.log(Logger.Level.WARN, "Peer [" + peerID + "] could not connect to [" + remoteID + "]: " + reason
+                    + "; retrying in " + delay + " ms.");
+        }
+    }
+
+    // An established connection closed; dialed neighbors are restored after a backoff
+    public void disconnected(int remoteID) {
+        long delay;
+        synchronized (this) {
+            Target target = targets.get(remoteID);
+            if (target == null || !target.connected) {
+                return; // Not ours to dial: it reconnects to us
+            }
+            target.connected = false;
+            if (!target.redial) {
+                return; // Back in the pool; topUp() picks a replacement at random
+            }
+            target.pending = true;
+            delay = retryLater(target);
+        }
+        if (delay >= 0) {
+            logger.createLog("Peer [" + peerID + "] will reconnect to [" + remoteID + "] in " + delay + " ms.");
+        }
+    }
+
+    // Stops dialing this neighbor for good
+    public synchronized void abandon(int remoteID) {
+        Target target = targets.get(remoteID);
+        if (target != null) {
+            target.abandoned = true;
+        }
+    }
+
+    // Stops all future attempts; ones already in flight still report back, and are ignored
+    public synchronized void stop() {
+        stopped = true;
+    }
+
+    // Schedules the next attempt; returns its delay, or -1 if the target is not dialed again
+    private long retryLater(Target target) {
+        if (stopped || target.abandoned) {
+            target.pending = false;
+            return -1;
+        }
+        long delay = backoff(target.failures);
+        target.failures++;
+        scheduler.schedule(() -> attempt(target), delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    // Jittered delay in ms after this many failures in a row
+    private long backoff(int failures) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failures, MAX_DOUBLINGS));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private void attempt(Target target) {
+        synchronized (this) {
+            if (stopped || target.abandoned) {
+                target.pending = false;
+                return;
+            }
+        }
+        try {
+            dialer.dial(target.info);
+        } catch (RuntimeException e) {
+            failed(target.info.ID, String.valueOf(e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for endgame mode. For every block that was requested a second time,
+ * it remembers when the original request went out, so when a duplicate copy
+ * wins we know how long that block had already been stuck behind the original
+ * neighbor. That age is a lower bound on the tail latency endgame saved.
+ */
+public class EndgameStats {
+    // Block key -> time the first request was sent, for blocks with endgame duplicates
+    private final Map<Long, Long> originalRequestNanos = new ConcurrentHashMap<>();
+    // Block key -> neighbors that were sent a duplicate request
+    private final Map<Long, Set<Integer>> duplicateRequesters = new ConcurrentHashMap<>();
+
+    private volatile long startNanos = 0;
+    private volatile int remainingPiecesAtStart = 0;
+    private final AtomicLong duplicateRequests = new AtomicLong();
+    private final AtomicLong cancelsSent = new AtomicLong();
+    private final AtomicLong duplicateWins = new AtomicLong();
+    private final AtomicLong wastedBytes = new AtomicLong();
+    private final AtomicLong savedNanosTotal = new AtomicLong();
+    private final AtomicLong savedNanosMax = new AtomicLong();
+
+    // Returns true only for the call that actually switched endgame on
+    public synchronized boolean start(int remainingPieces) {
+        if (startNanos != 0) {
+            return false;
+        }
+        startNanos = System.nanoTime();
+        remainingPiecesAtStart = remainingPieces;
+        return true;
+    }
+
+    public boolean isStarted() {
+        return startNanos != 0;
+    }
+
+    // A neighbor was asked for a block that is already requested elsewhere
+    public void onDuplicateRequest(long blockKey, long originalNanos, int remotePeerID) {
+        duplicateRequests.incrementAndGet();
+        originalRequestNanos.putIfAbsent(blockKey, originalNanos);
+        duplicateRequesters.computeIfAbsent(blockKey, k -> ConcurrentHashMap.newKeySet()).add(remotePeerID);
+    }
+
+    /**
+     * This method is used when the first copy of a block arrives.
+     *
+     * @return true if the block had endgame duplicates, so the other copies should be cancelled
+     */
+    public boolean onFirstCopy(long blockKey, int fromPeerID) {
+        Long originalNanos = originalRequestNanos.remove(blockKey);
+        Set<Integer> duplicates = duplicateRequesters.remove(blockKey);
+        if (originalNanos == null || duplicates == null) {
+            return false;
+        }
+        if (duplicates.contains(fromPeerID)) {
+            // A duplicate beat the original request; the original had been waiting this long
+            long saved = System.nanoTime() - originalNanos;
+            duplicateWins.incrementAndGet();
+            savedNanosTotal.addAndGet(saved);
+            savedNanosMax.accumulateAndGet(saved, Math::max);
+        }
+        return true;
+    }
+
+    public void onCancelSent() {
+        cancelsSent.incrementAndGet();
+    }
+
+    // A copy arrived after the block was already written
+    public void onWastedBytes(int bytes) {
+        wastedBytes.addAndGet(bytes);
+    }
+
+    // One line for the log once the download completes
+    public String summary() {
+        if (!isStarted()) {
+            return "Endgame was not used.";
+        }
+        long wins = duplicateWins.get();
+        return "Endgame started with " + remainingPiecesAtStart + " pieces remaining and lasted "
+                + (System.nanoTime() - startNanos) / 1_000_000 + " ms: "
+                + duplicateRequests.get() + " duplicate requests, "
+                + cancelsSent.get() + " cancels, "
+                + wins + " blocks won by a duplicate (original request age avg "
+                + (wins == 0 ? 0 : savedNanosTotal.get() / wins / 1_000_000) + " ms, max "
+                + savedNanosMax.get() / 1_000_000 + " ms), "
+                + wastedBytes.get() + " bytes of late duplicates.";
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the swarm's single piece space onto one or more files. The files are laid
+ * end to end in list order, so a piece may span the tail of one file and the
+ * head of the next. Many small files then share pieces instead of each taking
+ * at least one, and a whole directory is shared as one swarm over one set of
+ * connections.
+ *
+ * The list comes from the file named by FileList in Common.cfg; every peer
+ * reads the same list, just as they read the same FileSize. One line per file:
+ *
+ *   <size in bytes> <path relative to peer_<id>/<FileName>/>
+ *
+ * Blank lines and lines starting with # are skipped. A directory can be listed
+ * with: find <dir> -type f -printf "%s %P\n" | sort -k2
+ */
+public class FileLayout {
+    // One file of the layout and where it starts in the piece space
+    public static final class Entry {
+        public final String path;
+        public final long size;
+        public final long start;
+
+        Entry(String path, long size, long start) {
+            this.path = path;
+            this.size = size;
+            this.start = start;
+        }
+    }
+
+    private final Entry[] entries;
+    private final long totalSize;
+
+    private FileLayout(List<Entry> entries, long totalSize) {
+        this.entries = entries.toArray(new Entry[0]);
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * This method is used to read a FileList. Paths must stay inside the shared
+     * directory, so absolute paths and ".." are rejected.
+     */
+    public static FileLayout load(File listFile) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long offset = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(listFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+", 2);
+                if (tokens.length < 2) {
+                    throw new IllegalArgumentException(listFile + ":" + lineNumber + ": expected \"<size> <path>\"");
+                }
+                long size = Long.parseLong(tokens[0]);
+                Path path = Paths.get(tokens[1]).normalize();
+                if (size < 0 || path.isAbsolute() || path.startsWith("..") || path.toString().isEmpty()) {
+                    throw new IllegalArgumentException(listFile + ":" + lineNumber + ": invalid entry " + line);
+                }
+                entries.add(new Entry(path.toString(), size, offset));
+                offset += size;
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException(listFile + " lists no files");
+        }
+        return new FileLayout(entries, offset);
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int fileCount() {
+        return entries.length;
+    }
+
+    public Entry get(int fileIndex) {
+        return entries[fileIndex];
+    }
+
+    // Index of the file holding this position of the piece space (0 <= position < total size)
+    public int fileAt(long position) {
+        // Last entry starting at or before the position; empty files share their start with
+        // the next entry, so this always lands on the file that actually holds the byte
+        int low = 0;
+        int high = entries.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (entries[mid].start <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking counterpart of the NIO framing: reads length-prefixed frames from a
+ * socket into one reusable pooled buffer and exposes each through the same
+ * MessageView instance, so steady-state reading allocates nothing. A length
+ * prefix above the frame limit fails the read before anything is allocated.
+ */
+public class FrameReader {
+    private final SocketChannel channel; // Used when the socket has one, so direct buffers work
+    private final InputStream in;
+    private final BufferPool pool;
+    private final int maxFrameLength;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private final MessageView view = new MessageView();
+    private ByteBuffer body;
+
+    public FrameReader(Socket socket, BufferPool pool, int maxFrameLength) throws IOException {
+        this.channel = socket.getChannel();
+        this.in = socket.getInputStream();
+        this.pool = pool;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    // Blocks until the next frame is complete; the returned view is reused for the next call
+    public MessageView next() throws IOException {
+        header.clear();
+        readFully(header);
+        int length = header.getInt(0);
+        if (length <= 0 || length > maxFrameLength) {
+            throw new IOException("Invalid frame length " + length + " (limit " + maxFrameLength + ")");
+        }
+        if (body == null || body.capacity() < length) {
+            pool.release(body);
+            body = channel != null ? pool.acquire(length) : ByteBuffer.allocate(length);
+        }
+        body.clear().limit(length);
+        readFully(body);
+        view.wrap(body, 0, length);
+        return view;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read;
+            if (channel != null) {
+                read = channel.read(buffer);
+            } else {
+                read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read > 0) {
+                    buffer.position(buffer.position() + read);
+                }
+            }
+            if (read == -1) {
+                throw new IOException("End of stream");
+            }
+        }
+    }
+
+    // Returns the read buffer to the pool once the connection is gone
+    public void close() {
+        pool.release(body);
+        body = null;
+    }
+}
@@ -1,42 +1,233 @@
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Asynchronous log writer. Threads that log only claim a slot in a lock-free
+ * ring buffer and store the message (or a Supplier that builds it) with the
+ * current time; a dedicated writer thread drains the ring in batches, formats
+ * the records and flushes the file once per batch. Messages below the current
+ * level are dropped before anything is built.
+ */
 public class Logger {
-    private PrintWriter ptwrites;
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR;
 
-    /**
-     * This method is used for writing a timestamped message to both
-     * the log file and the console. It ensures thread safety by using
-     * the 'synchronized' keyword so that logs from multiple threads
-     * don't get mixed up.
-     *
-     * @param msg The message to be logged
-     */
-    public synchronized void createLog(String msg) {
-        String timeStm = new Date().toString();  // Get the current timestamp
+        // Parses the LogLevel value from Common.cfg, e.g. "debug"
+        public static Level fromConfig(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
 
-        // Write the log message to the file
-        ptwrites.println("[" + timeStm + "]: " + msg);
+    private static final int CAPACITY = 8192;              // Ring size, a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 5_000_000; // How long the writer sleeps when the ring is empty
 
-        // Also print the message to the console for immediate visibility
-        System.out.println("[" + timeStm + "]: " + msg);
-    }
+    // Ring buffer: slot i is free for the producer at position p when sequences[i] == p,
+    // and holds a record for the writer when sequences[i] == p + 1
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final Object[] messages = new Object[CAPACITY]; // String or Supplier<String>
+    private final long[] times = new long[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();       // Next position to claim
+    private long head = 0;                                  // Next position to write (writer thread only)
+
+    private final AtomicLong droppedDebug = new AtomicLong();
+    private volatile Level level = Level.INFO;
+    private volatile boolean consoleEcho = true;
+    private volatile boolean closed = false;
+
+    private Writer ptwrites;
+    private final Thread writer;
+    private final Thread shutdownHook = new Thread(this::close);
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+
+    // Timestamp text is only rebuilt when the second changes (writer thread only)
+    private long cachedSecond = -1;
+    private String cachedStamp;
 
     /**
      * This constructor is used for setting up the logger.
-     * It opens a file (or appends to it if it already exists) to write log messages.
+     * It opens a file (or appends to it if it already exists) and starts the writer thread.
      *
      * @param fle The path to the log file where messages will be stored
      */
     public Logger(String fle) {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
         try {
-            // Open the file in append mode, and auto-flush the stream after every println
-            ptwrites = new PrintWriter(new FileWriter(fle, true), true);
+            // Open the file in append mode; the writer thread flushes once per batch
+            ptwrites = new BufferedWriter(new FileWriter(fle, true), 64 * 1024);
         } catch (IOException exp) {
             // If something goes wrong while opening the file, show an error on the console
             System.err.println("Error initializing logger: " + exp.getMessage());
         }
+        writer = new Thread(this::drainLoop, "logger-" + fle);
+        writer.setDaemon(true);
+        writer.start();
+        // Records still in the ring are written even when the peer exits with System.exit
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public void setLevel(Level level) { this.level = level; }
+    public Level getLevel() { return level; }
+    public void setConsoleEcho(boolean consoleEcho) { this.consoleEcho = consoleEcho; }
+
+    public boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * This method is used for logging an event at INFO level. The message is
+     * timestamped and written to the log file (and the console, if enabled)
+     * by the writer thread.
+     *
+     * @param msg The message to be logged
+     */
+    public void createLog(String msg) {
+        log(Level.INFO, msg);
+    }
+
+    public void log(Level messageLevel, String msg) {
+        if (isEnabled(messageLevel)) {
+            publish(messageLevel, msg);
+        }
+    }
+
+    // The supplier only runs on the writer thread, so a message that is filtered
+    // out or dropped never pays for its string concatenation
+    public void log(Level messageLevel, Supplier<String> msg) {
+        if (isEnabled(messageLevel)) {
+            publish(messageLevel, msg);
+        }
+    }
+
+    // Claims a slot and stores the record. When the ring is full, DEBUG records are
+    // dropped (and counted); anything more important waits for the writer.
+    private void publish(Level messageLevel, Object msg) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & MASK);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    messages[index] = msg;
+                    times[index] = System.currentTimeMillis();
+                    sequences.set(index, position + 1); // Publishes the slot to the writer
+                    return;
+                }
+            } else if (sequence < position) {
+                // Full: the writer has not freed this slot yet
+                if (messageLevel == Level.DEBUG || closed) {
+                    droppedDebug.incrementAndGet();
+                    return;
+                }
+                Thread.yield();
+            }
+            // sequence > position: another producer claimed it first, retry with the new tail
+        }
+    }
+
+    private void drainLoop() {
+        while (!closed) {
+            if (drainBatch() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Formats every record available right now and writes them with one flush; returns how many
+    private synchronized int drainBatch() {
+        int count = 0;
+        while (true) {
+            int index = (int) (head & MASK);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Object msg = messages[index];
+            long time = times[index];
+            messages[index] = null;
+            sequences.set(index, head + CAPACITY); // Frees the slot for the next lap
+            head++;
+            count++;
+            batch.append(timestamp(time)).append(render(msg)).append(System.lineSeparator());
+        }
+        long dropped = droppedDebug.getAndSet(0);
+        if (dropped > 0) {
+            batch.append(timestamp(System.currentTimeMillis())).append("Logger dropped ").append(dropped)
+                 .append(" DEBUG records because the buffer was full.").append(System.lineSeparator());
+        }
+        if (batch.length() > 0) {
+            write();
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String render(Object msg) {
+        if (msg instanceof Supplier) {
+            try {
+                return ((Supplier<String>) msg).get();
+            } catch (RuntimeException e) {
+                return "Error formatting log message: " + e;
+            }
+        }
+        return String.valueOf(msg);
+    }
+
+    // Same text as the original per-line Date().toString(), rebuilt at most once per second
+    private String timestamp(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedStamp = "[" + new Date(millis) + "]: ";
+        }
+        return cachedStamp;
+    }
+
+    private void write() {
+        try {
+            if (ptwrites != null) {
+                ptwrites.append(batch);
+                ptwrites.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log: " + e.getMessage());
+        }
+        if (consoleEcho) {
+            System.out.print(batch);
+        }
+        batch.setLength(0);
+    }
+
+    // Writes out everything still queued, stops the writer thread and closes the file.
+    // Records logged after this are dropped.
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        drainBatch();
+        synchronized (this) {
+            try {
+                if (ptwrites != null) {
+                    ptwrites.close();
+                    ptwrites = null;
+                }
+            } catch (IOException e) {
+                System.err.println("Error flushing log: " + e.getMessage());
+            }
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook); // A swarm removed from a long-lived engine
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down
+            }
+        }
     }
 }
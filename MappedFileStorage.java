@@ -0,0 +1,256 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Single data file accessed through memory-mapped windows, for seeders that
+ * serve the same file to many neighbors. PIECE bodies are sliced straight out
+ * of the mapping and received blocks are written into it, so repeated uploads
+ * come from the page cache without open/read syscalls per request.
+ *
+ * One MappedByteBuffer cannot exceed 2 GB, so the file is mapped in fixed-size
+ * windows. At most maxWindows stay mapped; the least recently used one is
+ * evicted and, if unmapOnEvict is set, unmapped as soon as nobody is using it.
+ */
+public class MappedFileStorage implements PieceStorage {
+    private final File dataFile;
+    private final long fileSize;
+    private final int pieceSize;
+    private final long windowSize;
+    private final int maxWindows;
+    private final boolean unmapOnEvict;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long existingLength; // Length the data file had before open(), left by an earlier run
+    private boolean writable;
+
+    // Mapped windows in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<Long, Window> windows = new LinkedHashMap<>(16, 0.75f, true);
+
+    public MappedFileStorage(File dataFile, long fileSize, int pieceSize, long windowSize, int maxWindows, boolean unmapOnEvict) {
+        this.dataFile = dataFile;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.windowSize = Math.max(4096, Math.min(windowSize, Integer.MAX_VALUE));
+        this.maxWindows = Math.max(1, maxWindows);
+        this.unmapOnEvict = unmapOnEvict;
+    }
+
+    // One mapped region of the file, reference counted so it is never unmapped while in use
+    private static final class Window {
+        final long start;
+        final MappedByteBuffer buffer;
+        int users = 0;
+        boolean evicted = false;
+        volatile boolean dirty = false;
+
+        Window(long start, MappedByteBuffer buffer) {
+            this.start = start;
+            this.buffer = buffer;
+        }
+    }
+
+    @Override
+    public void open(boolean hasCompleteFile) throws IOException {
+        writable = !hasCompleteFile;
+        if (writable) {
+            file = new RandomAccessFile(dataFile, "rw");
+            existingLength = dataFile.length();
+            file.setLength(fileSize); // Mapped writes need the full file to exist
+        } else {
+            file = new RandomAccessFile(dataFile, "r");
+        }
+        channel = file.getChannel();
+    }
+
+    // Absolute position of a block inside the data file
+    private long position(int pieceIndex, int offset) {
+        return (long) pieceIndex * pieceSize + offset;
+    }
+
+    private synchronized Window acquire(long position) throws IOException {
+        long start = position - (position % windowSize);
+        Window window = windows.get(start);
+        if (window == null) {
+            long size = Math.min(windowSize, fileSize - start);
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            window = new Window(start, channel.map(mode, start, size));
+            windows.put(start, window);
+            evictIfNeeded();
+        }
+        window.users++;
+        return window;
+    }
+
+    private synchronized void release(Window window) {
+        window.users--;
+        if (window.evicted && window.users == 0) {
+            unmap(window);
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Window> eldest = windows.values().iterator();
+        while (windows.size() > maxWindows && eldest.hasNext()) {
+            Window window = eldest.next();
+            eldest.remove();
+            window.evicted = true;
+            if (window.users == 0) {
+                unmap(window);
+            }
+        }
+    }
+
+    private void unmap(Window window) {
+        if (window.dirty) {
+            window.buffer.force();
+        }
+        if (unmapOnEvict) {
+            Unmapper.unmap(window.buffer);
+        }
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException {
+        long position = position(pieceIndex, offset);
+        int end = data.limit();
+        while (data.hasRemaining()) {
+            Window window = acquire(position);
+            try {
+                ByteBuffer view = window.buffer.duplicate();
+                view.position((int) (position - window.start));
+                int count = Math.min(view.remaining(), data.remaining());
+                data.limit(data.position() + count); // Only what fits in this window
+                view.put(data);
+                window.dirty = true;
+                position += count;
+            } finally {
+                data.limit(end);
+                release(window);
+            }
+        }
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        long position = position(pieceIndex, offset);
+        int done = 0;
+        while (done < length) {
+            Window window = acquire(position + done);
+            try {
+                ByteBuffer view = window.buffer.duplicate();
+                view.position((int) (position + done - window.start));
+                int count = Math.min(view.remaining(), length - done);
+                view.get(data, done, count);
+                done += count;
+            } finally {
+                release(window);
+            }
+        }
+        return data;
+    }
+
+    // Writes a slice of the mapping to the socket; a block crossing a window edge takes two calls
+    @Override
+    public long transferBlock(int pieceIndex, int offset, int length, long sent, WritableByteChannel target) throws IOException {
+        long position = position(pieceIndex, offset) + sent;
+        Window window = acquire(position);
+        try {
+            ByteBuffer view = window.buffer.duplicate();
+            int start = (int) (position - window.start);
+            view.position(start);
+            view.limit((int) Math.min(view.capacity(), start + (length - sent)));
+            return target.write(view);
+        } finally {
+            release(window);
+        }
+    }
+
+    @Override
+    public boolean mayContain(int pieceIndex) {
+        return Math.min(position(pieceIndex + 1, 0), fileSize) <= existingLength;
+    }
+
+    @Override
+    public boolean provesPresence() {
+        return false; // After the first run the whole file is preallocated
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        for (Window window : windows.values()) {
+            if (window.dirty) {
+                window.buffer.force();
+                window.dirty = false;
+            }
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Map.Entry<Long, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            window.evicted = true;
+            if (window.users == 0) {
+                unmap(window);
+            }
+        }
+        windows.clear();
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing " + dataFile + ": " + e.getMessage());
+        }
+    }
+
+    // Releases a mapping right away instead of waiting for GC, via sun.misc.Unsafe.invokeCleaner
+    private static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Explicit unmapping unavailable, evicted windows are freed by GC: " + e.getMessage());
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Error unmapping window: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of one received frame body (type byte followed by the payload)
+ * inside a connection's reusable read buffer. Handlers read fields in place
+ * instead of getting a freshly copied payload array. A view is only valid until
+ * the next frame is read on the same connection.
+ */
+public final class MessageView {
+    private ByteBuffer frame;
+    private int start;
+    private int length;
+    private P2PMessages type;
+
+    // Points the view at a frame body of 'length' bytes starting at 'start'
+    void wrap(ByteBuffer frame, int start, int length) {
+        this.frame = frame;
+        this.start = start;
+        this.length = length;
+        this.type = P2PMessages.fromByte(frame.get(start));
+    }
+
+    public P2PMessages getType() {
+        return type;
+    }
+
+    public int payloadLength() {
+        return length - 1;
+    }
+
+    // Reads a big-endian int at the given offset inside the payload
+    public int getInt(int payloadOffset) {
+        return frame.getInt(start + 1 + payloadOffset);
+    }
+
+    // Copies the first 'count' payload bytes into dst, e.g. a BITFIELD
+    public void copyPayload(byte[] dst, int count) {
+        frame.get(start + 1, dst, 0, count);
+    }
+
+    /**
+     * This method is used to hand the payload, from payloadOffset on, to code that
+     * consumes a ByteBuffer (such as PieceStorage.writeBlock) without copying it.
+     * It moves the position and limit of the shared read buffer.
+     */
+    public ByteBuffer payload(int payloadOffset) {
+        frame.limit(start + length);
+        frame.position(start + 1 + payloadOffset);
+        return frame;
+    }
+}
@@ -0,0 +1,188 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named metrics for one peer or one neighbor connection: counters (LongAdder),
+ * histograms and gauges read on demand. Callers keep the returned counter or
+ * histogram in a field, so the hot path never looks anything up by name.
+ *
+ * Each registry can be published as one JMX MBean whose attributes are its
+ * metrics (a histogram shows up as name.count, name.mean, name.p50, name.p99
+ * and name.max), and rendered as one line for the periodic snapshot in the log.
+ */
+public class MetricsRegistry {
+    private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p99", "max"};
+    // Registry currently published under each name; a reconnected neighbor takes over the old connection's name
+    private static final Map<ObjectName, MetricsRegistry> OWNERS = new HashMap<>();
+
+    private final String objectName;
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>(); // Sorted for stable output
+    private ObjectName registeredName;
+
+    // objectName is the JMX name, e.g. "p2p:type=Peer,id=1001"
+    public MetricsRegistry(String objectName) {
+        this.objectName = objectName;
+    }
+
+    public LongAdder counter(String name) {
+        return (LongAdder) metrics.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        return (Histogram) metrics.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    // A value computed when it is read, e.g. a queue length
+    public void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    // Publishes this registry on the platform MBean server; failures only disable JMX
+    public void register() {
+        synchronized (OWNERS) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(objectName);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(new View(), name);
+                OWNERS.put(name, this);
+                registeredName = name;
+            } catch (JMException | RuntimeException e) {
+                System.err.println("Error registering metrics MBean " + objectName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Leaves the MBean alone if a newer registry with the same name has replaced this one
+    public void unregister() {
+        synchronized (OWNERS) {
+            if (registeredName == null) {
+                return;
+            }
+            if (OWNERS.remove(registeredName, this)) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+                } catch (JMException e) {
+                    System.err.println("Error unregistering metrics MBean " + objectName + ": " + e.getMessage());
+                }
+            }
+            registeredName = null;
+        }
+    }
+
+    // One line with every metric, e.g. "bytesDown=123 requestLatencyMicros{count=.. p99=..}"
+    public String snapshot() {
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            Object metric = entry.getValue();
+            if (metric instanceof Histogram) {
+                line.append(entry.getKey()).append('{').append(((Histogram) metric).summary()).append('}');
+            } else {
+                line.append(entry.getKey()).append('=').append(valueOf(metric));
+            }
+        }
+        return line.toString();
+    }
+
+    private static long valueOf(Object metric) {
+        if (metric instanceof LongAdder) {
+            return ((LongAdder) metric).sum();
+        }
+        return ((LongSupplier) metric).getAsLong();
+    }
+
+    // Reads a histogram field such as "p99"
+    private static long histogramField(Histogram histogram, String field) {
+        switch (field) {
+            case "count": return histogram.getCount();
+            case "mean":  return histogram.getMean();
+            case "p50":   return histogram.percentile(50);
+            case "p99":   return histogram.percentile(99);
+            case "max":   return histogram.getMax();
+            default:      return -1;
+        }
+    }
+
+    // Read-only JMX view; the attribute list is rebuilt on every call so metrics added later show up
+    private final class View implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object metric = metrics.get(attribute);
+            if (metric != null && !(metric instanceof Histogram)) {
+                return valueOf(metric);
+            }
+            int dot = attribute.lastIndexOf('.');
+            if (dot > 0 && metrics.get(attribute.substring(0, dot)) instanceof Histogram) {
+                long value = histogramField((Histogram) metrics.get(attribute.substring(0, dot)), attribute.substring(dot + 1));
+                if (value >= 0) {
+                    return value;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Skipped, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+                if (entry.getValue() instanceof Histogram) {
+                    for (String field : HISTOGRAM_FIELDS) {
+                        attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + field, "long", field, true, false, false));
+                    }
+                } else {
+                    attributes.add(new MBeanAttributeInfo(entry.getKey(), "long", entry.getKey(), true, false, false));
+                }
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "P2P metrics " + objectName,
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Stores the piece space of a FileLayout in its files under one directory.
+ * A block that crosses a file boundary is split into one positional write (or
+ * read) per file. Uploads stream with transferTo up to the end of the current
+ * file; the caller's loop continues in the next one.
+ *
+ * A swarm of many small files would run out of descriptors if every file
+ * stayed open, so at most maxOpenFiles channels are kept, in LRU order. Like
+ * the windows of MappedFileStorage they are reference counted, so an evicted
+ * channel is only closed once nobody is using it.
+ */
+public class MultiFileStorage implements PieceStorage {
+    private final File root;
+    private final FileLayout layout;
+    private final int pieceSize;
+    private final int maxOpenFiles;
+    private boolean writable;
+    private long[] existingLength; // Length each file had before open(), left by an earlier run
+
+    // Open files in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<Integer, OpenFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    public MultiFileStorage(File root, FileLayout layout, int pieceSize, int maxOpenFiles) {
+        this.root = root;
+        this.layout = layout;
+        this.pieceSize = pieceSize;
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    }
+
+    // One open file, reference counted so it is never closed while in use
+    private static final class OpenFile {
+        final RandomAccessFile file;
+        final FileChannel channel;
+        int users = 0;
+        boolean evicted = false;
+        volatile boolean dirty = false;
+
+        OpenFile(RandomAccessFile file) {
+            this.file = file;
+            this.channel = file.getChannel();
+        }
+    }
+
+    @Override
+    public void open(boolean hasCompleteFile) throws IOException {
+        writable = !hasCompleteFile;
+        existingLength = new long[layout.fileCount()];
+        for (int i = 0; i < layout.fileCount(); i++) {
+            FileLayout.Entry entry = layout.get(i);
+            File file = new File(root, entry.path);
+            existingLength[i] = file.length();
+            if (!writable) {
+                if (existingLength[i] != entry.size) {
+                    throw new IOException(file + " has " + existingLength[i] + " bytes, FileList says " + entry.size);
+                }
+                continue;
+            }
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            try (RandomAccessFile created = new RandomAccessFile(file, "rw")) {
+                created.setLength(entry.size); // Reserve every file up front, like SingleFileStorage
+            }
+        }
+    }
+
+    // Absolute position of a block inside the piece space
+    private long position(int pieceIndex, int offset) {
+        return (long) pieceIndex * pieceSize + offset;
+    }
+
+    private synchronized OpenFile acquire(int fileIndex) throws IOException {
+        OpenFile open = openFiles.get(fileIndex);
+        if (open == null) {
+            File file = new File(root, layout.get(fileIndex).path);
+            open = new OpenFile(new RandomAccessFile(file, writable ? "rw" : "r"));
+            openFiles.put(fileIndex, open);
+            evictIfNeeded();
+        }
+        open.users++;
+        return open;
+    }
+
+    private synchronized void release(OpenFile open) {
+        open.users--;
+        if (open.evicted && open.users == 0) {
+            closeFile(open);
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<OpenFile> eldest = openFiles.values().iterator();
+        while (openFiles.size() > maxOpenFiles && eldest.hasNext()) {
+            OpenFile open = eldest.next();
+            eldest.remove();
+            open.evicted = true;
+            if (open.users == 0) {
+                closeFile(open);
+            }
+        }
+    }
+
+    private void closeFile(OpenFile open) {
+        try {
+            if (open.dirty) {
+                open.channel.force(false); // Evicted files are not reached by flush() any more
+            }
+            open.file.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file in " + root + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException {
+        long position = position(pieceIndex, offset);
+        while (data.hasRemaining()) {
+            int fileIndex = layout.fileAt(position);
+            FileLayout.Entry entry = layout.get(fileIndex);
+            int chunk = (int) Math.min(data.remaining(), entry.start + entry.size - position);
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + chunk);
+            OpenFile open = acquire(fileIndex);
+            try {
+                long filePosition = position - entry.start;
+                while (part.hasRemaining()) {
+                    filePosition += open.channel.write(part, filePosition);
+                }
+                open.dirty = true;
+            } finally {
+                release(open);
+            }
+            data.position(data.position() + chunk);
+            position += chunk;
+        }
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = position(pieceIndex, offset);
+        while (buffer.hasRemaining()) {
+            int fileIndex = layout.fileAt(position);
+            FileLayout.Entry entry = layout.get(fileIndex);
+            int chunk = (int) Math.min(buffer.remaining(), entry.start + entry.size - position);
+            buffer.limit(buffer.position() + chunk);
+            OpenFile open = acquire(fileIndex);
+            try {
+                long filePosition = position - entry.start;
+                while (buffer.hasRemaining()) {
+                    int read = open.channel.read(buffer, filePosition);
+                    if (read == -1) {
+                        throw new IOException("Unexpected end of " + entry.path);
+                    }
+                    filePosition += read;
+                }
+            } finally {
+                release(open);
+            }
+            buffer.limit(length);
+            position += chunk;
+        }
+        return data;
+    }
+
+    @Override
+    public long transferBlock(int pieceIndex, int offset, int length, long sent, WritableByteChannel target) throws IOException {
+        long position = position(pieceIndex, offset) + sent;
+        int fileIndex = layout.fileAt(position);
+        FileLayout.Entry entry = layout.get(fileIndex);
+        long chunk = Math.min(length - sent, entry.start + entry.size - position);
+        OpenFile open = acquire(fileIndex);
+        try {
+            return open.channel.transferTo(position - entry.start, chunk, target);
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public boolean mayContain(int pieceIndex) {
+        long start = position(pieceIndex, 0);
+        long end = Math.min(position(pieceIndex + 1, 0), layout.getTotalSize());
+        for (int i = layout.fileAt(start); i < layout.fileCount() && layout.get(i).start < end; i++) {
+            FileLayout.Entry entry = layout.get(i);
+            if (existingLength[i] < Math.min(entry.size, end - entry.start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean provesPresence() {
+        return true; // Files already present, e.g. copied in by hand, are used where they pass
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        for (OpenFile open : openFiles.values()) {
+            if (open.dirty) {
+                open.channel.force(false);
+                open.dirty = false;
+            }
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        flush(); // Every file is already in place
+    }
+
+    @Override
+    public synchronized void close() {
+        for (OpenFile open : openFiles.values()) {
+            open.evicted = true;
+            if (open.users == 0) {
+                closeFile(open);
+            }
+        }
+        openFiles.clear();
+    }
+}
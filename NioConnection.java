@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Per-connection state for the NIO engine: the 32-byte handshake, length-prefixed
+ * framing of incoming messages and the outgoing data. All channel work runs on
+ * the owning selector thread; other threads only append to the output buffers.
+ *
+ * Incoming frames are read into one reusable pooled buffer and dispatched as a
+ * MessageView. Outgoing frames go through an OutboundQueue, which writes control
+ * frames and coalesced HAVEs before queued PIECE bodies. A length prefix above
+ * Peer.getMaxFrameLength() closes the connection before anything is allocated.
+ *
+ * Received blocks are written to storage on the selector thread, straight from
+ * the read buffer. That keeps a block's write ordered before it is marked as
+ * received and before its piece is hashed. A positional write normally only
+ * reaches the page cache, but a disk that stalls does hold up the other
+ * connections of the same selector thread.
+ *
+ * A dialed connection belongs to its Peer from the start and sends our handshake
+ * right away. An accepted one waits for the remote handshake, whose swarm ID
+ * tells the engine which Peer it is for, and answers it then.
+ */
+public class NioConnection implements PeerTransport {
+    private static final int HANDSHAKE_LENGTH = 32;
+
+    private final SocketChannel channel;
+    private final NioEngine.SelectorLoop loop;
+    private final NioEngine engine;
+    private Peer peer;                        // Null until an accepted connection's handshake is routed
+    private final BufferPool pool;
+    private final boolean outbound;
+    private final int dialedID;               // Neighbor we dialed, -1 for accepted connections
+    private String failure;                   // Why the connection was closed before the handshake
+    private volatile SelectionKey key;
+
+    // Outgoing data, created once the peer is known; drained only on the selector thread
+    private OutboundQueue out;
+    private RateEstimator uploadRate;
+    private boolean flushTimerPending = false; // A paced PIECE is waiting for the upload limit (loop thread only)
+
+    // Read state: handshake first, then a 4-byte length header followed by the body
+    private boolean handshakeDone = false;
+    private final ByteBuffer handshakeBuffer = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(4);
+    private ByteBuffer readBuffer;           // Reused for every frame body
+    private boolean readingBody = false;
+    private final MessageView view = new MessageView();
+
+    private PeerConnectionHandler handler;
+    private volatile boolean closed = false;
+
+    // peer is the dialing Peer, or null for an accepted connection (then dialedID is -1)
+    public NioConnection(SocketChannel channel, NioEngine.SelectorLoop loop, NioEngine engine, Peer peer, int dialedID) {
+        this.channel = channel;
+        this.loop = loop;
+        this.engine = engine;
+        this.pool = engine.getBufferPool();
+        this.outbound = dialedID >= 0;
+        this.dialedID = dialedID;
+        this.readBuffer = pool.acquire(1024);
+        if (peer != null) {
+            bind(peer);
+        }
+    }
+
+    private void bind(Peer owner) {
+        peer = owner;
+        uploadRate = owner.newRateEstimator();
+        out = new OutboundQueue(pool, owner.newUploadLimit(), uploadRate);
+    }
+
+    // Called on the selector thread once the channel is connected. A dialed connection queues
+    // our handshake; either way the remote one must arrive within HandshakeTimeout
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        if (outbound) {
+            sendHandshake();
+        }
+        loop.schedule(this::expireHandshake, engine.getHandshakeTimeout() * 1_000_000L);
+    }
+
+    private void sendHandshake() {
+        out.add(peer.buildHandshake());
+        flush();
+        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent handshake to the remote peer.");
+    }
+
+    // Completes a pending outbound connect
+    void finishConnect(Selector selector) {
+        try {
+            if (channel.finishConnect()) {
+                register(selector);
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    // Timer set when the connect started; register() sets the key once it has completed
+    void expireConnect() {
+        if (!closed && key == null) {
+            fail("connect timed out after " + peer.getConnectTimeout() + " ms");
+        }
+    }
+
+    private void expireHandshake() {
+        if (!closed && !handshakeDone) {
+            fail("no handshake within " + engine.getHandshakeTimeout() + " ms");
+        }
+    }
+
+    // Closes the connection; before the handshake, a dialed neighbor is retried with this reason
+    void fail(String reason) {
+        failure = reason;
+        close();
+    }
+
+    // Reads as much as is available and dispatches every complete frame
+    void onReadable() {
+        try {
+            if (!handshakeDone) {
+                if (!readFully(handshakeBuffer)) {
+                    return;
+                }
+                completeHandshake();
+            }
+            while (!closed) {
+                if (!readingBody) {
+                    if (!readFully(headerBuffer)) {
+                        return;
+                    }
+                    int length = headerBuffer.getInt(0);
+                    headerBuffer.clear();
+                    if (length <= 0 || length > peer.getMaxFrameLength()) {
+                        throw new IOException("Invalid frame length " + length + " (limit " + peer.getMaxFrameLength() + ")");
+                    }
+                    if (readBuffer.capacity() < length) {
+                        pool.release(readBuffer);
+                        readBuffer = pool.acquire(length);
+                    }
+                    readBuffer.clear().limit(length);
+                    readingBody = true;
+                }
+                if (!readFully(readBuffer)) {
+                    return;
+                }
+                readingBody = false;
+                view.wrap(readBuffer, 0, readBuffer.limit());
+                handler.handleMessage(view);
+                long pause = handler.takeReadPause();
+                if (pause > 0) {
+                    // Download limit: stop reading for a while, TCP flow control slows the sender down
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    loop.schedule(this::resumeReading, pause);
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void resumeReading() {
+        if (closed) {
+            return;
+        }
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (RuntimeException e) {
+            close(); // Key was cancelled
+            return;
+        }
+        onReadable(); // Frames may already be waiting in the read buffer's socket
+    }
+
+    // Tries to fill the buffer; returns false if the channel has no more data for now
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read == -1) {
+                throw new IOException("End of stream");
+            }
+            if (read == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void completeHandshake() throws IOException {
+        if (peer == null) {
+            long swarmID = Peer.swarmOf(handshakeBuffer.array());
+            Peer owner = engine.route(swarmID);
+            if (owner == null) {
+                throw new IOException("No swarm " + Long.toHexString(swarmID) + " here");
+            }
+            bind(owner);
+            sendHandshake();
+        }
+        int remoteID = peer.parseHandshake(handshakeBuffer.array());
+        handshakeDone = true;
+        handler = peer.attachNeighbor(remoteID, channel.socket(), this, outbound);
+        handler.onConnected();
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    @Override
+    public void send(P2PMessages type) {
+        if (out.add(type)) {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void send(P2PMessages type, int index) {
+        if (out.add(type, index)) {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void send(P2PMessages type, int index, int offset, int length) {
+        if (out.add(type, index, offset, length)) {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void send(P2PMessages type, byte[] payload) {
+        if (out.add(type, payload)) {
+            scheduleFlush();
+        }
+    }
+
+    // Queues the PIECE header and a file region; the body is sent with transferTo when the socket is writable
+    @Override
+    public void sendPiece(ByteBuffer header, PieceStorage storage, int pieceIndex, int offset, int length) {
+        if (out.addPiece(header, storage, pieceIndex, offset, length)) {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public long cancelPiece(int pieceIndex, int offset) {
+        return out.cancelPiece(pieceIndex, offset);
+    }
+
+    @Override
+    public int queuedPieces() {
+        return out.queuedPieces();
+    }
+
+    @Override
+    public boolean hasPendingControl() {
+        return out != null && out.hasPendingControl();
+    }
+
+    @Override
+    public RateEstimator getUploadRate() {
+        return uploadRate;
+    }
+
+    // Writes right away on the selector thread; other threads only switch on OP_WRITE,
+    // so no task object is allocated per frame
+    private void scheduleFlush() {
+        if (loop.inLoop()) {
+            flush();
+            return;
+        }
+        SelectionKey k = key;
+        if (k == null) {
+            return; // Not registered yet; register() flushes
+        }
+        try {
+            if ((k.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+                k.selector().wakeup();
+            }
+        } catch (RuntimeException e) {
+            close(); // Key was cancelled
+        }
+    }
+
+    // Writes until the socket buffer is full, then waits for OP_WRITE, or for a timer while the
+    // upload limit holds back the next PIECE. The write itself runs without the queue's monitor,
+    // so senders never wait for the socket. Only the OP_WRITE decision is made under it, after
+    // checking the queue again: a frame appended during the write either keeps OP_WRITE on here
+    // or, appended later, finds it off and switches it on in scheduleFlush.
+    private void flush() {
+        if (closed || key == null || out == null) {
+            return;
+        }
+        try {
+            boolean drained = out.writeTo(channel);
+            long pause = drained ? 0 : out.throttleNanos();
+            synchronized (out) {
+                // Only PIECEs held back by the upload limit may wait with OP_WRITE off; the timer resumes them
+                boolean idle = drained ? !out.hasPending() : pause > 0 && !out.hasPendingControl();
+                if (idle) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            // Upload limit: the next PIECE may start once the pause is over
+            if (pause > 0 && !flushTimerPending) {
+                flushTimerPending = true;
+                loop.schedule(() -> {
+                    flushTimerPending = false;
+                    flush();
+                }, pause);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!loop.inLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (out != null) {
+            out.close();
+            out.release();
+        }
+        pool.release(readBuffer);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel: " + e.getMessage());
+        }
+        if (handler != null) {
+            handler.onDisconnected();
+        } else if (outbound) {
+            peer.getConnectionManager().failed(dialedID, failure != null ? failure : "closed during the handshake");
+        }
+    }
+}
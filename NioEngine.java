@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven networking engine built on ServerSocketChannel/SocketChannel.
+ * A fixed number of selector threads own accepting, connecting, the handshake,
+ * message framing and dispatch into PeerConnectionHandler, so the number of
+ * threads no longer grows with the number of neighbors.
+ *
+ * One engine can serve several swarms (see SwarmEngine) on a single listening
+ * port: an accepted connection is handed to the Peer whose swarm ID is in the
+ * remote handshake. A standalone Peer is simply the only swarm of its engine.
+ */
+public class NioEngine {
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final BufferPool pool;
+    private final int handshakeTimeout;
+    private final Map<Long, Peer> swarms = new ConcurrentHashMap<>();
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @param name             Used in the selector thread names
+     * @param handshakeTimeout ms a new connection may take to send its handshake
+     */
+    public NioEngine(String name, int selectorThreads, BufferPool pool, int handshakeTimeout) throws IOException {
+        this.pool = pool;
+        this.handshakeTimeout = handshakeTimeout;
+        this.loops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop("nio-selector-" + name + "-" + i);
+        }
+    }
+
+    public BufferPool getBufferPool() { return pool; }
+    public int getHandshakeTimeout() { return handshakeTimeout; }
+
+    // Routes accepted connections for this swarm to the peer; false if the swarm is taken
+    public boolean addSwarm(long swarmID, Peer peer) {
+        return swarms.putIfAbsent(swarmID, peer) == null;
+    }
+
+    public void removeSwarm(long swarmID, Peer peer) {
+        swarms.remove(swarmID, peer);
+    }
+
+    // Peer for a handshake's swarm ID; a handshake without one (0) goes to the only swarm, if there is one
+    Peer route(long swarmID) {
+        Peer peer = swarms.get(swarmID);
+        if (peer == null && swarmID == 0 && swarms.size() == 1) {
+            for (Peer only : swarms.values()) {
+                return only;
+            }
+        }
+        return peer;
+    }
+
+    // Starts all selector threads
+    public void start() {
+        for (SelectorLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    // Opens the listening channel; accepts are handled by the first selector loop
+    public void listen(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                System.err.println("Error registering server channel: " + e.getMessage());
+            }
+        });
+    }
+
+    // Port of the listening channel, e.g. when listen() was given port 0
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Starts a non-blocking connect from the given peer; the handshake follows once it completes.
+    // The outcome goes to the peer's ConnectionManager, also when ConnectTimeout runs out.
+    public void connect(Peer peer, PeerConfiguration peerInfo) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        boolean connected;
+        try {
+            channel.configureBlocking(false);
+            connected = channel.connect(new InetSocketAddress(peerInfo.hostName, peerInfo.portNumber));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        SelectorLoop loop = nextLoop();
+        NioConnection connection = new NioConnection(channel, loop, this, peer, peerInfo.ID);
+        loop.execute(() -> {
+            try {
+                if (connected) {
+                    connection.register(loop.selector);
+                } else {
+                    channel.register(loop.selector, SelectionKey.OP_CONNECT, connection);
+                    loop.schedule(connection::expireConnect, peer.getConnectTimeout() * 1_000_000L);
+                }
+            } catch (IOException e) {
+                connection.fail(e.getMessage());
+            }
+        });
+    }
+
+    // Stops the selector threads and closes the listening channel
+    public void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+    }
+
+    // Spreads connections over the selector threads in round-robin order
+    private SelectorLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                SelectorLoop loop = nextLoop();
+                NioConnection connection = new NioConnection(channel, loop, this, null, -1);
+                loop.execute(() -> {
+                    try {
+                        connection.register(loop.selector);
+                    } catch (IOException e) {
+                        System.err.println("Error handling incoming connection: " + e.getMessage());
+                        connection.close();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Error in server thread: " + e.getMessage());
+        }
+    }
+
+    // One selector with its own thread, a queue of tasks that must run on that thread
+    // and timers for tasks that must run there later (rate-limit pauses)
+    final class SelectorLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Only touched on the loop thread
+        private volatile boolean running = true;
+
+        SelectorLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        // Runs the task on the selector thread, inline if we are already on it
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Runs the task on the selector thread once the delay has passed
+        void schedule(Runnable task, long delayNanos) {
+            long deadline = System.nanoTime() + delayNanos;
+            execute(() -> timers.add(new Timer(deadline, task)));
+        }
+
+        // Runs due timers; returns the select timeout in ms until the next one (0 = none pending)
+        private long runTimers() {
+            long now = System.nanoTime();
+            Timer next;
+            while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+                timers.poll().task.run();
+            }
+            return next == null ? 0 : Math.max(1, (next.deadline - now + 999_999) / 1_000_000);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(runTimers());
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    runTimers();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isConnectable()) {
+                            connection.finishConnect(selector);
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error in selector loop: " + e.getMessage());
+                }
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        private final class Timer implements Comparable<Timer> {
+            final long deadline;
+            final Runnable task;
+
+            Timer(long deadline, Runnable task) {
+                this.deadline = deadline;
+                this.task = task;
+            }
+
+            @Override
+            public int compareTo(Timer other) {
+                return Long.compare(deadline - other.deadline, 0);
+            }
+        }
+    }
+}
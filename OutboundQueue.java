@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outgoing data of one connection, shared by both transports. Any thread may
+ * append a frame; only the connection's writer (the selector thread in NIO mode,
+ * a dedicated writer thread in blocking mode) drains it with writeTo().
+ *
+ * Frames are kept in three lanes, written in this order:
+ *   1. control frames (CHOKE, UNCHOKE, INTERESTED, REQUEST, CANCEL, BITFIELD, ...)
+ *   2. HAVE frames, which pile up when a piece completes and are coalesced into
+ *      one buffer, so a burst of HAVEs goes out with the control frames in a
+ *      single gathering write
+ *   3. PIECE frames (header plus a file region streamed with transferTo)
+ * A PIECE that is already partly on the wire is always finished first, so
+ * frames never interleave.
+ *
+ * Appends only take this object's monitor for the time it takes to copy a few
+ * bytes. The writer swaps the pending control/HAVE buffers for its own pair under
+ * the monitor and writes them without it, so a sender never waits for a socket,
+ * even when the writer is blocked on a slow neighbor's TCP window.
+ *
+ * With an upload limit, each PIECE body is charged to the TokenBucket when it
+ * is started, and the next PIECE waits until the bucket has paid off that debt.
+ * Control frames and HAVEs are not paced.
+ */
+public class OutboundQueue {
+    private final BufferPool pool;
+    private final TokenBucket uploadLimit; // Null when uploads are not capped
+    private final RateEstimator uploadRate; // PIECE body bytes written, or null
+
+    // Appended by any thread, guarded by this
+    private ByteBuffer controlOut;                                             // Pending control frames, in write mode
+    private ByteBuffer haveOut;                                                // Pending HAVE frames, in write mode
+    private final ArrayDeque<FileRegionWrite> pieceQueue = new ArrayDeque<>(); // PIECE frames waiting to be sent
+    private boolean closed = false;
+    private boolean writerWaiting = false;
+
+    // Owned by the writer: buffers being written (read mode) and the PIECE frame in progress
+    private final ByteBuffer[] writing = new ByteBuffer[2];
+    private volatile FileRegionWrite currentPiece;
+    private long resumeAt;        // No new PIECE may start before this System.nanoTime(), guarded by this
+    private boolean throttled;    // Whether the last writeTo() stopped because of the upload limit
+
+    public OutboundQueue(BufferPool pool, TokenBucket uploadLimit, RateEstimator uploadRate) {
+        this.pool = pool;
+        this.uploadLimit = uploadLimit != null && uploadLimit.isLimited() ? uploadLimit : null;
+        this.uploadRate = uploadRate;
+        this.controlOut = pool.acquire(256);
+        this.haveOut = pool.acquire(64);
+        this.writing[0] = pool.acquire(256).flip();
+        this.writing[1] = pool.acquire(64).flip();
+        this.resumeAt = System.nanoTime();
+    }
+
+    // Raw bytes ahead of the framed messages (the handshake)
+    public synchronized boolean add(byte[] raw) {
+        if (closed) {
+            return false;
+        }
+        controlOut = reserve(controlOut, raw.length).put(raw);
+        return signal();
+    }
+
+    // Message without payload: CHOKE, UNCHOKE, INTERESTED, NOT_INTERESTED
+    public synchronized boolean add(P2PMessages type) {
+        if (closed) {
+            return false;
+        }
+        controlOut = reserve(controlOut, 5);
+        controlOut.putInt(1).put(type.getValue());
+        return signal();
+    }
+
+    // Message whose payload is one int; HAVEs go to their own lane
+    public synchronized boolean add(P2PMessages type, int index) {
+        if (closed) {
+            return false;
+        }
+        if (type == P2PMessages.HAVE) {
+            haveOut = reserve(haveOut, 9);
+            haveOut.putInt(5).put(type.getValue()).putInt(index);
+        } else {
+            controlOut = reserve(controlOut, 9);
+            controlOut.putInt(5).put(type.getValue()).putInt(index);
+        }
+        return signal();
+    }
+
+    // REQUEST/CANCEL in block mode: (index, offset, length)
+    public synchronized boolean add(P2PMessages type, int index, int offset, int length) {
+        if (closed) {
+            return false;
+        }
+        controlOut = reserve(controlOut, 17);
+        controlOut.putInt(13).put(type.getValue()).putInt(index).putInt(offset).putInt(length);
+        return signal();
+    }
+
+    // Message with an arbitrary payload, e.g. BITFIELD
+    public synchronized boolean add(P2PMessages type, byte[] payload) {
+        if (closed) {
+            return false;
+        }
+        controlOut = reserve(controlOut, 5 + payload.length);
+        controlOut.putInt(1 + payload.length).put(type.getValue()).put(payload);
+        return signal();
+    }
+
+    // One queue entry per PIECE, so no other frame can be written between the header and the body
+    public synchronized boolean addPiece(ByteBuffer header, PieceStorage storage, int pieceIndex, int offset, int length) {
+        if (closed) {
+            return false;
+        }
+        pieceQueue.add(new FileRegionWrite(header, storage, pieceIndex, offset, length));
+        return signal();
+    }
+
+    /**
+     * This method is used when the remote peer sends CANCEL. Queued PIECE frames
+     * for that block are dropped; one that is already partly written is left
+     * alone, since the frame has to be completed.
+     *
+     * @return the number of body bytes that will no longer be sent
+     */
+    public synchronized long cancelPiece(int pieceIndex, int offset) {
+        long dropped = 0;
+        Iterator<FileRegionWrite> it = pieceQueue.iterator();
+        while (it.hasNext()) {
+            FileRegionWrite piece = it.next();
+            if (piece.pieceIndex == pieceIndex && piece.offset == offset) {
+                dropped += piece.length;
+                it.remove();
+            }
+        }
+        return dropped;
+    }
+
+    public synchronized int queuedPieces() {
+        return pieceQueue.size() + (currentPiece != null ? 1 : 0);
+    }
+
+    // True while anything is queued or partly written
+    public synchronized boolean hasPending() {
+        return !closed && (controlOut.position() > 0 || haveOut.position() > 0
+                || writing[0].hasRemaining() || writing[1].hasRemaining()
+                || currentPiece != null || !pieceQueue.isEmpty());
+    }
+
+    // True while control frames or HAVEs are queued or partly written; PIECE bodies do not count
+    public synchronized boolean hasPendingControl() {
+        return !closed && (controlOut.position() > 0 || haveOut.position() > 0
+                || writing[0].hasRemaining() || writing[1].hasRemaining());
+    }
+
+    // Used by a blocking writer: waits until there is data it may write now; false once closed.
+    // While only paced PIECEs are queued it waits for the pause to end, or for a control frame.
+    public synchronized boolean awaitPending() throws InterruptedException {
+        while (!closed) {
+            long pause = 0;
+            if (controlOut.position() > 0 || haveOut.position() > 0
+                    || (!pieceQueue.isEmpty() && (pause = resumeAt - System.nanoTime()) <= 0)) {
+                return true;
+            }
+            writerWaiting = true;
+            if (pause > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, pause);
+            } else {
+                wait();
+            }
+            writerWaiting = false;
+        }
+        return false;
+    }
+
+    // After writeTo() returned false: how long the upload limit holds back the next PIECE (0 = the channel is full)
+    public synchronized long throttleNanos() {
+        return throttled ? Math.max(1, resumeAt - System.nanoTime()) : 0;
+    }
+
+    /**
+     * This method is used by the writer to send as much as the channel accepts.
+     * On a non-blocking channel it stops when the socket buffer is full; on a
+     * blocking one it returns once everything queued so far is written.
+     *
+     * @return true if the queue was drained, false if the channel is full or
+     *         the upload limit holds back the next PIECE (see throttleNanos())
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (true) {
+            FileRegionWrite piece = currentPiece;
+            if (piece != null) {
+                if (!piece.writeTo(channel)) {
+                    return false;
+                }
+                currentPiece = null;
+                if (uploadRate != null) {
+                    uploadRate.record(piece.length); // Counted once it is on the wire, not when queued
+                }
+            }
+            if (writing[0].hasRemaining() || writing[1].hasRemaining()) {
+                if (channel instanceof GatheringByteChannel) {
+                    ((GatheringByteChannel) channel).write(writing);
+                } else {
+                    channel.write(writing[0]);
+                    channel.write(writing[1]);
+                }
+                if (writing[0].hasRemaining() || writing[1].hasRemaining()) {
+                    return false;
+                }
+            }
+            synchronized (this) {
+                if (closed) {
+                    return true;
+                }
+                if (controlOut.position() > 0 || haveOut.position() > 0) {
+                    // Swap the pending pair with the (now empty) pair being written
+                    ByteBuffer control = controlOut;
+                    ByteBuffer haves = haveOut;
+                    controlOut = writing[0].clear();
+                    haveOut = writing[1].clear();
+                    writing[0] = control.flip();
+                    writing[1] = haves.flip();
+                    continue;
+                }
+                throttled = false;
+                if (pieceQueue.isEmpty()) {
+                    return true;
+                }
+                long now = System.nanoTime();
+                if (uploadLimit != null && now - resumeAt < 0) {
+                    throttled = true;
+                    return false;
+                }
+                currentPiece = pieceQueue.poll();
+                if (uploadLimit != null) {
+                    resumeAt = now + uploadLimit.reserve(currentPiece.length);
+                }
+            }
+        }
+    }
+
+    // Drops everything still queued and wakes a waiting writer; appends fail from now on
+    public synchronized void close() {
+        closed = true;
+        pieceQueue.clear();
+        notifyAll();
+    }
+
+    // Returns the buffers to the pool; only the writer may call this, after close()
+    public void release() {
+        synchronized (this) {
+            pool.release(controlOut);
+            pool.release(haveOut);
+        }
+        pool.release(writing[0]);
+        pool.release(writing[1]);
+        currentPiece = null;
+    }
+
+    // Wakes a blocking writer that is waiting for data; NIO writers never wait here
+    private boolean signal() {
+        if (writerWaiting) {
+            notify();
+        }
+        return true;
+    }
+
+    // Makes room for a frame at the end of the buffer, growing it from the pool if needed
+    private ByteBuffer reserve(ByteBuffer buffer, int frameLength) {
+        if (buffer.remaining() >= frameLength) {
+            return buffer;
+        }
+        ByteBuffer larger = pool.acquire(buffer.position() + frameLength);
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        return larger;
+    }
+
+    // A PIECE header plus the block body streamed from storage with sendfile,
+    // resumed where the last partial write stopped
+    static final class FileRegionWrite {
+        private final ByteBuffer header;
+        private final PieceStorage storage;
+        private final int pieceIndex;
+        private final int offset;
+        private final int length;
+        private long sent = 0;
+
+        FileRegionWrite(ByteBuffer header, PieceStorage storage, int pieceIndex, int offset, int length) {
+            this.header = header;
+            this.storage = storage;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // Returns true once the whole frame has been written
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            while (header.hasRemaining()) {
+                if (channel.write(header) == 0) {
+                    return false;
+                }
+            }
+            while (sent < length) {
+                long written = storage.transferBlock(pieceIndex, offset, length, sent, channel);
+                if (written == 0) {
+                    return false;
+                }
+                sent += written;
+            }
+            return true;
+        }
+    }
+}
@@ -8,10 +8,21 @@ public enum P2PMessages {
     HAVE((byte) 4),            // Notifies peers that a new piece has been downloaded.
     BITFIELD((byte) 5),        // Sends a bitfield showing which pieces the sender has.
     REQUEST((byte) 6),         // Requests a specific piece from another peer.
-    PIECE((byte) 7);           // Contains the actual piece data being sent.
+    PIECE((byte) 7),           // Contains the actual piece data being sent.
+    CANCEL((byte) 8),          // Withdraws an earlier REQUEST (same payload), used in endgame mode.
+    MANIFEST((byte) 9),        // SHA-256 digest of every piece, so received pieces can be verified.
+    PEX((byte) 10);            // Listening addresses of some of the sender's neighbors (peer exchange).
 
     private final byte type;  // Byte representation of each message type for wire transmission
 
+    // Lookup table indexed by the wire byte, so decoding neither loops nor clones values()
+    private static final P2PMessages[] BY_VALUE = new P2PMessages[256];
+    static {
+        for (P2PMessages type : values()) {
+            BY_VALUE[type.type & 0xFF] = type;
+        }
+    }
+
     // Constructor to assign the byte value to each message type
     P2PMessages(byte type) {
         this.type = type;
@@ -31,11 +42,10 @@ public enum P2PMessages {
      * @throws IllegalArgumentException If no matching message type is found
      */
     public static P2PMessages fromByte(byte typeByte) {
-        for (P2PMessages type : values()) {
-            if (type.type == typeByte) {
-                return type;
-            }
+        P2PMessages type = BY_VALUE[typeByte & 0xFF];
+        if (type == null) {
+            throw new IllegalArgumentException("Invalid message type: " + typeByte);
         }
-        throw new IllegalArgumentException("Invalid message type: " + typeByte);
+        return type;
     }
 }
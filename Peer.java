@@ -5,7 +5,14 @@ import java.io.*;
 import java.net.*;
 import java.util.concurrent.*;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class Peer {
@@ -13,27 +20,31 @@ public class Peer {
     
     // We have added core identifiers for this peer and its environment
     private String peerID;
+    private long swarmID; // Sent in the handshake, so one listening port can serve several swarms
     private String hostName;
     private int port;
     private boolean peerHasFile;
 
-    // This socket will be used to accept incoming connections from peers
-    private ServerSocket serverSocket;
+    // This channel will be used to accept incoming connections from peers in blocking mode
+    private ServerSocketChannel serverChannel;
 
     // This map tracks whether a peer has completed the file download
     private final Map<Integer, Boolean> peerCompletionMap = new ConcurrentHashMap<>();
 
-    // Contains configurations of all known peers
-    private Map<Integer, PeerConfiguration> peersInfo = new HashMap<>();
+    // Contains configurations of all known peers, in PeerInfo.cfg order (each peer dials the ones before it)
+    private Map<Integer, PeerConfiguration> peersInfo = new LinkedHashMap<>();
     // Tracks sockets connected to neighbor peers
     private Map<Integer, Socket> neighborSockets = new ConcurrentHashMap<>();
 
-    // The bitfield represents which pieces this peer currently has
-    private byte[] bitfield;
+    // The bitfield represents which pieces this peer currently has (lock-free, with a cached count)
+    private Bitfield bitfield;
     private String fileName;
-    private int fileSize;
+    private long fileSize;
     private int totalPieces;
+    private int maxFrameLength; // Longest frame a neighbor may send; a longer length prefix closes the connection
     private int pieceSize;
+    // Names the swarm at the tracker and in the handshake; empty: derived from the file settings
+    private String swarmKey = "";
 
     // We store handlers for each active peer connection
     private final Map<Integer, PeerConnectionHandler> clientHandlers = new ConcurrentHashMap<>();
@@ -43,11 +54,132 @@ public class Peer {
     private int optimisticUnchokedNeighbor = -1;
 
     private int unchokingInterval;
+    // How a seeder picks preferred neighbors: "rotate" (SeedChoker) or "random" (the original shuffle)
+    private String seedChoking = "rotate";
+    private int seedRotationRounds = 3;
+    private SeedChoker seedChoker;
     private int optimisticUnchokingInterval;
     private int numberOfPreferredNeighbors;
 
+    // Upper bound for the adaptive number of REQUESTs kept in flight per neighbor
+    private int maxOutstandingRequests = 8;
+
+    // Block-level transfer: 0 keeps whole-piece REQUEST/PIECE messages, otherwise pieces
+    // are requested in blocks of this many bytes addressed by (index, offset, length)
+    private int blockSize = 0;
+    private BlockTracker blockTracker;
+
+    // On-disk layout of the pieces: "single-file" (default), "piece-files" or "mmap"
+    private String storageMode = "single-file";
+    private PieceStorage storage;
+
+    // Optional FileList: many files shared as one piece space, kept under peer_<id>/<FileName>/.
+    // At most MaxOpenFiles of them are open at a time.
+    private FileLayout fileLayout;
+    private int maxOpenFiles = 256;
+
+    // mmap mode: size of each mapped window, how many stay mapped, and whether evicted ones are unmapped eagerly
+    private long mapWindowSize = 64L * 1024 * 1024;
+    private int maxMappedWindows = 16;
+    private boolean unmapOnEvict = true;
+
+    // Swarm-wide piece availability and the policy used to choose what to request next
+    private PiecePicker.Policy pieceSelection = PiecePicker.Policy.RAREST_FIRST;
+    private PiecePicker piecePicker;
+
+    // Blocks currently requested from some neighbor (with the time of that request),
+    // so two neighbors are not asked for the same block outside of endgame
+    private final Map<Long, Long> requestedBlocks = new ConcurrentHashMap<>();
+
+    // Endgame: once this few pieces remain and all their blocks are requested, ask every neighbor that has them
+    private int endgamePieces = 4;
+    private final EndgameStats endgameStats = new EndgameStats();
+
+    // Networking mode: "nio" uses a few selector threads for all connections,
+    // "blocking" keeps the original thread-per-connection sockets
+    private String connectionMode = "nio";
+    private int selectorThreads = 2;
+    private NioEngine nioEngine;
+
+    // Outbound connections: timeouts for the TCP connect and the handshake, and the jittered
+    // exponential backoff (ms) before a failed or dropped neighbor is dialed again
+    private int connectTimeout = 5000;
+    private int handshakeTimeout = 5000;
+    private int reconnectDelay = 500;
+    private int maxReconnectDelay = 30000;
+    private ConnectionManager connectionManager;
+
+    // Tracker mode: membership comes from a Tracker ("host:port") and PEX instead of PeerInfo.cfg,
+    // which then only needs this peer's own line (other lines are used as first candidates).
+    // Each peer keeps a random set of up to MaxNeighbors neighbors instead of a full mesh.
+    private String trackerAddress;
+    private int maxNeighbors = 30;
+    private TrackerClient trackerClient;
+    private volatile int announceInterval = 5;     // Seconds, as last told by the tracker
+    private volatile int swarmCompleteAnnounces = 0; // Announces in a row that found every member complete
+    private static final int PEX_INTERVAL = 30;     // Seconds between PEX messages to every neighbor
+
+    private static final int CLOSE_LINGER_MILLIS = 1000;
+
+    // Execution mode for the threads this peer creates: "platform" or "virtual" (Java 21+)
+    private String executionMode = "platform";
+    private PeerExecutor executor;
+
+    // Reusable read and frame buffers shared by all connections; DirectBuffers=true keeps them off-heap
+    private boolean directBuffers = false;
+    private BufferPool bufferPool;
+
+    // Bandwidth caps in KiB/s (0 = unlimited): peer-wide, and for each neighbor on top of that
+    private int maxUploadRate = 0;
+    private int maxDownloadRate = 0;
+    private int maxUploadRatePerNeighbor = 0;
+    private int maxDownloadRatePerNeighbor = 0;
+    private TokenBucket uploadLimit;
+    private TokenBucket downloadLimit;
+
+    // Piece integrity: SHA-256 per piece, computed by seeders and received by leechers in a
+    // MANIFEST message. Hashing runs on a fork-join pool (HashThreads, 0 = one per core).
+    private volatile PieceManifest manifest;
+    private int hashThreads = 0;
+    private ForkJoinPool hashPool;
+    // A neighbor that alone sent this many corrupt pieces is disconnected
+    private int maxHashFailures = 3;
+    private final Map<Integer, Integer> hashFailures = new ConcurrentHashMap<>();
+    // Neighbors that alone sent a corrupt copy of a piece, asked again only if nobody else has it
+    private final Map<Integer, Set<Integer>> avoidedSenders = new ConcurrentHashMap<>();
+    // Pieces that failed their check, fetched again from a single neighbor so that a second
+    // failure can be pinned on it (piece -> neighbor fetching it, or NO_OWNER)
+    private static final int NO_OWNER = -1;
+    private final Map<Integer, Integer> retryOwners = new ConcurrentHashMap<>();
+
+    // Fast resume: verified pieces are journaled and checkpointed every ResumeCheckpointInterval
+    // seconds (0 = keep no resume state), so a restarted leecher does not download them again
+    private int resumeCheckpointInterval = 30;
+    private ResumeJournal resumeJournal;
+    // Pieces an earlier run left on disk that the checkpoint does not cover; hashed once the manifest is known
+    private final AtomicReference<BitSet> piecesOnDisk = new AtomicReference<>();
+
     // Scheduler handles periodic choke/unchoke tasks
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final ScheduledExecutorService scheduler;
+    // Periodic tasks of this peer, cancelled by close() (an engine's scheduler outlives its swarms)
+    private final List<ScheduledFuture<?>> periodicTasks = new CopyOnWriteArrayList<>();
+
+    // Set when this peer runs as one swarm of a SwarmEngine, which then owns the threads, the
+    // listening port, the buffer and hash pools and the engine-wide rate limits. The settings
+    // and the peer list are then passed in instead of read from the working directory.
+    private final SwarmEngine engine;
+    private Properties commonConfig;
+    private List<PeerConfiguration> peerList;
+
+    // Completed on an executor thread, so callbacks attached to them never run on a selector
+    // or hash thread: once this peer has the whole file, and once every peer of the swarm has it.
+    // The flags are set when a future is handed to the executor, so close() completes rather than
+    // cancels a future whose completion is still queued.
+    private final CompletableFuture<Peer> downloadCompletion = new CompletableFuture<>();
+    private final CompletableFuture<Peer> swarmCompletion = new CompletableFuture<>();
+    private final AtomicBoolean downloadCompleteRaised = new AtomicBoolean(false);
+    private final AtomicBoolean swarmCompleteRaised = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     // We use an atomic boolean to safely track whether this peer has the complete file
     private AtomicBoolean hasCompleteFile = new AtomicBoolean(false);
@@ -63,12 +195,34 @@ public class Peer {
     // Logger instance for recording all peer events
     private Logger logger;
 
+    // Swarm-wide metrics, published over JMX and written to the log every MetricsInterval seconds (0 = never)
+    private MetricsRegistry metrics;
+    private int metricsInterval = 30;
+    private long startNanos;
+    private volatile long completionMillis = 0; // Time from start until the download completed
+    private long lastPiecesCompleted = 0;       // For the pieces/s of the last dump interval
+
     // === Constructor ===
     public Peer(String peerID) {
         this.peerID = peerID;
+        this.engine = null;
         this.workingDirectory = System.getProperty("user.dir");
         this.peerDirectory = workingDirectory + "/peer_" + peerID;
         this.logger = new Logger("log_peer_" + peerID + ".log");
+        this.scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    // One swarm of a SwarmEngine; its files and log go under 'directory' instead of the working directory
+    Peer(String peerID, File directory, Properties commonConfig, List<PeerConfiguration> peers, SwarmEngine engine) {
+        this.peerID = peerID;
+        this.engine = engine;
+        this.commonConfig = commonConfig;
+        this.peerList = peers;
+        this.workingDirectory = directory.getAbsolutePath();
+        this.peerDirectory = workingDirectory + "/peer_" + peerID;
+        directory.mkdirs();
+        this.logger = new Logger(new File(directory, "log_peer_" + peerID + ".log").getPath());
+        this.scheduler = engine.getScheduler();
     }
 
     // === Accessor Methods ===
@@ -76,55 +230,190 @@ public class Peer {
     public String getFileName() { return fileName; }
     public int getPieceSize() { return pieceSize; }
     public int getTotalPieces() { return totalPieces; }
+    public int getMaxFrameLength() { return maxFrameLength; }
     public Logger getLogger() { return logger; }
     public String getPeerID() { return peerID; }
+    public PeerExecutor getExecutor() { return executor; }
+    public BufferPool getBufferPool() { return bufferPool; }
+
+    // Per-neighbor buckets charged together with the peer-wide one
+    public TokenBucket newUploadLimit() { return new TokenBucket(maxUploadRatePerNeighbor * 1024L, uploadLimit); }
+    public TokenBucket newDownloadLimit() { return new TokenBucket(maxDownloadRatePerNeighbor * 1024L, downloadLimit); }
+    // Per-connection byte rates; the time constant is one unchoking interval, so each rechoke mostly sees the last period
+    public RateEstimator newRateEstimator() { return new RateEstimator(Math.max(1, unchokingInterval) * 1000L); }
+    public MetricsRegistry getMetrics() { return metrics; }
+    public int getMaxOutstandingRequests() { return maxOutstandingRequests; }
+    public boolean isBlockMode() { return blockSize > 0; }
+    public BlockTracker getBlockTracker() { return blockTracker; }
+    public PiecePicker getPiecePicker() { return piecePicker; }
+    public EndgameStats getEndgameStats() { return endgameStats; }
+    public PieceStorage getStorage() { return storage; }
     public boolean hasCompleteFile() { return hasCompleteFile.get(); }
     public Collection<PeerConnectionHandler> getClientHandlers() { return clientHandlers.values(); }
-    public void removeClientHandler(int remotePeerID) {
-        clientHandlers.remove(remotePeerID);
+    public int getConnectTimeout() { return connectTimeout; }
+    public int getHandshakeTimeout() { return handshakeTimeout; }
+    public ConnectionManager getConnectionManager() { return connectionManager; }
+    public long getSwarmID() { return swarmID; }
+    public CompletableFuture<Peer> downloadCompletion() { return downloadCompletion; }
+    public CompletableFuture<Peer> swarmCompletion() { return swarmCompletion; }
+    // JMX key properties; embedded peers add the swarm, since one engine may run several swarms as the same ID
+    public String getMetricsKey() { return "id=" + peerID + (engine != null ? ",swarm=" + Long.toHexString(swarmID) : ""); }
+    // Only the handler currently registered for the neighbor is removed; a replacement stays
+    public void removeClientHandler(int remotePeerID, PeerConnectionHandler handler) {
+        if (!clientHandlers.remove(remotePeerID, handler)) {
+            return;
+        }
         neighborSockets.remove(remotePeerID);
+        releaseRetries(remotePeerID);
+        if (!isBanned(remotePeerID)) {
+            connectionManager.disconnected(remotePeerID);
+        }
     }
 
     // === Start Process ===
     public void start() throws IOException {
-        processCommonConfigFile();
-        processPeerInfoConfigFile();
+        startNanos = System.nanoTime();
+        if (engine == null) {
+            processCommonConfigFile();
+            processPeerInfoConfigFile();
+        } else {
+            loadCommonConfig(commonConfig);
+            loadPeerInfo(peerList);
+            port = engine.getPort(); // Every swarm of the engine shares its listening port
+        }
+        swarmID = swarmID(swarmName());
+        metrics = new MetricsRegistry("p2p:type=Peer," + getMetricsKey());
 
         // We create a local directory for storing file pieces specific to this peer
         File dir = new File(peerDirectory);
         if (!dir.exists()) {
-            dir.mkdir();
+            dir.mkdirs();
         }
 
+        if (engine == null) {
+            // All threads created by this peer go through one pluggable executor
+            executor = PeerExecutor.create(executionMode, "peer-" + peerID);
+            bufferPool = new BufferPool(directBuffers);
+        } else {
+            executor = engine.getExecutor();
+            bufferPool = engine.getBufferPool();
+        }
+        // Embedded, this swarm's caps are charged together with the engine-wide ones
+        uploadLimit = new TokenBucket(maxUploadRate * 1024L, engine != null ? engine.getUploadLimit() : null);
+        downloadLimit = new TokenBucket(maxDownloadRate * 1024L, engine != null ? engine.getDownloadLimit() : null);
+
         // Total number of pieces is derived from file size and piece size
-        totalPieces = (int) Math.ceil((double) fileSize / pieceSize);
+        long pieces = (fileSize + pieceSize - 1) / pieceSize;
+        if (pieces > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("FileSize " + fileSize + " needs more than " + Integer.MAX_VALUE + " pieces; use a larger PieceSize");
+        }
+        totalPieces = (int) pieces;
+        int manifestLength = PieceManifest.payloadLength(totalPieces); // Fails if the MANIFEST cannot be sent
+        blockTracker = new BlockTracker(fileSize, pieceSize, blockSize, totalPieces);
+        // Type, index, offset and length, plus the largest payload: a PIECE body, the BITFIELD, the MANIFEST or a PEX
+        long largestPayload = Math.max(Math.max(blockSize > 0 ? blockSize : pieceSize, (totalPieces + 7) / 8),
+                Math.max(manifestLength, PeerExchange.MAX_PAYLOAD));
+        maxFrameLength = (int) Math.min(Integer.MAX_VALUE, 13 + largestPayload);
 
         // Initialize bitfield to all 1s (if file is present) or all 0s (if not)
-        bitfield = new byte[(int) Math.ceil((double) totalPieces / 8)];
+        bitfield = new Bitfield(totalPieces);
         if (peerHasFile) {
-            Arrays.fill(bitfield, (byte) 0xFF);
+            bitfield.setAll();
             hasCompleteFile.set(true);
             File inputFile = new File(peerDirectory + "/" + fileName);
             if (!inputFile.exists()) {
                 throw new FileNotFoundException("File " + fileName + " not found in " + peerDirectory);
             }
-            splitFileIntoPieces(inputFile);
+        }
+
+        // Open piece storage; a seeder serves its existing file (or splits it in piece-files mode)
+        storage = createStorage();
+        storage.open(peerHasFile);
+        if (!peerHasFile && resumeCheckpointInterval > 0) {
+            resumeFromDisk(dir);
+        }
+        piecePicker = new PiecePicker(pieceSelection, totalPieces, bitfield);
+        seedChoker = new SeedChoker(seedRotationRounds);
+
+        // A seeder hashes its pieces on all cores; leechers get the manifest from a neighbor
+        if (engine != null) {
+            hashPool = engine.getHashPool();
         } else {
-            Arrays.fill(bitfield, (byte) 0x00);
+            hashPool = hashThreads > 0 ? new ForkJoinPool(hashThreads) : new ForkJoinPool();
+        }
+        if (peerHasFile) {
+            long hashStart = System.nanoTime();
+            manifest = PieceManifest.compute(storage, blockTracker, totalPieces, hashPool);
+            logger.createLog("Peer [" + peerID + "] hashed " + totalPieces + " pieces in "
+                    + (System.nanoTime() - hashStart) / 1_000_000 + " ms on " + hashPool.getParallelism() + " threads.");
+        }
+        registerMetrics();
+        checkAndSetCompletion(); // A resumed leecher may already have everything
+        if (peerHasFile) {
+            raiseDownloadCompletion();
+        }
+        if (manifest != null) {
+            verifyPiecesOnDisk();
         }
 
-        // Start the server to accept incoming connections
-        startServer();
+        if (engine != null && !connectionMode.equals("nio")) {
+            logger.log(Logger.Level.WARN, "Peer [" + peerID + "] ignores ConnectionMode " + connectionMode + " in a SwarmEngine, which is always nio.");
+        }
+        boolean nio = engine != null || connectionMode.equals("nio");
+        connectionManager = new ConnectionManager(peerID, nio ? this::dialNio : this::dialBlocking,
+                scheduler, logger, reconnectDelay, maxReconnectDelay);
+        if (trackerAddress != null) {
+            trackerClient = new TrackerClient(trackerAddress, swarmName(), Integer.parseInt(peerID), hostName, port, connectTimeout);
+        }
+        if (engine != null) {
+            // The engine already listens; connections that name our swarm are routed here
+            nioEngine = engine.getNioEngine();
+            if (!nioEngine.addSwarm(swarmID, this)) {
+                throw new IllegalStateException("Swarm " + swarmName() + " is already running in this engine");
+            }
+        } else if (nio) {
+            // One event-driven engine owns accepting, connecting and all message I/O
+            nioEngine = new NioEngine(peerID, selectorThreads, bufferPool, handshakeTimeout);
+            nioEngine.addSwarm(swarmID, this);
+            nioEngine.listen(port);
+            nioEngine.start();
+            System.out.println("Peer " + peerID + " is listening on port " + port);
+        } else {
+            // Start the server to accept incoming connections
+            startServer();
+        }
 
-        // Attempt to connect to all prior peers
-        connectToPeers();
+        if (trackerAddress != null) {
+            // Open swarm: every other PeerInfo.cfg line is a candidate, the tracker and PEX add more
+            for (PeerConfiguration peerInfo : peersInfo.values()) {
+                connectionManager.learn(peerInfo);
+            }
+            maintainNeighbors();
+            executor.execute(() -> announceToTracker("started"));
+            schedulePeriodic(this::maintainNeighbors, 1);
+            schedulePeriodic(this::sendPeerExchange, PEX_INTERVAL);
+        } else {
+            // Dial all prior peers at once; failed and dropped ones are retried with backoff
+            connectionManager.dialAll(priorPeers());
+        }
 
         // Schedule unchoke and optimistic unchoke operations
-        scheduler.scheduleAtFixedRate(this::updatePreferredNeighbors, unchokingInterval, unchokingInterval, TimeUnit.SECONDS);
-        scheduler.scheduleAtFixedRate(this::optimisticallyUnchokeNeighbor, optimisticUnchokingInterval, optimisticUnchokingInterval, TimeUnit.SECONDS);
+        schedulePeriodic(this::updatePreferredNeighbors, unchokingInterval);
+        schedulePeriodic(this::optimisticallyUnchokeNeighbor, optimisticUnchokingInterval);
+        if (resumeJournal != null) {
+            schedulePeriodic(this::checkpointResumeState, resumeCheckpointInterval);
+        }
+        if (metricsInterval > 0) {
+            schedulePeriodic(this::logMetrics, metricsInterval);
+        }
 
-        // Launch a thread to monitor download completion across peers
-        new Thread(this::checkCompletion).start();
+        // Completion is checked whenever a peer's state changes; a seeder alone in its swarm is done now
+        checkSwarmCompletion();
+    }
+
+    // Runs the task every periodSeconds until close()
+    private void schedulePeriodic(Runnable task, long periodSeconds) {
+        periodicTasks.add(scheduler.scheduleAtFixedRate(task, periodSeconds, periodSeconds, TimeUnit.SECONDS));
     }
 
     // === Config Parsing ===
@@ -133,149 +422,421 @@ public class Peer {
         Properties prop = new Properties();
         try (InputStream input = new FileInputStream(COMMON_CONFIG)) {
             prop.load(input);
-            numberOfPreferredNeighbors = Integer.parseInt(prop.getProperty("NumberOfPreferredNeighbors"));
-            unchokingInterval = Integer.parseInt(prop.getProperty("UnchokingInterval"));
-            optimisticUnchokingInterval = Integer.parseInt(prop.getProperty("OptimisticUnchokingInterval"));
-            fileName = prop.getProperty("FileName");
-            fileSize = Integer.parseInt(prop.getProperty("FileSize"));
-            pieceSize = Integer.parseInt(prop.getProperty("PieceSize"));
-            logger.createLog("Parsed Common.cfg: PreferredNeighbors=" + numberOfPreferredNeighbors +
-                         ", UnchokingInterval=" + unchokingInterval +
-                         ", OptimisticUnchokingInterval=" + optimisticUnchokingInterval +
-                         ", FileName=" + fileName +
-                         ", FileSize=" + fileSize +
-                         ", PieceSize=" + pieceSize);
         }
+        loadCommonConfig(prop);
+    }
+
+    // Applies the Common.cfg settings, whether read from the file or given to a SwarmEngine
+    private void loadCommonConfig(Properties prop) throws IOException {
+        numberOfPreferredNeighbors = Integer.parseInt(prop.getProperty("NumberOfPreferredNeighbors"));
+        unchokingInterval = Integer.parseInt(prop.getProperty("UnchokingInterval"));
+        optimisticUnchokingInterval = Integer.parseInt(prop.getProperty("OptimisticUnchokingInterval"));
+        fileName = prop.getProperty("FileName");
+        pieceSize = Integer.parseInt(prop.getProperty("PieceSize"));
+        String fileList = prop.getProperty("FileList");
+        if (fileList != null) {
+            // The list gives the total size; a FileSize next to it must agree
+            File listFile = new File(fileList.trim());
+            fileLayout = FileLayout.load(listFile.isAbsolute() ? listFile : new File(workingDirectory, fileList.trim()));
+            fileSize = fileLayout.getTotalSize();
+            String declaredSize = prop.getProperty("FileSize");
+            if (declaredSize != null && Long.parseLong(declaredSize.trim()) != fileSize) {
+                throw new IllegalArgumentException("FileSize " + declaredSize.trim() + " does not match the " + fileSize + " bytes in " + fileList.trim());
+            }
+        } else {
+            fileSize = Long.parseLong(prop.getProperty("FileSize").trim());
+        }
+        seedChoking = prop.getProperty("SeedChoking", seedChoking).trim().toLowerCase();
+        seedRotationRounds = Integer.parseInt(prop.getProperty("SeedRotationRounds", String.valueOf(seedRotationRounds)).trim());
+        swarmKey = prop.getProperty("SwarmKey", swarmKey).trim();
+        String tracker = prop.getProperty("Tracker", "").trim();
+        trackerAddress = tracker.isEmpty() ? null : tracker;
+        maxNeighbors = Integer.parseInt(prop.getProperty("MaxNeighbors", String.valueOf(maxNeighbors)).trim());
+        connectTimeout = Integer.parseInt(prop.getProperty("ConnectTimeout", String.valueOf(connectTimeout)).trim());
+        handshakeTimeout = Integer.parseInt(prop.getProperty("HandshakeTimeout", String.valueOf(handshakeTimeout)).trim());
+        reconnectDelay = Integer.parseInt(prop.getProperty("ReconnectDelay", String.valueOf(reconnectDelay)).trim());
+        maxReconnectDelay = Integer.parseInt(prop.getProperty("MaxReconnectDelay", String.valueOf(maxReconnectDelay)).trim());
+        maxOpenFiles = Integer.parseInt(prop.getProperty("MaxOpenFiles", String.valueOf(maxOpenFiles)).trim());
+        connectionMode = prop.getProperty("ConnectionMode", connectionMode).trim().toLowerCase();
+        selectorThreads = Integer.parseInt(prop.getProperty("SelectorThreads", String.valueOf(selectorThreads)).trim());
+        executionMode = prop.getProperty("ExecutionMode", executionMode).trim().toLowerCase();
+        storageMode = prop.getProperty("StorageMode", storageMode).trim().toLowerCase();
+        mapWindowSize = Long.parseLong(prop.getProperty("MapWindowSize", String.valueOf(mapWindowSize)).trim());
+        maxMappedWindows = Integer.parseInt(prop.getProperty("MaxMappedWindows", String.valueOf(maxMappedWindows)).trim());
+        unmapOnEvict = Boolean.parseBoolean(prop.getProperty("UnmapOnEvict", String.valueOf(unmapOnEvict)).trim());
+        endgamePieces = Integer.parseInt(prop.getProperty("EndgamePieces", String.valueOf(endgamePieces)).trim());
+        pieceSelection = PiecePicker.Policy.fromConfig(prop.getProperty("PieceSelection", pieceSelection.name()));
+        blockSize = Integer.parseInt(prop.getProperty("BlockSize", String.valueOf(blockSize)).trim());
+        directBuffers = Boolean.parseBoolean(prop.getProperty("DirectBuffers", String.valueOf(directBuffers)).trim());
+        hashThreads = Integer.parseInt(prop.getProperty("HashThreads", String.valueOf(hashThreads)).trim());
+        maxHashFailures = Integer.parseInt(prop.getProperty("MaxHashFailures", String.valueOf(maxHashFailures)).trim());
+        resumeCheckpointInterval = Integer.parseInt(prop.getProperty("ResumeCheckpointInterval", String.valueOf(resumeCheckpointInterval)).trim());
+        maxUploadRate = Integer.parseInt(prop.getProperty("MaxUploadRate", String.valueOf(maxUploadRate)).trim());
+        maxDownloadRate = Integer.parseInt(prop.getProperty("MaxDownloadRate", String.valueOf(maxDownloadRate)).trim());
+        maxUploadRatePerNeighbor = Integer.parseInt(prop.getProperty("MaxUploadRatePerNeighbor", String.valueOf(maxUploadRatePerNeighbor)).trim());
+        maxDownloadRatePerNeighbor = Integer.parseInt(prop.getProperty("MaxDownloadRatePerNeighbor", String.valueOf(maxDownloadRatePerNeighbor)).trim());
+        logger.setLevel(Logger.Level.fromConfig(prop.getProperty("LogLevel", logger.getLevel().name())));
+        metricsInterval = Integer.parseInt(prop.getProperty("MetricsInterval", String.valueOf(metricsInterval)).trim());
+        logger.setConsoleEcho(Boolean.parseBoolean(prop.getProperty("LogToConsole", "true").trim()));
+        // Blocks are much smaller than pieces, so more of them need to be in flight by default
+        String defaultDepth = String.valueOf(blockSize > 0 ? 64 : maxOutstandingRequests);
+        maxOutstandingRequests = Integer.parseInt(prop.getProperty("MaxOutstandingRequests", defaultDepth).trim());
+        logger.createLog("Parsed Common.cfg: PreferredNeighbors=" + numberOfPreferredNeighbors +
+                     ", UnchokingInterval=" + unchokingInterval +
+                     ", OptimisticUnchokingInterval=" + optimisticUnchokingInterval +
+                     ", FileName=" + fileName +
+                     ", FileSize=" + fileSize +
+                     (fileLayout != null ? ", Files=" + fileLayout.fileCount() : "") +
+                     ", PieceSize=" + pieceSize +
+                     ", BlockSize=" + blockSize +
+                     ", StorageMode=" + storageMode +
+                     ", PieceSelection=" + pieceSelection +
+                     ", SeedChoking=" + seedChoking + (seedChoking.equals("rotate") ? "/" + seedRotationRounds : "") +
+                     ", ConnectionMode=" + connectionMode +
+                     ", ExecutionMode=" + executionMode +
+                     ", ConnectTimeout=" + connectTimeout + "/" + handshakeTimeout + " ms" +
+                     ", ReconnectDelay=" + reconnectDelay + ".." + maxReconnectDelay + " ms" +
+                     (trackerAddress != null ? ", Tracker=" + trackerAddress + ", MaxNeighbors=" + maxNeighbors : "") +
+                     ", DirectBuffers=" + directBuffers +
+                     ", HashThreads=" + (hashThreads > 0 ? hashThreads : "auto") +
+                     ", MaxHashFailures=" + maxHashFailures +
+                     ", ResumeCheckpointInterval=" + resumeCheckpointInterval +
+                     ", MaxUploadRate=" + maxUploadRate + "/" + maxUploadRatePerNeighbor + " KiB/s" +
+                     ", MaxDownloadRate=" + maxDownloadRate + "/" + maxDownloadRatePerNeighbor + " KiB/s" +
+                     ", LogLevel=" + logger.getLevel() +
+                     ", MetricsInterval=" + metricsInterval);
     }
 
     public synchronized void markPeerComplete(int remotePeerID) {
         // This method is used to mark a peer as having completed its download
         peerCompletionMap.put(remotePeerID, true);
         logger.createLog("Peer [" + peerID + "] marked Peer [" + remotePeerID + "] as complete.");
+        checkSwarmCompletion();
     }
 
     private void processPeerInfoConfigFile() throws IOException {
         // This method reads peer-specific configuration from PeerInfo.cfg
         logger.createLog("Reading peer configuration from PeerInfo.cfg...");
+        List<PeerConfiguration> peers = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(PEER_INFO_CONFIG))) {
             String line;
-            boolean foundSelf = false;
             while ((line = reader.readLine()) != null) {
                 String[] tokens = line.trim().split("\\s+");
                 int id = Integer.parseInt(tokens[0]);
                 String hostname = tokens[1];
                 int port = Integer.parseInt(tokens[2]);
                 boolean peerHasFile = tokens[3].equals("1");
-
-                PeerConfiguration peerInfo = new PeerConfiguration(id, hostname, port, peerHasFile);
-                peersInfo.put(id, peerInfo);
-                logger.createLog("Loaded peer: ID=" + id + ", Hostname=" + hostname + ", Port=" + port + ", HasFile=" + peerHasFile);
-
-                if (tokens[0].equals(peerID)) {
-                    this.hostName = hostname;
-                    this.port = port;
-                    this.peerHasFile = peerHasFile;
-                    foundSelf = true;
-                    logger.createLog("This peer [" + peerID + "] has Hostname=" + hostName + ", Port=" + port + ", HasFile=" + peerHasFile);
-                }
+                peers.add(new PeerConfiguration(id, hostname, port, peerHasFile));
             }
-            if (!foundSelf) {
-                throw new IllegalArgumentException("Peer ID " + peerID + " not found in PeerInfo.cfg");
+        }
+        loadPeerInfo(peers);
+    }
+
+    // Records every known peer and takes this peer's own entry, whether read from PeerInfo.cfg or given to a SwarmEngine
+    private void loadPeerInfo(List<PeerConfiguration> peers) {
+        boolean foundSelf = false;
+        for (PeerConfiguration peerInfo : peers) {
+            peersInfo.put(peerInfo.ID, peerInfo);
+            logger.createLog("Loaded peer: ID=" + peerInfo.ID + ", Hostname=" + peerInfo.hostName + ", Port=" + peerInfo.portNumber + ", HasFile=" + peerInfo.peerHasFile);
+
+            if (peerInfo.ID == Integer.parseInt(peerID)) {
+                this.hostName = peerInfo.hostName;
+                this.port = peerInfo.portNumber;
+                this.peerHasFile = peerInfo.peerHasFile;
+                foundSelf = true;
+                logger.createLog("This peer [" + peerID + "] has Hostname=" + hostName + ", Port=" + port + ", HasFile=" + peerHasFile);
             }
         }
+        if (!foundSelf) {
+            throw new IllegalArgumentException("Peer ID " + peerID + " not found in PeerInfo.cfg");
+        }
     }
 
     private void startServer() {
         // This method starts the server socket and listens for incoming peer connections
-        new Thread(() -> {
+        executor.execute(() -> {
             try {
-                serverSocket = new ServerSocket(port);
+                // Channel-backed sockets (still blocking) let uploads use FileChannel.transferTo
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port));
                 System.out.println("Peer " + peerID + " is listening on port " + port);
                 while (true) {
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = serverChannel.accept().socket();
                     // Hand off each connection to its own handler thread
                     handleNewlyAcceptedConnection(clientSocket);
                 }
             } catch (IOException e) {
-                System.err.println("Error in server thread: " + e.getMessage());
-                e.printStackTrace();
+                if (!closed.get()) {
+                    System.err.println("Error in server thread: " + e.getMessage());
+                    e.printStackTrace();
+                }
             }
-        }).start();
+        });
     }
 
     private void handleNewlyAcceptedConnection(Socket clientSocket) {
         // This method handles a newly accepted connection from another peer
-        new Thread(() -> {
+        executor.execute(() -> {
             try {
                 String remotePeerID = performHandshake(clientSocket);
                 logger.createLog("TCP connection is built between P" + remotePeerID + " and P" + peerID);
 
                 int remoteID = Integer.parseInt(remotePeerID);
-                neighborSockets.put(remoteID, clientSocket);
+                if (!admits(remoteID, false)) {
+                    clientSocket.close();
+                    return;
+                }
 
-                PeerConnectionHandler handler = new PeerConnectionHandler(clientSocket, remoteID, this);
-                clientHandlers.put(remoteID, handler);
-                peerCompletionMap.put(remoteID, false);
+                PeerConnectionHandler handler = new PeerConnectionHandler(clientSocket, remoteID, this, false);
+                if (!registerHandler(remoteID, handler)) {
+                    handler.close(); // We are connected to it already
+                    return;
+                }
+                neighborSockets.put(remoteID, clientSocket);
 
-                new Thread(handler).start();
+                executor.execute(handler);
 
             } catch (IOException e) {
                 System.err.println("Error handling incoming connection: " + e.getMessage());
                 e.printStackTrace();
             }
-        }).start();
+        });
+    }
+
+    /**
+     * This method is used in tracker mode to announce this peer and learn other members.
+     * "started" and "update" announces schedule the next one after the tracker's interval.
+     */
+    private void announceToTracker(String event) {
+        if (closed.get()) {
+            return; // close() sends "stopped" itself
+        }
+        try {
+            TrackerClient.Response response = trackerClient.announce(event, hasCompleteFile.get(), 2 * maxNeighbors);
+            announceInterval = Math.max(1, response.interval);
+            // A peer alone from the start is not done; one whose neighbors finished and left is
+            boolean allComplete = response.incomplete == 0 && (response.complete > 1 || !peerCompletionMap.isEmpty());
+            swarmCompleteAnnounces = allComplete ? swarmCompleteAnnounces + 1 : 0;
+            int learned = 0;
+            for (PeerConfiguration peerInfo : response.peers) {
+                if (connectionManager.learn(peerInfo)) {
+                    learned++;
+                }
+            }
+            logger.createLog("Peer [" + peerID + "] announced " + event + " to the tracker: " + response.complete + " complete, "
+                    + response.incomplete + " incomplete, " + learned + " new peers.");
+            maintainNeighbors();
+            checkSwarmCompletion();
+        } catch (IOException e) {
+            logger.log(Logger.Level.WARN, "Peer [" + peerID + "] could not reach the tracker at " + trackerClient.getAddress() + ": " + e.getMessage());
+        }
+        if (event.equals("started") || event.equals("update")) {
+            try {
+                scheduler.schedule(() -> announceToTracker("update"), announceInterval, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    // Tracker mode: dials random known peers while there are fewer than MaxNeighbors neighbors
+    private void maintainNeighbors() {
+        connectionManager.topUp(clientHandlers.keySet(), maxNeighbors);
+    }
+
+    // Tracker mode: tells every neighbor about some of the others
+    private void sendPeerExchange() {
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            sendPeerExchange(handler);
+        }
+    }
+
+    // Sends one neighbor our own listening address and those of up to PeerExchange.MAX_ENTRIES - 1 other neighbors
+    public void sendPeerExchange(PeerConnectionHandler handler) {
+        if (trackerClient == null) {
+            return;
+        }
+        List<PeerConfiguration> others = new ArrayList<>();
+        for (int id : clientHandlers.keySet()) {
+            PeerConfiguration address = connectionManager.addressOf(id);
+            if (id != handler.getRemotePeerID() && address != null) {
+                others.add(address);
+            }
+        }
+        Collections.shuffle(others);
+        List<PeerConfiguration> entries = new ArrayList<>();
+        entries.add(new PeerConfiguration(Integer.parseInt(peerID), hostName, port, hasCompleteFile.get()));
+        entries.addAll(others.subList(0, Math.min(others.size(), PeerExchange.MAX_ENTRIES - 1)));
+        handler.sendPeerExchange(PeerExchange.encode(entries));
     }
 
-    // Establish TCP connections with all peers that have lower IDs
-    private void connectToPeers() {
+    // A neighbor sent a PEX message: its peers become candidates
+    public void onPeerExchange(List<PeerConfiguration> peers, int fromID) {
+        if (trackerClient == null) {
+            return;
+        }
+        int learned = 0;
+        for (PeerConfiguration peerInfo : peers) {
+            if (connectionManager.learn(peerInfo)) {
+                learned++;
+            }
+        }
+        int count = learned;
+        logger.log(Logger.Level.DEBUG, () -> "Peer [" + peerID + "] learned " + count + " new peers from PEX of [" + fromID + "].");
+        if (learned > 0) {
+            maintainNeighbors();
+        }
+    }
+
+    // Peers listed before this one in PeerInfo.cfg; this peer dials them, the later ones dial us
+    private List<PeerConfiguration> priorPeers() {
+        List<PeerConfiguration> prior = new ArrayList<>();
         for (PeerConfiguration peerInfo : peersInfo.values()) {
-            // Stop trying to connect once we reach our own ID in the list
+            // Stop once we reach our own ID in the list
             if (peerInfo.ID == Integer.parseInt(peerID)) break;
+            prior.add(peerInfo);
+        }
+        return prior;
+    }
+
+    // One blocking connect and handshake on an executor thread, so all neighbors are dialed in parallel
+    private void dialBlocking(PeerConfiguration peerInfo) {
+        executor.execute(() -> {
+            SocketChannel channel = null;
             try {
                 // Create socket connection to the peer
-                Socket socket = new Socket(peerInfo.hostName, peerInfo.portNumber);
+                channel = SocketChannel.open();
+                Socket socket = channel.socket();
+                socket.connect(new InetSocketAddress(peerInfo.hostName, peerInfo.portNumber), connectTimeout);
 
                 // Initiate handshake process with the remote peer
                 performHandshake(socket);
 
                 // Log successful TCP connection establishment
                 logger.createLog("TCP connection is built between P" + peerID + " and P" + peerInfo.ID);
-                neighborSockets.put(peerInfo.ID, socket);
+                connectionManager.connected(peerInfo.ID);
+                if (!admits(peerInfo.ID, true)) {
+                    socket.close();
+                    return;
+                }
 
                 // Create a handler to manage communication with this peer
-                PeerConnectionHandler handler = new PeerConnectionHandler(socket, peerInfo.ID, this);
-                clientHandlers.put(peerInfo.ID, handler);
-                peerCompletionMap.put(peerInfo.ID, false); // Track if this peer has completed downloading
+                PeerConnectionHandler handler = new PeerConnectionHandler(socket, peerInfo.ID, this, true);
+                if (!registerHandler(peerInfo.ID, handler)) {
+                    handler.close(); // It dialed us at the same time, and that connection wins
+                    return;
+                }
+                neighborSockets.put(peerInfo.ID, socket);
 
-                // Start a new thread to listen to this peer
-                new Thread(handler).start();
+                // Listen to this peer on this thread
+                handler.run();
             } catch (IOException e) {
-                System.err.println("Error connecting to peer " + peerInfo.ID + ": " + e.getMessage());
-                e.printStackTrace();
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Already failing
+                    }
+                }
+                connectionManager.failed(peerInfo.ID, e.getMessage());
             }
+        });
+    }
+
+    // Same as dialBlocking, but the connect is non-blocking and finishes on a selector thread,
+    // which reports the outcome (NioEngine enforces the timeouts)
+    private void dialNio(PeerConfiguration peerInfo) {
+        try {
+            nioEngine.connect(this, peerInfo);
+        } catch (IOException e) {
+            connectionManager.failed(peerInfo.ID, e.getMessage());
         }
     }
 
-    // Handles sending and receiving the handshake message with a peer
-    private String performHandshake(Socket socket) throws IOException {
-        // Prepare handshake message of 32 bytes
-        byte[] handshake = new byte[32];
+    // Called by the NIO engine once a handshake completes, to create the handler for that neighbor
+    public PeerConnectionHandler attachNeighbor(int remoteID, Socket socket, PeerTransport transport, boolean outbound) throws IOException {
+        if (outbound) {
+            logger.createLog("TCP connection is built between P" + peerID + " and P" + remoteID);
+            connectionManager.connected(remoteID);
+        } else {
+            logger.createLog("TCP connection is built between P" + remoteID + " and P" + peerID);
+        }
+        if (!admits(remoteID, outbound)) {
+            throw new IOException("Peer [" + peerID + "] turned away [" + remoteID + "]");
+        }
+        PeerConnectionHandler handler = new PeerConnectionHandler(transport, remoteID, this, outbound);
+        if (!registerHandler(remoteID, handler)) {
+            throw new IOException("Peer [" + peerID + "] is already connected to [" + remoteID + "]");
+        }
+        neighborSockets.put(remoteID, socket);
+        return handler;
+    }
 
-        // First 18 bytes are a fixed header
-        byte[] header = "P2PFILESHARINGPROJ".getBytes();
-        System.arraycopy(header, 0, handshake, 0, header.length);
+    // Turns away banned neighbors and, in tracker mode, inbound connections beyond twice MaxNeighbors
+    private boolean admits(int remoteID, boolean outbound) {
+        if (closed.get() || isBanned(remoteID)) {
+            return false;
+        }
+        return trackerClient == null || outbound || clientHandlers.size() < 2 * maxNeighbors;
+    }
 
-        // Next 10 bytes are zeroed out (padding)
-        byte[] zeroBits = new byte[10];
-        System.arraycopy(zeroBits, 0, handshake, 18, zeroBits.length);
+    // Tracks a new handler and whether its peer has completed downloading. If the two peers
+    // dialed each other at once, both keep the connection dialed by the higher ID; a redial in
+    // the same direction replaces the old connection. Returns false if the new one must be dropped.
+    private boolean registerHandler(int remoteID, PeerConnectionHandler handler) {
+        PeerConnectionHandler replaced;
+        synchronized (clientHandlers) {
+            PeerConnectionHandler existing = clientHandlers.get(remoteID);
+            if (existing != null && existing.isOutbound() != handler.isOutbound()
+                    && handler.isOutbound() == (Integer.parseInt(peerID) < remoteID)) {
+                return false;
+            }
+            replaced = clientHandlers.put(remoteID, handler);
+        }
+        peerCompletionMap.put(remoteID, false);
+        if (replaced != null) {
+            replaced.close();
+        }
+        return true;
+    }
 
-        // Final 4 bytes represent the peer's ID
-        byte[] peerIDBytes = ByteBuffer.allocate(4).putInt(Integer.parseInt(peerID)).array();
-        System.arraycopy(peerIDBytes, 0, handshake, 28, peerIDBytes.length);
+    // Swarm-level gauges; counters and histograms are created by the handlers that feed them
+    private void registerMetrics() {
+        metrics.counter("bytesDownloaded");
+        metrics.counter("bytesUploaded");
+        metrics.counter("piecesCompleted");
+        metrics.histogram("requestLatencyMicros");
+        metrics.histogram("diskWriteMicros");
+        metrics.histogram("verifyMicros");
+        metrics.counter("hashFailures");
+        metrics.gauge("neighbors", clientHandlers::size);
+        metrics.gauge("remainingPieces", () -> piecePicker.remainingPieces());
+        metrics.gauge("blocksInFlight", requestedBlocks::size);
+        metrics.gauge("piecesPerSecond", () -> {
+            long elapsed = completionMillis > 0 ? completionMillis : (System.nanoTime() - startNanos) / 1_000_000;
+            return elapsed == 0 ? 0 : metrics.counter("piecesCompleted").sum() * 1000 / elapsed;
+        });
+        metrics.gauge("timeToCompletionMillis", () -> completionMillis);
+        metrics.register();
+    }
+
+    // Periodic snapshot of the swarm and every neighbor connection
+    private void logMetrics() {
+        long pieces = metrics.counter("piecesCompleted").sum();
+        long recentRate = (pieces - lastPiecesCompleted) / metricsInterval;
+        lastPiecesCompleted = pieces;
+        logger.createLog("Peer [" + peerID + "] metrics: piecesLastInterval/s=" + recentRate + " " + metrics.snapshot());
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            logger.createLog("Peer [" + peerID + "] metrics for [" + handler.getRemotePeerID() + "]: " + handler.getMetrics().snapshot());
+        }
+    }
 
+    // Handles sending and receiving the handshake message with a peer; a silent peer times out
+    private String performHandshake(Socket socket) throws IOException {
+        socket.setSoTimeout(handshakeTimeout);
         // Send the handshake over the output stream
         OutputStream out = socket.getOutputStream();
-        out.write(handshake);
+        out.write(buildHandshake());
         out.flush();
         logger.createLog("Peer [" + peerID + "] sent handshake to the remote peer.");
 
@@ -290,13 +851,41 @@ public class Peer {
             }
             bytesRead += result;
         }
+        socket.setSoTimeout(0);
+
+        return String.valueOf(parseHandshake(receivedHandshake));
+    }
+
+    // Builds the 32-byte handshake message for this peer
+    public byte[] buildHandshake() {
+        // Prepare handshake message of 32 bytes
+        byte[] handshake = new byte[32];
+
+        // First 18 bytes are a fixed header
+        byte[] header = "P2PFILESHARINGPROJ".getBytes();
+        System.arraycopy(header, 0, handshake, 0, header.length);
+
+        // Next 10 bytes: 2 zero bytes, then the 8-byte swarm ID (zero from peers that do not send one)
+        ByteBuffer.wrap(handshake, 20, 8).putLong(swarmID);
 
+        // Final 4 bytes represent the peer's ID
+        byte[] peerIDBytes = ByteBuffer.allocate(4).putInt(Integer.parseInt(peerID)).array();
+        System.arraycopy(peerIDBytes, 0, handshake, 28, peerIDBytes.length);
+        return handshake;
+    }
+
+    // Validates a received 32-byte handshake and returns the remote peer's ID
+    public int parseHandshake(byte[] receivedHandshake) throws IOException {
         // Check if header is valid
         byte[] receivedHeader = Arrays.copyOfRange(receivedHandshake, 0, 18);
         String headerString = new String(receivedHeader);
         if (!headerString.equals("P2PFILESHARINGPROJ")) {
             throw new IOException("Invalid handshake header");
         }
+        long remoteSwarm = swarmOf(receivedHandshake);
+        if (remoteSwarm != 0 && remoteSwarm != swarmID) {
+            throw new IOException("Handshake is for swarm " + Long.toHexString(remoteSwarm) + ", not " + Long.toHexString(swarmID));
+        }
 
         // Extract and return the remote peer's ID
         byte[] remotePeerIDBytes = new byte[4];
@@ -304,7 +893,40 @@ public class Peer {
         int remotePeerID = ByteBuffer.wrap(remotePeerIDBytes).getInt();
         logger.createLog("Peer [" + peerID + "] received valid handshake from Peer [" + remotePeerID + "].");
 
-        return String.valueOf(remotePeerID);
+        return remotePeerID;
+    }
+
+    // Swarm ID in a received handshake, 0 if the sender did not set one
+    public static long swarmOf(byte[] handshake) {
+        return ByteBuffer.wrap(handshake, 20, 8).getLong();
+    }
+
+    // SwarmKey, or else FileName, FileSize and PieceSize, name a swarm at the tracker and (hashed)
+    // in the handshake. Peers only learn the manifest after connecting, so its digest cannot be used.
+    private String swarmName() {
+        return !swarmKey.isEmpty() ? swarmKey : fileName + " " + fileSize + " " + pieceSize;
+    }
+
+    // The first 8 bytes of SHA-256 of the swarm name; never 0, which means "no swarm ID"
+    static long swarmID(String swarmName) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(swarmName.getBytes(StandardCharsets.UTF_8));
+            long id = ByteBuffer.wrap(digest).getLong();
+            return id != 0 ? id : 1;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Number of preferred neighbors the upload budget can serve. With both a peer-wide and a
+    // per-neighbor upload cap, unchoking more than MaxUploadRate / MaxUploadRatePerNeighbor
+    // neighbors would only give each of them a smaller share, so the count is capped there.
+    private int preferredSlots() {
+        if (maxUploadRate <= 0 || maxUploadRatePerNeighbor <= 0) {
+            return numberOfPreferredNeighbors;
+        }
+        int slots = (maxUploadRate + maxUploadRatePerNeighbor - 1) / maxUploadRatePerNeighbor;
+        return Math.max(1, Math.min(numberOfPreferredNeighbors, slots));
     }
 
     // Periodically updates the list of preferred neighbors based on download rate or at random
@@ -328,21 +950,38 @@ public class Peer {
             // Log update interval message
             logger.createLog("Every " + unchokingInterval + " seconds, Peer [" + peerID + "] recalculates preferred neighbors and sends CHOKE/UNCHOKE messages.");
 
-            // Decide preferred neighbors randomly if this peer has the complete file
-            if (hasCompleteFile.get()) {
+            if (hasCompleteFile.get() && seedChoking.equals("rotate")) {
+                // Seeding: rotate slots, favoring neighbors that take our upload or are furthest behind
+                Bitfield rarest = piecePicker.rarestPieces();
+                List<SeedChoker.Candidate> candidates = new ArrayList<>();
+                for (int id : interestedNeighbors) {
+                    PeerConnectionHandler handler = clientHandlers.get(id);
+                    if (handler != null) {
+                        candidates.add(new SeedChoker.Candidate(id, handler.getUploadRate(),
+                                handler.getremotePeersBitfieldMessagePieceCount(), handler.countMissing(rarest)));
+                    }
+                }
+                List<Integer> selected = seedChoker.select(candidates, preferredSlots());
+                preferredNeighbors.clear();
+                preferredNeighbors.addAll(selected);
+            } else if (hasCompleteFile.get()) {
+                // Seeding with SeedChoking random: the original policy
                 Collections.shuffle(interestedNeighbors);
                 preferredNeighbors.clear();
-                preferredNeighbors.addAll(interestedNeighbors.subList(0, Math.min(numberOfPreferredNeighbors, interestedNeighbors.size())));
+                preferredNeighbors.addAll(interestedNeighbors.subList(0, Math.min(preferredSlots(), interestedNeighbors.size())));
             } else {
-                // Otherwise, select peers based on highest download rate
+                // Otherwise, select peers that send us the most (tit-for-tat). Rates are read once,
+                // so the comparator sees a consistent snapshot; ties are broken randomly
+                Map<Integer, Double> rates = new HashMap<>();
+                for (int id : interestedNeighbors) {
+                    PeerConnectionHandler handler = clientHandlers.get(id);
+                    rates.put(id, handler != null ? handler.getDownloadRate() : 0.0);
+                }
                 List<Integer> sortedNeighbors = new ArrayList<>(interestedNeighbors);
-                sortedNeighbors.sort((a, b) -> {
-                    int rateA = clientHandlers.get(a).gettrackDownloadRate();
-                    int rateB = clientHandlers.get(b).gettrackDownloadRate();
-                    return Integer.compare(rateB, rateA); // Sort in descending order
-                });
+                Collections.shuffle(sortedNeighbors);
+                sortedNeighbors.sort((a, b) -> Double.compare(rates.get(b), rates.get(a))); // Descending
                 preferredNeighbors.clear();
-                preferredNeighbors.addAll(sortedNeighbors.subList(0, Math.min(numberOfPreferredNeighbors, sortedNeighbors.size())));
+                preferredNeighbors.addAll(sortedNeighbors.subList(0, Math.min(preferredSlots(), sortedNeighbors.size())));
             }
 
             // Send choke/unchoke based on selection
@@ -373,13 +1012,59 @@ public class Peer {
     }
 
     // Checks if a specific piece index is present in this peer's bitfield
-    public synchronized boolean hasPiece(int pieceIndex) {
-        int byteIndex = pieceIndex / 8;
-        int bitIndex = pieceIndex % 8;
-        return (bitfield[byteIndex] & (1 << (7 - bitIndex))) != 0;
+    public boolean hasPiece(int pieceIndex) {
+        return bitfield.get(pieceIndex);
     }
 
 
+    // Builds the storage backend selected by StorageMode
+    private PieceStorage createStorage() {
+        if (fileLayout != null) {
+            if (!storageMode.equals("single-file")) {
+                logger.log(Logger.Level.WARN, "Peer [" + peerID + "] ignores StorageMode " + storageMode + " for a FileList; each file is written in place.");
+            }
+            return new MultiFileStorage(new File(peerDirectory, fileName), fileLayout, pieceSize, maxOpenFiles);
+        }
+        if (storageMode.equals("piece-files")) {
+            return new PieceFileStorage(peerDirectory, fileName, pieceSize, totalPieces, logger, peerID);
+        }
+        if (storageMode.equals("mmap")) {
+            return new MappedFileStorage(new File(peerDirectory, fileName), fileSize, pieceSize, mapWindowSize, maxMappedWindows, unmapOnEvict);
+        }
+        return new SingleFileStorage(new File(peerDirectory, fileName), fileSize, pieceSize);
+    }
+
+    // Marks a block as requested; returns false if another neighbor is already sending it
+    public boolean claimBlock(long blockKey) {
+        return requestedBlocks.putIfAbsent(blockKey, System.nanoTime()) == null;
+    }
+
+    // When the block was first requested, or 0 if nobody is fetching it
+    public long getBlockRequestTime(long blockKey) {
+        return requestedBlocks.getOrDefault(blockKey, 0L);
+    }
+
+    // Makes a block requestable again after it arrived or its request was dropped
+    public void releaseBlock(long blockKey) {
+        requestedBlocks.remove(blockKey);
+    }
+
+    public boolean isBlockRequested(long blockKey) {
+        return requestedBlocks.containsKey(blockKey);
+    }
+
+    // Returns true if the download is in endgame mode, switching it on when few enough pieces remain
+    public boolean enterEndgame() {
+        int remaining = piecePicker.remainingPieces();
+        if (endgamePieces <= 0 || remaining == 0 || remaining > endgamePieces) {
+            return false;
+        }
+        if (endgameStats.start(remaining)) {
+            logger.createLog("Peer [" + peerID + "] entered endgame mode with " + remaining + " pieces remaining.");
+        }
+        return true;
+    }
+
     // Periodically optimistically unchoke a neighbor
     private void optimisticallyUnchokeNeighbor() {
         try {
@@ -428,113 +1113,424 @@ public class Peer {
             boolean interested = handler.isInterested();
             statusLog.append("Neighbor [").append(remotePeerID).append("]: ")
                      .append(choked ? "Choked" : "Unchoked").append(", ")
-                     .append(interested ? "Interested" : "Not Interested").append("\n");
+                     .append(interested ? "Interested" : "Not Interested").append(", ")
+                     .append(Math.round(handler.getDownloadRate() / 1024)).append(" KiB/s down, ")
+                     .append(Math.round(handler.getUploadRate() / 1024)).append(" KiB/s up\n");
         }
         logger.createLog(statusLog.toString());
     }
 
-        // Periodically checks if all peers have completed downloading the file
-    private void checkCompletion() {
-        new Thread(() -> {
-            while (true) {
+    // Completes the swarm future once this peer and every other one has the complete file.
+    // Without a tracker that is every other PeerInfo.cfg entry; with one, membership is open,
+    // so the tracker has to have found every member complete on two announces in a row.
+    private void checkSwarmCompletion() {
+        if (!hasCompleteFile.get() || swarmCompleteRaised.get()) {
+            return;
+        }
+        if (trackerClient != null) {
+            if (swarmCompleteAnnounces < 2) {
+                return;
+            }
+        } else if (peerCompletionMap.size() < peersInfo.size() - 1 || peerCompletionMap.containsValue(false)) {
+            return;
+        }
+        if (swarmCompleteRaised.compareAndSet(false, true)) {
+            logger.createLog("Peer [" + peerID + "] has downloaded the complete file and all peers have completed.");
+            executor.execute(() -> swarmCompletion.complete(this));
+        }
+    }
+
+    // Our last HAVEs are how neighbors learn that we are complete, so they get up to
+    // CLOSE_LINGER_MILLIS to go out before the connections are closed
+    private void lingerForControlFrames() {
+        long deadline = System.nanoTime() + CLOSE_LINGER_MILLIS * 1_000_000L;
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            while (handler.hasPendingControl() && System.nanoTime() - deadline < 0) {
                 try {
-                    // Wait until all expected peers are tracked in the completion map
-                    if (peerCompletionMap.size() < peersInfo.size() - 1) {
-                        logger.createLog("Waiting for all peers to connect. Currently tracked: " + peerCompletionMap.size() + " out of " + (peersInfo.size() - 1));
-                        Thread.sleep(2000); // Recheck after delay
-                        continue;
-                    }
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
 
-                    // If this peer has finished downloading, check others' completion status
-                    if (hasCompleteFile.get()) {
-                        boolean allComplete = true;
-                        for (int pid : peerCompletionMap.keySet()) {
-                            if (!peerCompletionMap.getOrDefault(pid, false)) {
-                                allComplete = false;
-                                break;
-                            }
-                        }
-
-                        // If everyone has finished, shut down the program gracefully
-                        if (allComplete) {
-                            logger.createLog("Peer [" + peerID + "] has downloaded the complete file and all peers have completed.");
-                            System.exit(0);
-                        }
-                    }
+    /**
+     * This method is used to leave the swarm. Dialing and the periodic tasks stop,
+     * every connection is closed and the tracker is told. Leechers write a last
+     * resume checkpoint, then the storage and the log are closed. A standalone peer
+     * also stops its own threads, while an embedded one leaves the engine's threads
+     * to the other swarms. Completion futures that are still pending are cancelled.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (connectionManager != null) {
+            connectionManager.stop();
+        }
+        for (ScheduledFuture<?> task : periodicTasks) {
+            task.cancel(false);
+        }
+        if (nioEngine != null) {
+            nioEngine.removeSwarm(swarmID, this);
+        }
+        lingerForControlFrames();
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            handler.close();
+        }
+        if (engine == null) {
+            if (nioEngine != null) {
+                nioEngine.shutdown(); // After the handlers, so their close tasks still run on the selector threads
+            }
+            if (serverChannel != null) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing server channel: " + e.getMessage());
+                }
+            }
+        }
+        if (trackerClient != null) {
+            try {
+                trackerClient.announce("stopped", hasCompleteFile.get(), 0);
+            } catch (IOException e) {
+                // The tracker drops us after three missed announces anyway
+            }
+        }
+        if (resumeJournal != null && !hasCompleteFile.get()) {
+            checkpointResumeState();
+        }
+        if (engine == null) {
+            scheduler.shutdownNow();
+            if (executor != null) {
+                executor.shutdown();
+            }
+            if (hashPool != null) {
+                hashPool.shutdownNow();
+            }
+        } else {
+            engine.forget(this);
+        }
+        if (storage != null) {
+            storage.close();
+        }
+        if (metrics != null) {
+            if (metricsInterval > 0) {
+                logMetrics(); // Final snapshot
+            }
+            metrics.unregister();
+        }
+        // A raised future may still be queued on the executor; complete it here instead of cancelling
+        if (downloadCompleteRaised.get()) {
+            downloadCompletion.complete(this);
+        } else {
+            downloadCompletion.cancel(false);
+        }
+        if (swarmCompleteRaised.get()) {
+            swarmCompletion.complete(this);
+        } else {
+            swarmCompletion.cancel(false);
+        }
+        logger.createLog("Peer [" + peerID + "] closed.");
+        logger.close(); // Write out queued log records
+    }
 
-                    Thread.sleep(2000); // Repeat every 2 seconds
-                } catch (InterruptedException e) {
-                    System.err.println("Error in completion checker: " + e.getMessage());
+    public PieceManifest getManifest() { return manifest; }
+
+    /**
+     * This method is used when a neighbor sends a MANIFEST. The first valid one is
+     * kept and passed on to every other neighbor, and they are all asked to start
+     * requesting. Later copies are only compared with it.
+     */
+    public void onManifestReceived(byte[] payload, int fromID) {
+        PieceManifest received = PieceManifest.fromBytes(payload, totalPieces);
+        if (received == null) {
+            logger.log(Logger.Level.WARN, "Peer [" + peerID + "] ignored a MANIFEST of " + payload.length + " bytes from [" + fromID + "].");
+            return;
+        }
+        synchronized (avoidedSenders) {
+            if (manifest != null) {
+                if (!manifest.sameAs(received)) {
+                    logger.log(Logger.Level.WARN, "Peer [" + peerID + "] received a different MANIFEST from [" + fromID + "]; keeping the first one.");
+                }
+                return;
+            }
+            manifest = received;
+        }
+        logger.createLog("Peer [" + peerID + "] received the piece manifest from [" + fromID + "].");
+        verifyPiecesOnDisk();
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            if (handler.getRemotePeerID() != fromID) {
+                handler.sendManifest(payload);
+            }
+            handler.requestMore();
+        }
+    }
+
+    /**
+     * This method is used once every block of a piece is written. The piece is read
+     * back and hashed on the hash pool. If the digest matches, it goes into the
+     * bitfield and the completing handler sends the HAVEs. Otherwise it is dropped,
+     * to be fetched again from someone else.
+     */
+    public void verifyPiece(int pieceIndex, PeerConnectionHandler completer) {
+        hashPool.execute(() -> {
+            if (closed.get()) {
+                return; // The storage is closed; an embedded swarm shares the pool with others
+            }
+            boolean valid;
+            try {
+                valid = hashMatches(pieceIndex);
+            } catch (IOException e) {
+                System.err.println("Error reading piece " + pieceIndex + " for verification: " + e.getMessage());
+                valid = false;
+            }
+            if (valid) {
+                updateBitfield(pieceIndex); // Before verified(), so the blocks never look missing
+                blockTracker.verified(pieceIndex);
+                avoidedSenders.remove(pieceIndex);
+                retryOwners.remove(pieceIndex);
+                if (resumeJournal != null) {
+                    resumeJournal.append(pieceIndex);
                 }
+                completer.onPieceVerified(pieceIndex);
+            } else {
+                rejectPiece(pieceIndex);
             }
-        }).start();
+        });
     }
 
-    // Reconstructs the original file by combining all the individual pieces
-    private void mergeFilePieces() throws IOException {
-        String outputFilePath = peerDirectory + "/" + fileName;
-        try (FileOutputStream fos = new FileOutputStream(outputFilePath)) {
-            for (int i = 0; i < totalPieces; i++) {
-                String piecePath = peerDirectory + "/piece_" + i;
-                File pieceFile = new File(piecePath);
-                try (FileInputStream fis = new FileInputStream(pieceFile)) {
-                    byte[] buffer = new byte[(int) pieceFile.length()];
-                    int bytesRead = fis.read(buffer);
-                    fos.write(buffer, 0, bytesRead); // Append each piece
+    // Reads a whole piece back from storage and checks it against the manifest
+    private boolean hashMatches(int pieceIndex) throws IOException {
+        long start = System.nanoTime();
+        try {
+            byte[] data = storage.readBlock(pieceIndex, 0, blockTracker.pieceLength(pieceIndex));
+            return manifest.verify(pieceIndex, data);
+        } finally {
+            metrics.histogram("verifyMicros").record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    // Tells every neighbor about a new local piece and updates our interest in each of them.
+    // The HAVE is only queued; a neighbor that has gone away must not stop the others.
+    public void announcePiece(int pieceIndex) {
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            try {
+                handler.sendHave(pieceIndex);
+            } catch (IOException e) {
+                System.err.println("Error sending HAVE to peer " + handler.getRemotePeerID() + ": " + e.getMessage());
+            }
+            handler.onLocalPieceCompleted(pieceIndex);
+        }
+        checkSwarmCompletion(); // Only now, so the HAVE of our last piece is queued before anyone closes
+    }
+
+    /**
+     * This method is used at startup by a leecher. Pieces in the resume checkpoint go
+     * straight into the bitfield, so they are in the first BITFIELD we send. Pieces
+     * journaled after that checkpoint are held back from requests until
+     * verifyPiecesOnDisk() has hashed them. So are any other pieces the storage can
+     * prove are on disk (piece files, files of a FileList that are already there). A
+     * preallocated data file proves nothing, so there only journaled pieces are hashed.
+     */
+    private void resumeFromDisk(File dir) throws IOException {
+        resumeJournal = new ResumeJournal(dir, fileName, fileSize, pieceSize, totalPieces);
+        ResumeJournal.State resumed = resumeJournal.load();
+        int trusted = 0;
+        BitSet onDisk = new BitSet(totalPieces);
+        for (int i = 0; i < totalPieces; i++) {
+            if (!storage.mayContain(i)) {
+                continue; // The data is gone, whatever the checkpoint says
+            }
+            if (resumed.trusted.get(i)) {
+                bitfield.set(i);
+                trusted++;
+            } else if (resumed.unconfirmed.get(i) || storage.provesPresence()) {
+                blockTracker.markPieceOnDisk(i);
+                onDisk.set(i);
+            }
+        }
+        manifest = resumed.manifest;
+        if (!onDisk.isEmpty()) {
+            piecesOnDisk.set(onDisk);
+        }
+        if (trusted > 0 || !onDisk.isEmpty()) {
+            logger.createLog("Peer [" + peerID + "] resumed " + trusted + " pieces from its checkpoint; "
+                    + onDisk.cardinality() + " more pieces on disk will be verified.");
+        }
+    }
+
+    // Hashes the pieces found by resumeFromDisk() in parallel, once the manifest is known.
+    // Good ones are announced with HAVE as they pass; the rest are downloaded as usual.
+    private void verifyPiecesOnDisk() {
+        BitSet onDisk = piecesOnDisk.getAndSet(null);
+        if (onDisk == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(onDisk.cardinality());
+        AtomicInteger passed = new AtomicInteger();
+        for (int i = onDisk.nextSetBit(0); i >= 0; i = onDisk.nextSetBit(i + 1)) {
+            int pieceIndex = i;
+            hashPool.execute(() -> {
+                boolean valid;
+                try {
+                    valid = hashMatches(pieceIndex);
+                } catch (IOException e) {
+                    valid = false; // E.g. a piece file that was never finished
                 }
+                if (valid) {
+                    passed.incrementAndGet();
+                    updateBitfield(pieceIndex);
+                    blockTracker.verified(pieceIndex);
+                    resumeJournal.append(pieceIndex);
+                    checkAndSetCompletion();
+                    announcePiece(pieceIndex);
+                } else {
+                    blockTracker.rejected(pieceIndex);
+                    for (PeerConnectionHandler handler : clientHandlers.values()) {
+                        handler.requestMore();
+                    }
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    logger.createLog("Peer [" + peerID + "] verified " + passed.get() + " of " + onDisk.cardinality()
+                            + " pieces found on disk in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+                }
+            });
+        }
+    }
+
+    // Makes the pieces verified so far durable and records them in the resume checkpoint
+    private void checkpointResumeState() {
+        try {
+            resumeJournal.checkpoint(bitfield, manifest, storage);
+        } catch (IOException e) {
+            System.err.println("Error writing resume checkpoint: " + e.getMessage());
+        }
+    }
+
+    // A piece failed its hash check: fetch it again from one neighbor. When a single neighbor
+    // sent the whole piece the failure is its fault, so it gets a strike and is avoided for
+    // that piece. Blocks from several neighbors cannot be told apart without more hashes.
+    private void rejectPiece(int pieceIndex) {
+        retryOwners.put(pieceIndex, NO_OWNER); // Before the blocks are free, so no two neighbors start on it
+        Set<Integer> senders = blockTracker.rejected(pieceIndex);
+        metrics.counter("hashFailures").increment();
+        logger.log(Logger.Level.WARN, "Peer [" + peerID + "] piece [" + pieceIndex + "] failed its hash check; sent by " + senders + ".");
+        if (senders.size() == 1) {
+            int sender = senders.iterator().next();
+            avoidedSenders.computeIfAbsent(pieceIndex, i -> ConcurrentHashMap.newKeySet()).add(sender);
+            int failures = hashFailures.merge(sender, 1, Integer::sum);
+            PeerConnectionHandler handler = clientHandlers.get(sender);
+            if (handler != null) {
+                handler.onHashFailure();
+                if (maxHashFailures > 0 && failures >= maxHashFailures) {
+                    logger.log(Logger.Level.WARN, "Peer [" + peerID + "] disconnects [" + sender + "] after " + failures + " corrupt pieces.");
+                    connectionManager.abandon(sender);
+                    handler.close();
+                }
+            }
+        }
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            handler.requestMore();
+        }
+    }
+
+    /**
+     * This method is used by the request logic to skip pieces this neighbor should not
+     * send: ones it alone sent corrupt before (while someone else has them), and failed
+     * pieces that another neighbor is already fetching again.
+     */
+    public boolean isAvoided(int pieceIndex, int remotePeerID) {
+        Integer owner = retryOwners.get(pieceIndex);
+        if (owner != null && owner != NO_OWNER && owner != remotePeerID) {
+            return true;
+        }
+        Set<Integer> avoided = avoidedSenders.get(pieceIndex);
+        return avoided != null && avoided.contains(remotePeerID)
+                && piecePicker.getAvailability(pieceIndex) > avoided.size();
+    }
+
+    // A neighbor that sent MaxHashFailures corrupt pieces is not let back in
+    private boolean isBanned(int remotePeerID) {
+        return maxHashFailures > 0 && hashFailures.getOrDefault(remotePeerID, 0) >= maxHashFailures;
+    }
+
+    // The neighbor choked us or left: failed pieces it was fetching again are free for others,
+    // which have to be told, since nothing else would make them look at those pieces again
+    public void releaseRetries(int remotePeerID) {
+        if (retryOwners.isEmpty() || !retryOwners.containsValue(remotePeerID)) {
+            return;
+        }
+        retryOwners.replaceAll((piece, owner) -> owner == remotePeerID ? NO_OWNER : owner);
+        for (PeerConnectionHandler handler : clientHandlers.values()) {
+            if (handler.getRemotePeerID() != remotePeerID) {
+                handler.requestMore();
             }
         }
     }
 
+    // Makes this neighbor the only one fetching a failed piece again; true if it may request it
+    public boolean claimRetry(int pieceIndex, int remotePeerID) {
+        Integer owner = retryOwners.get(pieceIndex);
+        return owner == null || owner == remotePeerID || retryOwners.replace(pieceIndex, NO_OWNER, remotePeerID);
+    }
+
     // Updates this peer's bitfield to indicate a new piece has been downloaded
-    public synchronized void updateBitfield(int pieceIndex) {
-        int byteIndex = pieceIndex / 8;
-        int bitIndex = pieceIndex % 8;
-        bitfield[byteIndex] |= (1 << (7 - bitIndex));
+    public void updateBitfield(int pieceIndex) {
+        if (bitfield.set(pieceIndex)) {
+            piecePicker.pieceCompleted(pieceIndex);
+        }
     }
 
-    // Returns the current bitfield showing all pieces this peer has
-    public synchronized byte[] getBitfield() {
+    // Returns a snapshot of the bitfield in wire format, e.g. for a BITFIELD message
+    public byte[] getBitfield() {
+        return bitfield.toByteArray();
+    }
+
+    // The live bitfield, for word-level comparisons with a neighbor's
+    public Bitfield getLocalBitfield() {
         return bitfield;
     }
 
+    // Number of pieces this peer has, without scanning the bitfield
+    public int getPieceCount() {
+        return bitfield.cardinality();
+    }
+
     // Checks if this peer has all pieces of the file
-    public synchronized boolean isCompleted() {
-        for (int i = 0; i < totalPieces; i++) {
-            if (!hasPiece(i)) {
-                return false;
-            }
-        }
-        return true;
+    public boolean isCompleted() {
+        return bitfield.isComplete();
     }
 
     // Confirms file completion and performs final merge if not already marked as done
-    public synchronized void checkAndSetCompletion() {
-        if (isCompleted() && !hasCompleteFile.get()) {
-            hasCompleteFile.set(true);
+    public void checkAndSetCompletion() {
+        // Only the thread that flips hasCompleteFile runs the completion steps
+        if (isCompleted() && hasCompleteFile.compareAndSet(false, true)) {
+            completionMillis = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
             logger.createLog("Peer [" + peerID + "] has downloaded the complete file.");
+            logger.createLog("Peer [" + peerID + "] time to completion: " + completionMillis + " ms.");
+            logger.createLog("Peer [" + peerID + "] " + endgameStats.summary());
             try {
-                mergeFilePieces(); // Assemble the full file from pieces
+                storage.complete(); // Merge pieces, or just flush in single-file mode
             } catch (IOException e) {
-                System.err.println("Error merging file pieces: " + e.getMessage());
+                System.err.println("Error completing file storage: " + e.getMessage());
             }
+            if (resumeJournal != null) {
+                checkpointResumeState(); // A restart then starts out complete
+            }
+            if (trackerClient != null) {
+                executor.execute(() -> announceToTracker("completed"));
+            }
+            raiseDownloadCompletion();
         }
     }
 
-    // Splits the input file into fixed-size pieces for distribution
-    private void splitFileIntoPieces(File inputFile) throws IOException {
-        try (FileInputStream fis = new FileInputStream(inputFile)) {
-            byte[] buffer = new byte[pieceSize];
-            int bytesRead;
-            int pieceIndex = 0;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                String piecePath = peerDirectory + "/piece_" + pieceIndex;
-                try (FileOutputStream fos = new FileOutputStream(piecePath)) {
-                    fos.write(buffer, 0, bytesRead);
-                }
-                pieceIndex++;
-            }
-            logger.createLog("Peer [" + peerID + "] has split the file into " + pieceIndex + " pieces.");
+    private void raiseDownloadCompletion() {
+        if (downloadCompleteRaised.compareAndSet(false, true)) {
+            executor.execute(() -> downloadCompletion.complete(this));
         }
     }
 
@@ -547,5 +1543,8 @@ public class Peer {
             String peerID = args[0];
             Peer peer = new Peer(peerID);
             peer.start(); // Begin execution of the peer logic
+            peer.swarmCompletion().join(); // Every peer has the complete file
+            peer.close();
+            System.exit(0); // Peer threads are not daemons
         }
 }
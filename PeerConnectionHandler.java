@@ -2,67 +2,191 @@ import java.io.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PeerConnectionHandler implements Runnable {
     private Socket socket;
+    private PeerTransport transport; // Where outgoing messages are written (blocking socket or NIO channel)
     private int remotePeerID;
+    private final boolean outbound; // We dialed this neighbor
     private Peer peer;
-    private boolean choked = true; // By default, peers are choked (not allowed to download)
-    private boolean interested = false; // Tracks if this peer is interested in downloading
-    private byte[] remotePeersBitfieldMessage; // Tracks which pieces the remote peer has
-    private int trackDownloadRate = 0; // Tracks rate for selecting preferred neighbors
+    private volatile boolean choked = true; // Whether we are choking the remote peer (it may not download from us)
+    private volatile boolean interested = false; // Whether the remote peer is interested in our pieces
+    private volatile boolean chokedByRemote = true; // Whether the remote peer is choking us
+    private boolean interestedInRemote = false; // Whether we told the remote peer we are interested (guarded by interestLock)
+    private int wantedPieces = 0; // Pieces the remote peer has that we lack (guarded by interestLock)
+    private final Object interestLock = new Object();
+    private final RequestPipeline pipeline; // REQUESTs currently in flight to the remote peer
+    private final Bitfield remotePeersBitfieldMessage; // Tracks which pieces the remote peer has
+    private final RateEstimator downloadRate; // PIECE bytes received from this neighbor, ranked by the choker
     private int piecesDownloaded = 0; // Pieces received from this peer
-    private int totalNoOfBytesReceivedFromPeer = 0; // Total data downloaded from this peer
+    private long totalNoOfBytesReceivedFromPeer = 0; // Total data downloaded from this peer
+    private boolean bitfieldReceived = false; // Whether the remote bitfield is counted in the piece picker
     private boolean markedComplete = false; // ✅ Prevent marking peer as complete multiple times
 
+    // Metrics for this neighbor (published over JMX while connected), plus the swarm totals they feed
+    private final MetricsRegistry metrics;
+
+    // Download cap for this neighbor (child of the peer-wide cap), null when downloads are not limited
+    private final TokenBucket downloadLimit;
+    private long readPauseNanos = 0; // Only touched by the thread reading this connection
+    private final LongAdder bytesDown, bytesUp, swarmBytesDown, swarmBytesUp, swarmPieces;
+    private final LongAdder chokesSent, unchokesSent, chokesReceived, unchokesReceived, hashFailures;
+    private final Histogram requestLatency, swarmRequestLatency, swarmDiskWrite;
+
     // Constructor initializes the socket, peer ID, and peer instance
-    public PeerConnectionHandler(Socket socket, int remotePeerID, Peer peer) {
+    public PeerConnectionHandler(Socket socket, int remotePeerID, Peer peer, boolean outbound) {
+        this(new SocketTransport(socket, peer.getBufferPool(), peer.newUploadLimit(), peer.newRateEstimator(), peer.getExecutor()::execute), remotePeerID, peer, outbound);
         this.socket = socket;
+    }
+
+    // Constructor used by the NIO engine, which owns reading and framing itself
+    public PeerConnectionHandler(PeerTransport transport, int remotePeerID, Peer peer, boolean outbound) {
+        this.transport = transport;
         this.remotePeerID = remotePeerID;
         this.peer = peer;
-
-        // Allocate space for the remote peer’s bitfield
-        remotePeersBitfieldMessage = new byte[(int) Math.ceil((double) peer.getTotalPieces() / 8)];
-        Arrays.fill(remotePeersBitfieldMessage, (byte) 0x00); // Start with empty bitfield
+        this.outbound = outbound;
+        this.pipeline = new RequestPipeline(peer.getMaxOutstandingRequests());
+        this.downloadRate = peer.newRateEstimator();
+
+        this.metrics = new MetricsRegistry("p2p:type=Neighbor," + peer.getMetricsKey() + ",neighbor=" + remotePeerID);
+        bytesDown = metrics.counter("bytesDown");
+        bytesUp = metrics.counter("bytesUp");
+        chokesSent = metrics.counter("chokesSent");
+        unchokesSent = metrics.counter("unchokesSent");
+        chokesReceived = metrics.counter("chokesReceived");
+        unchokesReceived = metrics.counter("unchokesReceived");
+        hashFailures = metrics.counter("hashFailures");
+        requestLatency = metrics.histogram("requestLatencyMicros");
+        metrics.gauge("outstandingRequests", pipeline::size);
+        metrics.gauge("requestWindow", pipeline::getDepth);
+        metrics.gauge("queuedPieces", transport::queuedPieces);
+        metrics.gauge("wantedPieces", () -> wantedPieces);
+        metrics.gauge("downloadRate", () -> (long) downloadRate.bytesPerSecond());
+        metrics.gauge("uploadRate", () -> (long) transport.getUploadRate().bytesPerSecond());
+        MetricsRegistry swarm = peer.getMetrics();
+        swarmBytesDown = swarm.counter("bytesDownloaded");
+        swarmBytesUp = swarm.counter("bytesUploaded");
+        swarmPieces = swarm.counter("piecesCompleted");
+        swarmRequestLatency = swarm.histogram("requestLatencyMicros");
+        swarmDiskWrite = swarm.histogram("diskWriteMicros");
+
+        TokenBucket limit = peer.newDownloadLimit();
+        downloadLimit = limit.isLimited() ? limit : null;
+
+        // Allocate space for the remote peer’s bitfield, empty until BITFIELD or HAVE arrives
+        remotePeersBitfieldMessage = new Bitfield(peer.getTotalPieces());
     }
 
     // Main communication loop with the connected peer
     @Override
     public void run() {
+        FrameReader reader = null;
         try {
-            // Send our own bitfield after connection setup
-            if (peer.getBitfield() != null) {
-                sendBitfield();
-            }
+            reader = new FrameReader(socket, peer.getBufferPool(), peer.getMaxFrameLength());
+            onConnected();
 
-            // Listen for incoming messages from the remote peer
+            // Listen for incoming messages from the remote peer; the view is reused for every frame
             while (true) {
-                Message message = Message.receiveP2PBitTorrentMessages(socket);
-                handleMessage(message); // Process the message accordingly
+                handleMessage(reader.next()); // Process the message accordingly
+                long pause = takeReadPause();
+                if (pause > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pause); // Download limit: TCP flow control slows the sender down
+                }
             }
 
-        } catch (IOException e) {
-            // Log the disconnection and clean up
-            peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] connection closed with [" + remotePeerID + "].");
-            peer.removeClientHandler(remotePeerID); // Remove from handler list
+        } catch (IOException | RuntimeException e) {
+            onDisconnected(); // A malformed message must not leave a dead neighbor registered
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onDisconnected();
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    // Time the reader should stop reading from this neighbor after the last frame, so
+    // that the download caps hold; returns 0 when there is no limit or no debt
+    public long takeReadPause() {
+        long pause = readPauseNanos;
+        readPauseNanos = 0;
+        return pause;
+    }
+
+    // Called once the handshake is done, in both blocking and NIO mode
+    public void onConnected() throws IOException {
+        metrics.register();
+        // Send our own bitfield after connection setup, then the piece hashes if we know them
+        sendBitfield();
+        PieceManifest manifest = peer.getManifest();
+        if (manifest != null) {
+            sendManifest(manifest.toBytes());
+        }
+        peer.sendPeerExchange(this);
+    }
+
+    // Called when the connection to the remote peer is lost
+    public void onDisconnected() {
+        // Log the disconnection and clean up
+        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] connection closed with [" + remotePeerID + "].");
+        releaseOutstandingRequests();
+        if (bitfieldReceived) {
+            peer.getPiecePicker().removePeer(remotePeersBitfieldMessage);
         }
+        peer.removeClientHandler(remotePeerID, this); // Remove from handler list
+        metrics.unregister();
     }
 
     // Sends this peer’s bitfield to the connected peer
     private void sendBitfield() throws IOException {
-        byte[] bitfield = peer.getBitfield();
+        byte[] bitfield = peer.getBitfield(); // Snapshot, so later HAVEs cannot change it mid-send
         if (bitfield != null) {
-            Message bitfieldMessage = new Message(P2PMessages.BITFIELD, bitfield);
-            bitfieldMessage.sendMessage(socket);
-            peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent BITFIELD message to [" + remotePeerID + "].");
+            transport.send(P2PMessages.BITFIELD, bitfield);
+            peer.getLogger().log(Logger.Level.DEBUG, "Peer [" + peer.getPeerID() + "] sent BITFIELD message to [" + remotePeerID + "].");
         }
     }
 
-    // Routes the incoming message to the appropriate handler based on message type
-    private void handleMessage(Message message) throws IOException {
+    // Sends the piece manifest; failures only mean the neighbor is already gone
+    public void sendManifest(byte[] digests) {
+        try {
+            transport.send(P2PMessages.MANIFEST, digests);
+            peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent MANIFEST to [" + remotePeerID + "].");
+        } catch (IOException e) {
+            System.err.println("Error sending MANIFEST to peer " + remotePeerID + ": " + e.getMessage());
+        }
+    }
+
+    // Sends listening addresses of some of our other neighbors (tracker mode)
+    public void sendPeerExchange(byte[] payload) {
+        try {
+            transport.send(P2PMessages.PEX, payload);
+            peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent PEX to [" + remotePeerID + "].");
+        } catch (IOException e) {
+            System.err.println("Error sending PEX to peer " + remotePeerID + ": " + e.getMessage());
+        }
+    }
+
+    private void handlePeerExchangeMessage(MessageView message) {
+        byte[] payload = new byte[message.payloadLength()];
+        message.copyPayload(payload, payload.length);
+        peer.onPeerExchange(PeerExchange.decode(payload), remotePeerID);
+    }
+
+    private void handleManifestMessage(MessageView message) {
+        byte[] digests = new byte[message.payloadLength()];
+        message.copyPayload(digests, digests.length);
+        peer.onManifestReceived(digests, remotePeerID);
+    }
+
+    // Routes the incoming message to the appropriate handler based on message type.
+    // The view points into the connection's read buffer and is only valid during this call.
+    void handleMessage(MessageView message) throws IOException {
         switch (message.getType()) {
             case BITFIELD:
-                processReceivedBitfield(message.getPLoad());
+                processReceivedBitfield(message);
                 break;
             case INTERESTED:
                 handleInterestedMessage();
@@ -71,13 +195,16 @@ public class PeerConnectionHandler implements Runnable {
                 handleNotInterestedMessage();
                 break;
             case REQUEST:
-                handleRequestMessage(message.getPLoad());
+                handleRequestMessage(message);
                 break;
             case PIECE:
-                handlePieceMessage(message.getPLoad());
+                handlePieceMessage(message);
+                break;
+            case CANCEL:
+                handleCancelMessage(message);
                 break;
             case HAVE:
-                handleHaveMessage(message.getPLoad());
+                handleHaveMessage(message);
                 break;
             case CHOKE:
                 handleChokeMessage();
@@ -85,34 +212,44 @@ public class PeerConnectionHandler implements Runnable {
             case UNCHOKE:
                 handleUnchokeMessage();
                 break;
+            case MANIFEST:
+                handleManifestMessage(message);
+                break;
+            case PEX:
+                handlePeerExchangeMessage(message);
+                break;
             default:
                 System.err.println("Unknown message type received from peer " + remotePeerID);
         }
     }
 
     // Handles the bitfield sent by the remote peer
-    private void processReceivedBitfield(byte[] payload) throws IOException {
-        System.arraycopy(payload, 0, remotePeersBitfieldMessage, 0, payload.length);
+    private void processReceivedBitfield(MessageView message) throws IOException {
+        PiecePicker picker = peer.getPiecePicker();
+        if (bitfieldReceived) {
+            picker.removePeer(remotePeersBitfieldMessage); // Replace, don't double count
+        }
+        byte[] wire = new byte[Math.min(message.payloadLength(), (peer.getTotalPieces() + 7) / 8)];
+        message.copyPayload(wire, wire.length);
+        remotePeersBitfieldMessage.load(wire);
+        picker.addPeer(remotePeersBitfieldMessage);
+        bitfieldReceived = true;
         peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] received the BITFIELD message from [" + remotePeerID + "].");
 
-        // Determine if we are interested in any piece the remote peer has
-        boolean isInterested = false;
-        for (int i = 0; i < peer.getTotalPieces(); i++) {
-            if (!peer.hasPiece(i) && hasPiece(i)) {
-                isInterested = true;
-                break;
+        // Count the pieces they have that we lack, 64 pieces at a time; from now on the
+        // count is kept up to date by HAVE and by our own completed pieces
+        synchronized (interestLock) {
+            wantedPieces = remotePeersBitfieldMessage.countNotIn(peer.getLocalBitfield());
+            // Send appropriate interest message based on availability
+            // (always sent once here, even when it matches the initial state)
+            interestedInRemote = wantedPieces == 0;
+            if (wantedPieces > 0) {
+                sendInterested();
+            } else {
+                sendNotInterested();
             }
         }
 
-        // Send appropriate interest message based on availability
-        if (isInterested) {
-            sendInterested();
-            interested = true;
-        } else {
-            sendNotInterested();
-            interested = false;
-        }
-
         // ✅ Check if remote peer already has full file and mark complete if so
         if (getremotePeersBitfieldMessagePieceCount() == peer.getTotalPieces()) {
             peer.markPeerComplete(remotePeerID);
@@ -141,61 +278,164 @@ public class PeerConnectionHandler implements Runnable {
     }
 
 
-    private void handleRequestMessage(byte[] payload) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(payload);
-        int pieceIndex = buffer.getInt();
+    // REQUEST carries only the piece index in whole-piece mode, or (index, offset, length) in block mode
+    private void handleRequestMessage(MessageView message) throws IOException {
+        int pieceIndex = message.getInt(0);
+        int offset = 0;
+        int length = 0;
+        boolean valid;
+        if (peer.isBlockMode()) {
+            offset = message.getInt(4);
+            length = message.getInt(8);
+            valid = peer.getBlockTracker().isValidBlock(pieceIndex, offset, length);
+        } else {
+            valid = pieceIndex >= 0 && pieceIndex < peer.getTotalPieces();
+            if (valid) {
+                length = peer.getBlockTracker().pieceLength(pieceIndex);
+            }
+        }
+        if (!valid) {
+            peer.getLogger().log(Logger.Level.WARN, "Peer [" + peer.getPeerID() + "] ignored invalid REQUEST for piece [" + pieceIndex + "] offset [" + offset + "] length [" + length + "] from [" + remotePeerID + "].");
+            return;
+        }
 
         if (!choked && peer.hasPiece(pieceIndex)) {
             // Send piece
-            sendPiece(pieceIndex);
-            // Log the piece sent
-            peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent piece [" + pieceIndex + "] to [" + remotePeerID + "].");
+            sendPiece(pieceIndex, offset, length);
+            bytesUp.add(length);
+            swarmBytesUp.add(length);
+            // Log the piece sent; the message is only built if DEBUG is enabled
+            int sentOffset = offset;
+            peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent piece [" + pieceIndex + "] offset [" + sentOffset + "] to [" + remotePeerID + "].");
         }
     }
 
-    private void handlePieceMessage(byte[] payload) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(payload);
-        int pieceIndex = buffer.getInt();
-        byte[] pieceData = Arrays.copyOfRange(payload, 4, payload.length);
+    private void handlePieceMessage(MessageView message) throws IOException {
+        int headerLength = peer.isBlockMode() ? 8 : 4;
+        int pieceIndex = message.getInt(0);
+        int offset = peer.isBlockMode() ? message.getInt(4) : 0;
+        int dataLength = message.payloadLength() - headerLength;
+        long blockKey = BlockTracker.key(pieceIndex, offset);
+        BlockTracker blocks = peer.getBlockTracker();
+
+        // Feed the arrival into the request window so its depth follows this neighbor's RTT and rate
+        long latencyNanos = pipeline.onBlockReceived(blockKey, dataLength);
+        if (latencyNanos >= 0) {
+            requestLatency.record(latencyNanos / 1000);
+            swarmRequestLatency.record(latencyNanos / 1000);
+        }
+        bytesDown.add(dataLength);
+        downloadRate.record(dataLength);
+        swarmBytesDown.add(dataLength);
+        if (downloadLimit != null) {
+            readPauseNanos = downloadLimit.reserve(dataLength);
+        }
+        if (!blocks.isValidBlock(pieceIndex, offset, dataLength)
+                || peer.hasPiece(pieceIndex) || blocks.isReceived(pieceIndex, offset)) {
+            peer.getEndgameStats().onWastedBytes(dataLength);
+            requestPiece(); // Late duplicate, or a block we never asked for
+            return;
+        }
 
-        // Save piece
-        savePiece(pieceIndex, pieceData);
+        // Write the block into its place inside the piece
+        saveBlock(pieceIndex, offset, message.payload(headerLength));
+        boolean pieceComplete = blocks.markReceived(pieceIndex, offset, remotePeerID);
+        peer.releaseBlock(blockKey);
+
+        // In endgame other neighbors may still be sending this block; withdraw those requests
+        if (peer.getEndgameStats().onFirstCopy(blockKey, remotePeerID)) {
+            for (PeerConnectionHandler handler : peer.getClientHandlers()) {
+                if (handler != this) {
+                    handler.cancelRequest(pieceIndex, offset);
+                }
+            }
+        }
 
-        // Update bitfield
-        peer.updateBitfield(pieceIndex);
-        peer.checkAndSetCompletion();
+        totalNoOfBytesReceivedFromPeer += dataLength;
 
-        // Send have message to all peers
-        for (PeerConnectionHandler handler : peer.getClientHandlers()) {
-            handler.sendHave(pieceIndex);
+        if (pieceComplete) {
+            // Hashed on a worker; onPieceVerified (or a re-request) follows from there
+            peer.verifyPiece(pieceIndex, this);
         }
 
-        // Update download rate
+        // Decide next piece to request
+        requestPiece();
+    }
+
+    /**
+     * This method is used by the hash pool once a piece completed on this connection
+     * matched the manifest and is in our bitfield. Only now is it advertised.
+     */
+    public void onPieceVerified(int pieceIndex) {
+        peer.checkAndSetCompletion();
+        peer.announcePiece(pieceIndex); // HAVE to every neighbor
         piecesDownloaded++;
-        trackDownloadRate++;
-        totalNoOfBytesReceivedFromPeer += pieceData.length;
+        swarmPieces.increment();
+
+        // Log; the strings are built on the logger's writer thread
+        int piecesNow = peer.getPieceCount();
+        long bytesNow = totalNoOfBytesReceivedFromPeer;
+        peer.getLogger().log(Logger.Level.INFO, () -> "Peer [" + peer.getPeerID() + "] has downloaded the piece [" + pieceIndex + "] from [" + remotePeerID + "]. Now the number of pieces it has is [" + piecesNow + "].");
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Total bytes received so far: " + bytesNow + " bytes.");
+    }
 
-        // Log
-        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] has downloaded the piece [" + pieceIndex + "] from [" + remotePeerID + "]. Now the number of pieces it has is [" + getNumberOfPieces() + "].");
-        peer.getLogger().createLog("Total bytes received so far: " + totalNoOfBytesReceivedFromPeer + " bytes.");
+    // Another thread (hash pool, manifest arrival) made pieces requestable again
+    public void requestMore() {
+        try {
+            requestPiece();
+        } catch (IOException e) {
+            System.err.println("Error requesting pieces from peer " + remotePeerID + ": " + e.getMessage());
+        }
+    }
 
-        // Decide next piece to request
-        requestPiece();
+    // This neighbor sent part of a piece that failed its hash check
+    public void onHashFailure() {
+        hashFailures.increment();
+    }
+
+    // Drops the connection, e.g. after too many corrupt pieces
+    public void close() {
+        transport.close();
+    }
+
+    public boolean hasPendingControl() {
+        return transport.hasPendingControl();
+    }
+
+    // Handle CANCEL: the remote peer no longer needs a block it requested. If the PIECE is
+    // still waiting in the outbound queue it is dropped, and no longer counted as uploaded.
+    private void handleCancelMessage(MessageView message) {
+        int pieceIndex = message.getInt(0);
+        int offset = peer.isBlockMode() ? message.getInt(4) : 0;
+        long dropped = transport.cancelPiece(pieceIndex, offset);
+        if (dropped > 0) {
+            bytesUp.add(-dropped);
+            swarmBytesUp.add(-dropped);
+        }
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] received CANCEL for piece [" + pieceIndex + "] offset [" + offset + "] from [" + remotePeerID + "]" + (dropped > 0 ? ", dropped the queued block." : "."));
     }
 
-    private void handleHaveMessage(byte[] payload) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(payload);
-        int pieceIndex = buffer.getInt();
+    private void handleHaveMessage(MessageView message) throws IOException {
+        int pieceIndex = message.getInt(0);
+        if (pieceIndex < 0 || pieceIndex >= peer.getTotalPieces()) {
+            peer.getLogger().log(Logger.Level.WARN, "Peer [" + peer.getPeerID() + "] ignored invalid HAVE for piece [" + pieceIndex + "] from [" + remotePeerID + "].");
+            return;
+        }
 
-        // Update remote bitfield
-        setPieceAvailable(pieceIndex);
+        // Update remote bitfield, the swarm-wide availability count and our interest
+        synchronized (interestLock) {
+            if (remotePeersBitfieldMessage.set(pieceIndex)) {
+                peer.getPiecePicker().increment(pieceIndex);
+                if (!peer.hasPiece(pieceIndex) && wantedPieces++ == 0) {
+                    sendInterested(); // First piece they have that we lack
+                }
+            }
+        }
 
-        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] received the 'have' message from [" + remotePeerID + "] for the piece [" + pieceIndex + "].");
+        peer.getLogger().log(Logger.Level.INFO, () -> "Peer [" + peer.getPeerID() + "] received the 'have' message from [" + remotePeerID + "] for the piece [" + pieceIndex + "].");
 
-        // Determine if interested
         if (!peer.hasPiece(pieceIndex)) {
-            sendInterested();
-            interested = true;
+            requestPiece(); // Fill any free slot in the request window
         }
         // NEW: Check again on HAVE if remote peer has full file
         if (getremotePeersBitfieldMessagePieceCount() == peer.getTotalPieces()) {
@@ -205,27 +445,28 @@ public class PeerConnectionHandler implements Runnable {
         logPeerStatusSummary();
     }
 
-        // Count how many pieces the remote peer currently has
-    private int getremotePeersBitfieldMessagePieceCount() {
-        int count = 0;
-        for (int i = 0; i < peer.getTotalPieces(); i++) {
-            if (hasPiece(i)) count++;
-        }
-        return count;
+    // Count how many pieces the remote peer currently has (cached in the bitfield)
+    public int getremotePeersBitfieldMessagePieceCount() {
+        return remotePeersBitfieldMessage.cardinality();
     }
 
     // Handle CHOKE message: stop sending requests to this peer
     private void handleChokeMessage() {
-        choked = true;
+        chokedByRemote = true;
+        chokesReceived.increment();
         peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] is choked by [" + remotePeerID + "].");
 
+        // A choking peer discards our pending requests, so let other neighbors pick them up
+        releaseOutstandingRequests();
+
         // Update neighbor status in logs
         logPeerStatusSummary();
     }
 
     // Handle UNCHOKE message: we're now allowed to request pieces again
     private void handleUnchokeMessage() throws IOException {
-        choked = false;
+        chokedByRemote = false;
+        unchokesReceived.increment();
         peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] is unchoked by [" + remotePeerID + "].");
 
         // Log the status of this neighbor
@@ -235,34 +476,60 @@ public class PeerConnectionHandler implements Runnable {
         requestPiece();
     }
 
-    // Send INTERESTED message to let the peer know we want pieces
+    /**
+     * This method is used when we complete a piece, on whichever thread completed it.
+     * If the remote peer has that piece, there is one less piece we want from it,
+     * and NOT INTERESTED is sent once nothing is left.
+     */
+    public void onLocalPieceCompleted(int pieceIndex) {
+        synchronized (interestLock) {
+            if (!remotePeersBitfieldMessage.get(pieceIndex) || --wantedPieces > 0) {
+                return;
+            }
+            // A HAVE racing with our own completion can leave the count one short, so
+            // confirm with an exact word-level count before changing the interest state
+            wantedPieces = remotePeersBitfieldMessage.countNotIn(peer.getLocalBitfield());
+            if (wantedPieces == 0) {
+                try {
+                    sendNotInterested();
+                } catch (IOException e) {
+                    System.err.println("Error sending NOT INTERESTED to peer " + remotePeerID + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Send INTERESTED message to let the peer know we want pieces (only on a change)
     private void sendInterested() throws IOException {
-        Message message = new Message(P2PMessages.INTERESTED);
-        message.sendMessage(socket);
-        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent INTERESTED message to [" + remotePeerID + "].");
+        if (interestedInRemote) {
+            return;
+        }
+        interestedInRemote = true;
+        transport.send(P2PMessages.INTERESTED);
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent INTERESTED message to [" + remotePeerID + "].");
     }
 
-    // Send NOT INTERESTED message when we no longer need pieces from this peer
+    // Send NOT INTERESTED message when we no longer need pieces from this peer (only on a change)
     private void sendNotInterested() throws IOException {
-        Message message = new Message(P2PMessages.NOT_INTERESTED);
-        message.sendMessage(socket);
-        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent NOT INTERESTED message to [" + remotePeerID + "].");
+        if (!interestedInRemote) {
+            return;
+        }
+        interestedInRemote = false;
+        transport.send(P2PMessages.NOT_INTERESTED);
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent NOT INTERESTED message to [" + remotePeerID + "].");
     }
 
     // Inform the peer that we now have a specific piece
     public void sendHave(int pieceIndex) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(pieceIndex);
-        Message message = new Message(P2PMessages.HAVE, buffer.array());
-        message.sendMessage(socket);
-        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent HAVE message for piece [" + pieceIndex + "] to [" + remotePeerID + "].");
+        transport.send(P2PMessages.HAVE, pieceIndex);
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent HAVE message for piece [" + pieceIndex + "] to [" + remotePeerID + "].");
     }
 
     // Send CHOKE message to stop this peer from requesting pieces from us
     public void sendChoke() throws IOException {
-        Message message = new Message(P2PMessages.CHOKE);
-        message.sendMessage(socket);
         choked = true;
+        chokesSent.increment();
+        transport.send(P2PMessages.CHOKE);
         peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] is choking [" + remotePeerID + "].");
 
         // Log updated status
@@ -271,83 +538,152 @@ public class PeerConnectionHandler implements Runnable {
 
     // Send UNCHOKE message to allow this peer to request pieces from us
     public void sendUnchoke() throws IOException {
-        Message message = new Message(P2PMessages.UNCHOKE);
-        message.sendMessage(socket);
+        // Flip the state first: the peer may answer with REQUESTs before send() returns
         choked = false;
+        unchokesSent.increment();
+        transport.send(P2PMessages.UNCHOKE);
         peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] is unchoking [" + remotePeerID + "].");
 
         // Log updated status
         logPeerStatusSummary();
-
-        // Request a piece now that we’re unchoked
-        requestPiece();
     }
 
-    // Sends the requested piece to the remote peer
-    private void sendPiece(int pieceIndex) throws IOException {
-        String piecePath = peer.getPeerDirectory() + "/piece_" + pieceIndex;
-        File pieceFile = new File(piecePath);
-        byte[] pieceData = new byte[(int) pieceFile.length()];
-        try (FileInputStream fis = new FileInputStream(pieceFile)) {
-            fis.read(pieceData);
+    // Sends the requested piece (or one block of it) to the remote peer. Only the small
+    // header is built on the heap; the body goes from the file to the socket with transferTo.
+    private void sendPiece(int pieceIndex, int offset, int length) throws IOException {
+        int headerLength = peer.isBlockMode() ? 13 : 9;
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(headerLength - 4 + length); // Type, index[, offset] and body
+        header.put(P2PMessages.PIECE.getValue());
+        header.putInt(pieceIndex);
+        if (peer.isBlockMode()) {
+            header.putInt(offset);
         }
-
-        ByteBuffer buffer = ByteBuffer.allocate(4 + pieceData.length);
-        buffer.putInt(pieceIndex);
-        buffer.put(pieceData);
-
-        Message message = new Message(P2PMessages.PIECE, buffer.array());
-        message.sendMessage(socket);
+        header.flip();
+        transport.sendPiece(header, peer.getStorage(), pieceIndex, offset, length);
     }
 
-    // Selects a piece we don't have but the remote peer does, then sends a REQUEST message
+    // Keeps the request window full: picks pieces we don't have and the remote peer does,
+    // and requests their blocks that no other neighbor is already sending
     private void requestPiece() throws IOException {
-        if (choked) {
+        if (chokedByRemote) {
             return; // Can't request if we're choked
         }
-        List<Integer> missingPieces = new ArrayList<>();
-        for (int i = 0; i < peer.getTotalPieces(); i++) {
-            if (!peer.hasPiece(i) && hasPiece(i)) {
-                missingPieces.add(i);
+        if (peer.getManifest() == null) {
+            return; // Nothing could be verified yet; requests start when the MANIFEST arrives
+        }
+        PiecePicker picker = peer.getPiecePicker();
+        while (pipeline.hasRoom()) {
+            // Ask the picker (rarest first by default), then take the first block nobody is fetching
+            int pieceIndex = picker.pick(i -> hasPiece(i) && !peer.isAvoided(i, remotePeerID) && nextFreeBlock(i) >= 0);
+            if (pieceIndex < 0) {
+                if (peer.enterEndgame() && requestDuplicateBlock()) {
+                    continue;
+                }
+                return; // Everything they have is done or already in flight from someone
             }
+            int offset = nextFreeBlock(pieceIndex);
+            long blockKey = BlockTracker.key(pieceIndex, offset);
+            if (offset < 0 || !peer.claimRetry(pieceIndex, remotePeerID) || !peer.claimBlock(blockKey)) {
+                continue; // Another neighbor claimed it first
+            }
+            // Recorded first: when another thread runs this, the PIECE may arrive before we get past the send
+            pipeline.onRequestSent(blockKey);
+            sendRequest(P2PMessages.REQUEST, pieceIndex, offset);
+            if (peer.getLogger().isEnabled(Logger.Level.DEBUG)) {
+                int outstanding = pipeline.size();
+                int depth = pipeline.getDepth();
+                peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent REQUEST for piece [" + pieceIndex + "] offset [" + offset + "] to [" + remotePeerID + "]. Outstanding: " + outstanding + "/" + depth + ".");
+            }
+        }
+    }
+
+    // Endgame: re-request a block that is already in flight from another neighbor
+    private boolean requestDuplicateBlock() throws IOException {
+        int pieceIndex = peer.getPiecePicker().pickAny(i -> hasPiece(i) && !peer.isAvoided(i, remotePeerID) && nextDuplicateBlock(i) >= 0);
+        if (pieceIndex < 0) {
+            return false;
+        }
+        int offset = nextDuplicateBlock(pieceIndex);
+        long blockKey = BlockTracker.key(pieceIndex, offset);
+        long originalNanos = peer.getBlockRequestTime(blockKey);
+        if (originalNanos == 0) {
+            peer.claimBlock(blockKey); // The original request was dropped meanwhile
+        } else {
+            peer.getEndgameStats().onDuplicateRequest(blockKey, originalNanos, remotePeerID);
         }
-        if (missingPieces.isEmpty()) {
-            sendNotInterested(); // Nothing to request
-            interested = false;
+        pipeline.onRequestSent(blockKey);
+        sendRequest(P2PMessages.REQUEST, pieceIndex, offset);
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent endgame REQUEST for piece [" + pieceIndex + "] offset [" + offset + "] to [" + remotePeerID + "].");
+        return true;
+    }
+
+    // Withdraws our request for a block that another neighbor already delivered
+    public void cancelRequest(int pieceIndex, int offset) {
+        if (!pipeline.remove(BlockTracker.key(pieceIndex, offset))) {
             return;
         }
+        try {
+            sendRequest(P2PMessages.CANCEL, pieceIndex, offset);
+            peer.getEndgameStats().onCancelSent();
+            peer.getLogger().log(Logger.Level.DEBUG, () -> "Peer [" + peer.getPeerID() + "] sent CANCEL for piece [" + pieceIndex + "] offset [" + offset + "] to [" + remotePeerID + "].");
+        } catch (IOException e) {
+            System.err.println("Error sending CANCEL to peer " + remotePeerID + ": " + e.getMessage());
+        }
+    }
 
-        // Randomly pick one missing piece to request
-        Random random = new Random();
-        int pieceIndex = missingPieces.get(random.nextInt(missingPieces.size()));
+    // REQUEST and CANCEL share a payload: the piece index, plus offset and length in block mode
+    private void sendRequest(P2PMessages type, int pieceIndex, int offset) throws IOException {
+        if (peer.isBlockMode()) {
+            transport.send(type, pieceIndex, offset, peer.getBlockTracker().blockLength(pieceIndex, offset));
+        } else {
+            transport.send(type, pieceIndex);
+        }
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(pieceIndex);
-        Message message = new Message(P2PMessages.REQUEST, buffer.array());
-        message.sendMessage(socket);
-        peer.getLogger().createLog("Peer [" + peer.getPeerID() + "] sent REQUEST for piece [" + pieceIndex + "] to [" + remotePeerID + "].");
+    // Returns the offset of the first block of this piece that is neither written nor requested, or -1
+    private int nextFreeBlock(int pieceIndex) {
+        BlockTracker blocks = peer.getBlockTracker();
+        int pieceLength = blocks.pieceLength(pieceIndex);
+        for (int offset = 0; offset < pieceLength; offset += blocks.getBlockSize()) {
+            if (!blocks.isReceived(pieceIndex, offset) && !peer.isBlockRequested(BlockTracker.key(pieceIndex, offset))) {
+                return offset;
+            }
+        }
+        return -1;
     }
 
-    // Save the received piece to disk
-    private void savePiece(int pieceIndex, byte[] pieceData) throws IOException {
-        String piecePath = peer.getPeerDirectory() + "/piece_" + pieceIndex;
-        try (FileOutputStream fos = new FileOutputStream(piecePath)) {
-            fos.write(pieceData);
+    // Returns the first block of this piece that is not written and not already requested on this connection, or -1
+    private int nextDuplicateBlock(int pieceIndex) {
+        BlockTracker blocks = peer.getBlockTracker();
+        int pieceLength = blocks.pieceLength(pieceIndex);
+        for (int offset = 0; offset < pieceLength; offset += blocks.getBlockSize()) {
+            if (!blocks.isReceived(pieceIndex, offset) && !pipeline.isOutstanding(BlockTracker.key(pieceIndex, offset))) {
+                return offset;
+            }
         }
+        return -1;
     }
 
-    // Check if the remote peer has a specific piece
-    private boolean hasPiece(int index) {
-        int byteIndex = index / 8;
-        int bitIndex = 7 - (index % 8);
-        return (remotePeersBitfieldMessage[byteIndex] & (1 << bitIndex)) != 0;
+    // Gives back every block still requested on this connection so other neighbors can fetch it
+    private void releaseOutstandingRequests() {
+        for (long blockKey : pipeline.clear()) {
+            peer.releaseBlock(blockKey);
+        }
+        peer.releaseRetries(remotePeerID);
+    }
+
+    // Write a received block to storage at its place inside the piece, straight from the read buffer.
+    // In NIO mode this runs on the selector thread (see NioConnection)
+    private void saveBlock(int pieceIndex, int offset, ByteBuffer blockData) throws IOException {
+        long start = System.nanoTime();
+        peer.getStorage().writeBlock(pieceIndex, offset, blockData);
+        swarmDiskWrite.record((System.nanoTime() - start) / 1000);
     }
 
-    // Mark a specific piece as available in the remote bitfield
-    private void setPieceAvailable(int index) {
-        int byteIndex = index / 8;
-        int bitIndex = 7 - (index % 8);
-        remotePeersBitfieldMessage[byteIndex] |= (1 << bitIndex);
+    // Check if the remote peer has a specific piece
+    private boolean hasPiece(int index) {
+        return remotePeersBitfieldMessage.get(index);
     }
 
     // Returns if this peer is currently interested in pieces from the remote peer
@@ -360,27 +696,37 @@ public class PeerConnectionHandler implements Runnable {
         return choked;
     }
 
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     // Get the ID of the remote peer
     public int getRemotePeerID() {
         return remotePeerID;
     }
 
-    // Returns and resets this peer’s download rate used for neighbor selection
-    public int gettrackDownloadRate() {
-        int rate = trackDownloadRate;
-        trackDownloadRate = 0; // Reset for next interval
-        return rate;
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    // How many of the given pieces the remote peer lacks
+    public int countMissing(Bitfield pieces) {
+        return pieces.countNotIn(remotePeersBitfieldMessage);
+    }
+
+    // Smoothed bytes/s received from this neighbor; reading it changes nothing
+    public double getDownloadRate() {
+        return downloadRate.bytesPerSecond();
+    }
+
+    // Smoothed bytes/s of PIECE bodies written to this neighbor
+    public double getUploadRate() {
+        return transport.getUploadRate().bytesPerSecond();
     }
 
     // Count how many pieces this peer has
     public int getNumberOfPieces() {
-        int count = 0;
-        for (int i = 0; i < peer.getTotalPieces(); i++) {
-            if (peer.hasPiece(i)) {
-                count++;
-            }
-        }
-        return count;
+        return peer.getPieceCount();
     }
 
     // Returns true if this peer has the complete file
@@ -396,11 +742,12 @@ public class PeerConnectionHandler implements Runnable {
         }
     }
 
-    // Logs whether this peer is interested/choked in a human-readable way
+    // Logs whether this peer is interested/choked in a human-readable way (DEBUG, called on every state change)
     private void logPeerStatusSummary() {
-        String status = "Neighbor [" + remotePeerID + "]: " +
-                        (choked ? "Choked" : "Unchoked") + ", " +
-                        (interested ? "Interested" : "Not Interested");
-        peer.getLogger().createLog(status);
+        boolean chokedNow = choked;
+        boolean interestedNow = interested;
+        peer.getLogger().log(Logger.Level.DEBUG, () -> "Neighbor [" + remotePeerID + "]: " +
+                        (chokedNow ? "Choked" : "Unchoked") + ", " +
+                        (interestedNow ? "Interested" : "Not Interested"));
     }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payload of a PEX message (type 10): listening addresses of some of the
+ * sender's neighbors, so peers learn about each other without asking the
+ * tracker. Each entry is
+ *
+ *   peer ID (4 bytes) | port (4 bytes) | host length (2 bytes) | host (UTF-8)
+ *
+ * and at most MAX_ENTRIES are sent at a time.
+ */
+public final class PeerExchange {
+    public static final int MAX_ENTRIES = 50;
+    // Host names are at most 255 bytes, so this bounds a PEX payload
+    public static final int MAX_PAYLOAD = MAX_ENTRIES * (10 + 255);
+
+    private PeerExchange() {
+    }
+
+    public static byte[] encode(List<PeerConfiguration> peers) {
+        List<byte[]> hosts = new ArrayList<>();
+        int length = 0;
+        int count = Math.min(peers.size(), MAX_ENTRIES);
+        for (int i = 0; i < count; i++) {
+            byte[] host = peers.get(i).hostName.getBytes(StandardCharsets.UTF_8);
+            if (host.length > 255) {
+                host = new byte[0]; // Not a valid host name; decode() drops the entry
+            }
+            hosts.add(host);
+            length += 10 + host.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        for (int i = 0; i < count; i++) {
+            PeerConfiguration peer = peers.get(i);
+            payload.putInt(peer.ID).putInt(peer.portNumber).putShort((short) hosts.get(i).length).put(hosts.get(i));
+        }
+        return payload.array();
+    }
+
+    // Parses a PEX payload; a truncated or oversized one yields the entries before the damage
+    public static List<PeerConfiguration> decode(byte[] payload) {
+        List<PeerConfiguration> peers = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            while (buffer.hasRemaining() && peers.size() < MAX_ENTRIES) {
+                int id = buffer.getInt();
+                int port = buffer.getInt();
+                byte[] host = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(host);
+                if (port > 0 && port < 65536 && host.length > 0) {
+                    peers.add(new PeerConfiguration(id, new String(host, StandardCharsets.UTF_8), port, false));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // Keep what was complete
+        }
+        return peers;
+    }
+}
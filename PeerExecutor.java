@@ -0,0 +1,89 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single place where a peer creates threads for accepting, handshaking,
+ * per-connection readers and the completion checker. In "virtual" mode the
+ * tasks run on virtual threads (Java 21+), so the blocking PeerConnectionHandler
+ * code stays unchanged while thread creation and stack memory become cheap.
+ */
+public class PeerExecutor {
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private final Mode mode;
+    private final ThreadFactory threadFactory;
+    private final ExecutorService executor;
+
+    private PeerExecutor(Mode mode, ThreadFactory threadFactory, ExecutorService executor) {
+        this.mode = mode;
+        this.threadFactory = threadFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * This method is used to build an executor from the ExecutionMode setting.
+     * If virtual threads are requested but the JVM does not support them, it
+     * falls back to platform threads and says so on the console.
+     *
+     * @param modeName   "platform" or "virtual"
+     * @param namePrefix Prefix for thread names, useful in thread dumps
+     */
+    public static PeerExecutor create(String modeName, String namePrefix) {
+        if ("virtual".equalsIgnoreCase(modeName)) {
+            ThreadFactory virtualFactory = virtualThreadFactory(namePrefix);
+            if (virtualFactory != null) {
+                return new PeerExecutor(Mode.VIRTUAL, virtualFactory, null);
+            }
+            System.err.println("Virtual threads are not available on Java " + Runtime.version().feature()
+                    + ", falling back to platform threads.");
+        }
+        ThreadFactory platformFactory = platformThreadFactory(namePrefix);
+        return new PeerExecutor(Mode.PLATFORM, platformFactory, Executors.newCachedThreadPool(platformFactory));
+    }
+
+    public Mode getMode() { return mode; }
+
+    public ThreadFactory threadFactory() { return threadFactory; }
+
+    // Runs the task on its own (platform or virtual) thread
+    public void execute(Runnable task) {
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            threadFactory.newThread(task).start();
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, namePrefix + "-" + counter.getAndIncrement());
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory(), looked up reflectively so the code still compiles on Java 17
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix + "-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Abstraction over how framed messages reach a neighbor, so that PeerConnectionHandler
+// works the same on top of a blocking Socket or a selector-driven SocketChannel.
+// Messages are encoded straight into the transport's outbound queue from primitive
+// fields, so control messages need no Message object or payload array. Sending never
+// waits for the socket: frames are queued and written by the connection's writer.
+public interface PeerTransport {
+    // Message without payload: CHOKE, UNCHOKE, INTERESTED, NOT_INTERESTED
+    void send(P2PMessages type) throws IOException;
+
+    // Message whose payload is one int: HAVE, or REQUEST/CANCEL in whole-piece mode
+    void send(P2PMessages type, int index) throws IOException;
+
+    // REQUEST/CANCEL in block mode: (index, offset, length)
+    void send(P2PMessages type, int index, int offset, int length) throws IOException;
+
+    // Message with an arbitrary payload, e.g. BITFIELD
+    void send(P2PMessages type, byte[] payload) throws IOException;
+
+    // Writes a PIECE frame: the given header (length, type, index[, offset]) followed
+    // by the block body streamed from storage without a heap copy where possible
+    void sendPiece(ByteBuffer header, PieceStorage storage, int pieceIndex, int offset, int length) throws IOException;
+
+    // Drops queued PIECE frames for a block the remote peer cancelled; returns the body bytes dropped
+    long cancelPiece(int pieceIndex, int offset);
+
+    // PIECE frames accepted by sendPiece but not fully written yet (for metrics)
+    int queuedPieces();
+
+    // True while control frames or HAVEs are still queued, so a closing peer can let them go out first
+    boolean hasPendingControl();
+
+    // Rate of PIECE body bytes written to this neighbor
+    RateEstimator getUploadRate();
+
+    // Close the underlying connection
+    void close();
+}
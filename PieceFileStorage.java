@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Original layout: every piece is its own peer_<id>/piece_<n> file. A seeder
+ * splits its file into pieces on startup and a leecher merges them into the
+ * final file once the download completes.
+ */
+public class PieceFileStorage implements PieceStorage {
+    private final String peerDirectory;
+    private final String fileName;
+    private final int pieceSize;
+    private final int totalPieces;
+    private final Logger logger;
+    private final String peerID;
+
+    public PieceFileStorage(String peerDirectory, String fileName, int pieceSize, int totalPieces, Logger logger, String peerID) {
+        this.peerDirectory = peerDirectory;
+        this.fileName = fileName;
+        this.pieceSize = pieceSize;
+        this.totalPieces = totalPieces;
+        this.logger = logger;
+        this.peerID = peerID;
+    }
+
+    private String piecePath(int pieceIndex) {
+        return peerDirectory + "/piece_" + pieceIndex;
+    }
+
+    @Override
+    public void open(boolean hasCompleteFile) throws IOException {
+        if (hasCompleteFile) {
+            splitFileIntoPieces(new File(peerDirectory + "/" + fileName));
+        }
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(piecePath(pieceIndex), "rw")) {
+            FileChannel channel = file.getChannel();
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        }
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        try (RandomAccessFile file = new RandomAccessFile(piecePath(pieceIndex), "r")) {
+            file.seek(offset);
+            file.readFully(data);
+        }
+        return data;
+    }
+
+    @Override
+    public long transferBlock(int pieceIndex, int offset, int length, long sent, WritableByteChannel target) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(piecePath(pieceIndex), "r")) {
+            FileChannel channel = file.getChannel();
+            return channel.transferTo(offset + sent, length - sent, target);
+        }
+    }
+
+    @Override
+    public boolean mayContain(int pieceIndex) {
+        return new File(piecePath(pieceIndex)).length() > 0;
+    }
+
+    @Override
+    public boolean provesPresence() {
+        return true; // A piece file only exists once a block of it was written
+    }
+
+    @Override
+    public void flush() {
+        // Every block is written through its own file and closed, so nothing is buffered here
+    }
+
+    // Reconstructs the original file by combining all the individual pieces
+    @Override
+    public void complete() throws IOException {
+        String outputFilePath = peerDirectory + "/" + fileName;
+        try (FileOutputStream fos = new FileOutputStream(outputFilePath)) {
+            for (int i = 0; i < totalPieces; i++) {
+                File pieceFile = new File(piecePath(i));
+                try (FileInputStream fis = new FileInputStream(pieceFile)) {
+                    byte[] buffer = fis.readAllBytes();
+                    fos.write(buffer); // Append each piece
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Piece files are opened per operation, so nothing stays open
+    }
+
+    // Splits the input file into fixed-size pieces for distribution
+    private void splitFileIntoPieces(File inputFile) throws IOException {
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            byte[] buffer = new byte[pieceSize];
+            int bytesRead;
+            int pieceIndex = 0;
+            while ((bytesRead = fis.readNBytes(buffer, 0, pieceSize)) > 0) {
+                try (FileOutputStream fos = new FileOutputStream(piecePath(pieceIndex))) {
+                    fos.write(buffer, 0, bytesRead);
+                }
+                pieceIndex++;
+            }
+            logger.createLog("Peer [" + peerID + "] has split the file into " + pieceIndex + " pieces.");
+        }
+    }
+}
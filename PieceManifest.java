@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 digest of every piece, so a received piece can be checked before it
+ * is advertised with HAVE. A seeder computes the manifest from its file at
+ * startup, and it reaches leechers in a MANIFEST message (type 9). The payload
+ * is the digests of pieces 0..n-1, 32 bytes each.
+ *
+ * Computing it reads and hashes every piece, so the pieces are split across a
+ * ForkJoinPool. Each worker keeps its own MessageDigest.
+ */
+public class PieceManifest {
+    public static final int DIGEST_LENGTH = 32;
+    // A MANIFEST goes out as one frame, whose length prefix is an int, and lives in one array
+    public static final int MAX_PAYLOAD = Integer.MAX_VALUE - 16;
+
+    // Pieces hashed by one fork-join task before it stops splitting
+    private static final int PIECES_PER_TASK = 4;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final byte[] digests; // DIGEST_LENGTH bytes per piece
+
+    private PieceManifest(byte[] digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * This method is used by a seeder to hash every piece of its file in parallel.
+     *
+     * @param storage Storage that already holds the complete file
+     * @param blocks  Gives the length of each piece (the last one is shorter)
+     * @param pool    Pool whose workers do the reading and hashing
+     */
+    public static PieceManifest compute(PieceStorage storage, BlockTracker blocks, int totalPieces, ForkJoinPool pool) throws IOException {
+        byte[] digests = new byte[payloadLength(totalPieces)];
+        try {
+            pool.invoke(new HashRange(storage, blocks, digests, 0, totalPieces));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new PieceManifest(digests);
+    }
+
+    /**
+     * This method is used to size the MANIFEST of a file, and by a peer at startup to
+     * reject a piece count whose manifest would not fit in a single frame.
+     *
+     * @throws IllegalArgumentException if the payload would exceed MAX_PAYLOAD
+     */
+    public static int payloadLength(int totalPieces) {
+        long length = (long) totalPieces * DIGEST_LENGTH;
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException(totalPieces + " pieces need a MANIFEST of " + length
+                    + " bytes, more than one frame holds; use a larger PieceSize");
+        }
+        return (int) length;
+    }
+
+    // Rebuilds a manifest from a MANIFEST payload; returns null if the length does not match
+    public static PieceManifest fromBytes(byte[] payload, int totalPieces) {
+        if (payload.length != (long) totalPieces * DIGEST_LENGTH) {
+            return null;
+        }
+        return new PieceManifest(payload.clone());
+    }
+
+    // Digests in wire format, for a MANIFEST message
+    public byte[] toBytes() {
+        return digests.clone();
+    }
+
+    /**
+     * This method is used to check a received piece against the manifest.
+     *
+     * @return true if the piece data has the expected digest
+     */
+    public boolean verify(int pieceIndex, byte[] pieceData) {
+        byte[] actual = digest(pieceData);
+        int from = pieceIndex * DIGEST_LENGTH; // No overflow: payloadLength() bounded the whole manifest
+        return Arrays.equals(actual, 0, DIGEST_LENGTH, digests, from, from + DIGEST_LENGTH);
+    }
+
+    public boolean sameAs(PieceManifest other) {
+        return Arrays.equals(digests, other.digests);
+    }
+
+    private static byte[] digest(byte[] data) {
+        MessageDigest sha256 = SHA256.get();
+        sha256.reset();
+        return sha256.digest(data);
+    }
+
+    // Hashes pieces [from, to), splitting in halves until the range is small
+    private static final class HashRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PieceStorage storage;
+        private final BlockTracker blocks;
+        private final byte[] digests;
+        private final int from;
+        private final int to;
+
+        HashRange(PieceStorage storage, BlockTracker blocks, byte[] digests, int from, int to) {
+            this.storage = storage;
+            this.blocks = blocks;
+            this.digests = digests;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PIECES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashRange(storage, blocks, digests, from, mid),
+                          new HashRange(storage, blocks, digests, mid, to));
+                return;
+            }
+            try {
+                for (int i = from; i < to; i++) {
+                    byte[] piece = storage.readBlock(i, 0, blocks.pieceLength(i));
+                    System.arraycopy(digest(piece), 0, digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
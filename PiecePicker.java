@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * Central piece selection for a peer. It keeps how many neighbors have each
+ * piece, updated incrementally from BITFIELD, HAVE and disconnects, and groups
+ * the pieces we still need into buckets by that count. Asking for "the rarest
+ * piece this neighbor has that I lack" then only walks the lowest buckets
+ * until a match is found instead of every piece of the file.
+ */
+public class PiecePicker {
+    public enum Policy {
+        RANDOM_FIRST,   // Random pieces until a few are complete (so we have something to trade), then rarest first
+        RAREST_FIRST,   // Always the piece held by the fewest neighbors
+        SEQUENTIAL;     // Lowest missing index first, e.g. for streaming
+
+        // Parses the PieceSelection value from Common.cfg, e.g. "rarest-first"
+        public static Policy fromConfig(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // Number of completed pieces after which RANDOM_FIRST switches to rarest first
+    private static final int RANDOM_FIRST_PIECES = 4;
+
+    private final Policy policy;
+    private final int totalPieces;
+    private final int[] availability;                      // Neighbors that have each piece
+    private final BitSet needed;                           // Pieces we do not have yet
+    private final List<BitSet> buckets = new ArrayList<>(); // buckets[n] = needed pieces that exactly n neighbors have
+    private int completedPieces;
+
+    public PiecePicker(Policy policy, int totalPieces, Bitfield alreadyHave) {
+        this.policy = policy;
+        this.totalPieces = totalPieces;
+        this.availability = new int[totalPieces];
+        this.needed = new BitSet(totalPieces);
+        needed.set(0, totalPieces);
+        for (int i = alreadyHave.nextSetBit(0); i >= 0; i = alreadyHave.nextSetBit(i + 1)) {
+            needed.clear(i);
+        }
+        this.completedPieces = totalPieces - needed.cardinality();
+        bucket(0).or(needed);
+    }
+
+    public Policy getPolicy() { return policy; }
+
+    // A neighbor's BITFIELD arrived: every piece it has becomes one step more common
+    public synchronized void addPeer(Bitfield remoteBitfield) {
+        for (int i = remoteBitfield.nextSetBit(0); i >= 0; i = remoteBitfield.nextSetBit(i + 1)) {
+            increment(i);
+        }
+    }
+
+    // A neighbor disconnected: its pieces no longer count towards availability
+    public synchronized void removePeer(Bitfield remoteBitfield) {
+        for (int i = remoteBitfield.nextSetBit(0); i >= 0; i = remoteBitfield.nextSetBit(i + 1)) {
+            decrement(i);
+        }
+    }
+
+    // A neighbor announced a new piece with HAVE
+    public synchronized void increment(int pieceIndex) {
+        int count = availability[pieceIndex]++;
+        if (needed.get(pieceIndex)) {
+            bucket(count).clear(pieceIndex);
+            bucket(count + 1).set(pieceIndex);
+        }
+    }
+
+    private void decrement(int pieceIndex) {
+        int count = availability[pieceIndex]--;
+        if (needed.get(pieceIndex)) {
+            bucket(count).clear(pieceIndex);
+            bucket(count - 1).set(pieceIndex);
+        }
+    }
+
+    // We finished a piece, so it is no longer a candidate
+    public synchronized void pieceCompleted(int pieceIndex) {
+        if (needed.get(pieceIndex)) {
+            needed.clear(pieceIndex);
+            bucket(availability[pieceIndex]).clear(pieceIndex);
+            completedPieces++;
+        }
+    }
+
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    // Pieces held by the fewest neighbors, whether we need them or not (for the seed-mode choker)
+    public synchronized Bitfield rarestPieces() {
+        int min = Integer.MAX_VALUE;
+        for (int count : availability) {
+            min = Math.min(min, count);
+        }
+        Bitfield rarest = new Bitfield(totalPieces);
+        for (int i = 0; i < totalPieces; i++) {
+            if (availability[i] == min) {
+                rarest.set(i);
+            }
+        }
+        return rarest;
+    }
+
+    public synchronized int remainingPieces() {
+        return totalPieces - completedPieces;
+    }
+
+    // Lowest needed piece that passes the filter, regardless of policy (used in endgame)
+    public synchronized int pickAny(IntPredicate candidate) {
+        return firstMatch(needed, 0, candidate);
+    }
+
+    /**
+     * This method is used to choose the next piece to request from one neighbor.
+     *
+     * @param candidate Accepts pieces the neighbor has and that still have a block to request
+     * @return The chosen piece index, or -1 if no needed piece passes the filter
+     */
+    public synchronized int pick(IntPredicate candidate) {
+        switch (policy) {
+            case SEQUENTIAL:
+                return firstMatch(needed, 0, candidate);
+            case RANDOM_FIRST:
+                if (completedPieces < RANDOM_FIRST_PIECES) {
+                    return firstMatch(needed, randomStart(), candidate);
+                }
+                return rarest(candidate);
+            default:
+                return rarest(candidate);
+        }
+    }
+
+    // Walks the buckets from the rarest upwards; pieces nobody has (bucket 0) are skipped
+    private int rarest(IntPredicate candidate) {
+        for (int count = 1; count < buckets.size(); count++) {
+            BitSet bucket = buckets.get(count);
+            if (bucket.isEmpty()) {
+                continue;
+            }
+            // Start at a random position so neighbors do not all pick the same rare piece
+            int pieceIndex = firstMatch(bucket, randomStart(), candidate);
+            if (pieceIndex >= 0) {
+                return pieceIndex;
+            }
+        }
+        return -1;
+    }
+
+    // Scans the set bits starting at 'from', wrapping around once
+    private int firstMatch(BitSet pieces, int from, IntPredicate candidate) {
+        for (int i = pieces.nextSetBit(from); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            if (candidate.test(i)) {
+                return i;
+            }
+        }
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < from; i = pieces.nextSetBit(i + 1)) {
+            if (candidate.test(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int randomStart() {
+        return totalPieces == 0 ? 0 : ThreadLocalRandom.current().nextInt(totalPieces);
+    }
+
+    private BitSet bucket(int count) {
+        while (buckets.size() <= count) {
+            buckets.add(new BitSet(totalPieces));
+        }
+        return buckets.get(count);
+    }
+}
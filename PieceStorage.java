@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where the pieces of the shared file live on disk. Blocks are addressed by
+ * piece index and offset inside the piece, so callers never deal with file
+ * layout. Backends, by StorageMode:
+ *   single-file  SingleFileStorage: one preallocated data file (the default)
+ *   piece-files  PieceFileStorage: one peer_<id>/piece_<n> file per piece
+ *   mmap         MappedFileStorage: the data file mapped in LRU windows
+ * A FileList always uses MultiFileStorage, the files of the list laid end to end.
+ */
+public interface PieceStorage {
+    // Prepares the backend; a peer that starts with the complete file serves from it
+    void open(boolean hasCompleteFile) throws IOException;
+
+    // Writes the remaining bytes of data (a received block) at its offset inside the piece
+    void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException;
+
+    // Reads one block (or a whole piece) for uploading
+    byte[] readBlock(int pieceIndex, int offset, int length) throws IOException;
+
+    /**
+     * This method is used to stream part of a block straight from disk to a socket
+     * (FileChannel.transferTo, i.e. sendfile) without copying it through the heap.
+     *
+     * @param sent   Bytes of this block already written by earlier calls
+     * @return Bytes written by this call; may be 0 if a non-blocking target is full
+     */
+    long transferBlock(int pieceIndex, int offset, int length, long sent, WritableByteChannel target) throws IOException;
+
+    // True if an earlier run may have left this piece on disk; such pieces are hashed before being requested
+    boolean mayContain(int pieceIndex);
+
+    // True if mayContain() is only true for data that was actually written, not for space a
+    // preallocated file reserved; otherwise only journaled pieces are worth hashing on restart
+    boolean provesPresence();
+
+    // Forces the blocks written so far to the disk, before a resume checkpoint records them
+    void flush() throws IOException;
+
+    // Called once every piece has been written; produces the final file if the layout needs it
+    void complete() throws IOException;
+
+    void close();
+}
@@ -0,0 +1,36 @@
+/**
+ * Exponentially weighted byte rate of one direction of one connection, used by
+ * the choker to rank neighbors. Every recorded byte counts once; its weight
+ * decays as e^(-age / timeConstant), so recent transfers dominate and a
+ * neighbor that stops sending fades out smoothly instead of dropping to zero at
+ * an interval boundary.
+ *
+ * Reading the rate only decays a copy of the state, so any number of readers
+ * (the choker, metrics, JMX) see consistent values and never disturb them.
+ */
+public class RateEstimator {
+    private final double timeConstantNanos;
+    private double weightedBytes; // Sum of bytes * e^(-(lastUpdate - t) / timeConstant), guarded by this
+    private long lastUpdate;
+
+    public RateEstimator(long timeConstantMillis) {
+        this.timeConstantNanos = Math.max(1, timeConstantMillis) * 1e6;
+        this.lastUpdate = System.nanoTime();
+    }
+
+    // Adds bytes that were just received or written
+    public synchronized void record(long bytes) {
+        long now = System.nanoTime();
+        weightedBytes = decay(now) + bytes;
+        lastUpdate = now;
+    }
+
+    // Current estimate in bytes per second; has no side effects
+    public synchronized double bytesPerSecond() {
+        return decay(System.nanoTime()) * 1e9 / timeConstantNanos;
+    }
+
+    private double decay(long now) {
+        return weightedBytes * Math.exp(-(now - lastUpdate) / timeConstantNanos);
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outstanding-request window for one neighbor. It remembers when each REQUEST
+ * (keyed by BlockTracker.key(index, offset)) went out and sizes the window from
+ * the measured round trip and throughput of that neighbor, so enough requests
+ * stay in flight to cover the bandwidth-delay product of the link.
+ *
+ * Mostly used by the thread reading from the connection; in endgame another
+ * connection may cancel an entry, so the methods are synchronized.
+ */
+public class RequestPipeline {
+    private static final double ALPHA = 0.25; // Weight of a new sample in the moving averages
+
+    private final int maxDepth;
+    private final Map<Long, Long> outstanding = new LinkedHashMap<>(); // Block key -> time the REQUEST was sent
+    private int depth = 2;
+
+    private long minRttNanos = Long.MAX_VALUE;       // Best round trip seen, i.e. latency plus one block transfer
+    private double bytesPerNano = 0;                 // Smoothed delivery rate from this neighbor
+    private long lastArrivalNanos = 0;
+
+    public RequestPipeline(int maxDepth) {
+        this.maxDepth = Math.max(1, maxDepth);
+        this.depth = Math.min(depth, this.maxDepth);
+    }
+
+    // Returns true if another request can be sent without exceeding the window
+    public synchronized boolean hasRoom() {
+        return outstanding.size() < depth;
+    }
+
+    public synchronized boolean isEmpty() {
+        return outstanding.isEmpty();
+    }
+
+    public synchronized boolean isOutstanding(long blockKey) {
+        return outstanding.containsKey(blockKey);
+    }
+
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    // Records that a REQUEST for this block was just sent
+    public synchronized void onRequestSent(long blockKey) {
+        long now = System.nanoTime();
+        if (outstanding.isEmpty()) {
+            lastArrivalNanos = now; // Link was idle, so the next gap measures transfer time only
+        }
+        outstanding.put(blockKey, now);
+    }
+
+    /**
+     * This method is used to account for an arrived block and resize the window.
+     *
+     * @return Nanoseconds from the REQUEST to this block, or -1 if it was not requested on this connection
+     */
+    public synchronized long onBlockReceived(long blockKey, int bytes) {
+        Long sentAt = outstanding.remove(blockKey);
+        if (sentAt == null) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long latency = now - sentAt;
+        minRttNanos = Math.min(minRttNanos, Math.max(1, latency));
+
+        long gap = Math.max(1, now - lastArrivalNanos);
+        double sample = (double) bytes / gap;
+        bytesPerNano = bytesPerNano == 0 ? sample : (1 - ALPHA) * bytesPerNano + ALPHA * sample;
+        lastArrivalNanos = now;
+
+        // Blocks needed to cover one round trip at the measured rate, plus one so the link never idles
+        double bdpBlocks = bytesPerNano * minRttNanos / Math.max(1, bytes);
+        depth = (int) Math.max(1, Math.min(maxDepth, Math.ceil(bdpBlocks) + 1));
+        return latency;
+    }
+
+    // Forgets one request without taking an RTT sample, e.g. after sending CANCEL
+    public synchronized boolean remove(long blockKey) {
+        return outstanding.remove(blockKey) != null;
+    }
+
+    // Drops every outstanding request (on CHOKE or disconnect) and returns their block keys
+    public synchronized List<Long> clear() {
+        List<Long> dropped = new ArrayList<>(outstanding.keySet());
+        outstanding.clear();
+        return dropped;
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Download state that survives a restart, so a leecher does not fetch pieces it
+ * already has on disk again. It lives in two files next to the data:
+ *
+ *   <file>.resume   checkpoint: file and piece size, the piece manifest and the
+ *                   bitfield, with a CRC32. Written to a temp file, forced to
+ *                   disk and renamed over the old one, so it is always whole.
+ *   <file>.journal  8-byte records (piece index, index ^ RECORD_CHECK) appended
+ *                   after every verified piece. A torn last record fails the
+ *                   check and is ignored.
+ *
+ * A checkpoint is only written after the storage has been forced to disk, so
+ * its pieces are trusted on restart. Journal records since the last checkpoint
+ * may be ahead of the data after a power loss, so those pieces are verified
+ * again before they are used.
+ */
+public class ResumeJournal {
+    private static final int MAGIC = 0x50325052; // "P2PR"
+    private static final int VERSION = 1;
+    private static final int RECORD_CHECK = 0x5A5A5A5A;
+
+    private final File checkpointFile;
+    private final File journalFile;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int totalPieces;
+    private FileChannel journal;          // Guarded by this
+    private boolean dirty = false;        // Pieces were appended since the last checkpoint
+    private final BitSet sinceSnapshot;   // Pieces appended after the current checkpoint's snapshot
+
+    // What load() found
+    public static final class State {
+        public final Bitfield trusted;      // Pieces covered by the checkpoint
+        public final BitSet unconfirmed;    // Pieces journaled after the last checkpoint
+        public final PieceManifest manifest; // Null without a valid checkpoint
+
+        State(Bitfield trusted, BitSet unconfirmed, PieceManifest manifest) {
+            this.trusted = trusted;
+            this.unconfirmed = unconfirmed;
+            this.manifest = manifest;
+        }
+    }
+
+    public ResumeJournal(File directory, String fileName, long fileSize, int pieceSize, int totalPieces) {
+        this.checkpointFile = new File(directory, fileName + ".resume");
+        this.journalFile = new File(directory, fileName + ".journal");
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.totalPieces = totalPieces;
+        this.sinceSnapshot = new BitSet(totalPieces);
+    }
+
+    /**
+     * This method is used once at startup, before pieces are appended. A checkpoint
+     * for a different file or piece size, or one that fails its CRC, is ignored.
+     */
+    public State load() throws IOException {
+        Bitfield trusted = new Bitfield(totalPieces);
+        PieceManifest manifest = null;
+        if (checkpointFile.exists()) {
+            manifest = readCheckpoint(trusted);
+            if (manifest == null) {
+                trusted = new Bitfield(totalPieces); // Unusable checkpoint: nothing is trusted
+            }
+        }
+        BitSet unconfirmed = new BitSet(totalPieces);
+        if (journalFile.exists()) {
+            ByteBuffer record = ByteBuffer.allocate(8);
+            try (FileChannel in = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                while (true) {
+                    record.clear();
+                    while (record.hasRemaining() && in.read(record) > 0) {
+                        // Keep reading until the record is complete or the file ends
+                    }
+                    if (record.hasRemaining()) {
+                        break; // End of journal, possibly a torn record
+                    }
+                    int pieceIndex = record.getInt(0);
+                    if ((pieceIndex ^ RECORD_CHECK) != record.getInt(4) || pieceIndex < 0 || pieceIndex >= totalPieces) {
+                        break;
+                    }
+                    if (!trusted.get(pieceIndex)) {
+                        unconfirmed.set(pieceIndex);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return new State(trusted, unconfirmed, manifest);
+    }
+
+    // Records a verified piece; the write reaches the OS right away but is only forced at checkpoints
+    public synchronized void append(int pieceIndex) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            ByteBuffer record = ByteBuffer.allocate(8).putInt(pieceIndex).putInt(pieceIndex ^ RECORD_CHECK);
+            record.flip();
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            sinceSnapshot.set(pieceIndex);
+            dirty = true;
+        } catch (IOException e) {
+            System.err.println("Error appending to resume journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This method is used periodically and once the download completes. The bitfield
+     * is copied first and the storage forced to disk after that, so every piece in
+     * the checkpoint is durable. The checkpoint then replaces the journal, except for
+     * pieces appended meanwhile, which are written back to it.
+     */
+    public void checkpoint(Bitfield bitfield, PieceManifest manifest, PieceStorage storage) throws IOException {
+        byte[] wire;
+        synchronized (this) {
+            if (journal == null || manifest == null || !dirty) {
+                return;
+            }
+            wire = bitfield.toByteArray(); // Pieces are appended after their bit is set
+            sinceSnapshot.clear();
+            dirty = false;
+        }
+        storage.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fileSize);
+        out.writeInt(pieceSize);
+        out.writeInt(totalPieces);
+        byte[] digests = manifest.toBytes();
+        out.writeInt(digests.length);
+        out.write(digests);
+        out.writeInt(wire.length);
+        out.write(wire);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            file.write(bytes.toByteArray());
+            file.getFD().sync();
+        }
+        synchronized (this) {
+            if (journal == null) {
+                return;
+            }
+            Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // A crash before the truncate only leaves records the checkpoint already covers
+            journal.truncate(0);
+            BitSet pending = (BitSet) sinceSnapshot.clone();
+            sinceSnapshot.clear();
+            for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+                append(i);
+            }
+            journal.force(false);
+        }
+    }
+
+    public synchronized void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resume journal: " + e.getMessage());
+            }
+            journal = null;
+        }
+    }
+
+    // Fills 'trusted' and returns the stored manifest, or null if the checkpoint is unusable
+    private PieceManifest readCheckpoint(Bitfield trusted) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+            byte[] all = in.readAllBytes();
+            if (all.length < 8) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(all, 0, all.length - 8);
+            ByteBuffer buffer = ByteBuffer.wrap(all);
+            if (buffer.getLong(all.length - 8) != crc.getValue()
+                    || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != fileSize || buffer.getInt() != pieceSize || buffer.getInt() != totalPieces) {
+                return null;
+            }
+            byte[] digests = new byte[buffer.getInt()];
+            buffer.get(digests);
+            byte[] wire = new byte[buffer.getInt()];
+            buffer.get(wire);
+            PieceManifest manifest = PieceManifest.fromBytes(digests, totalPieces);
+            if (manifest != null) {
+                trusted.load(wire);
+            }
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable resume checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+}
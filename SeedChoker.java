@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chooses which neighbors a seeder unchokes. Nothing comes back from a leecher,
+ * so tit-for-tat does not apply. Instead the upload goes where it helps the
+ * swarm most, and every leecher still gets its turn:
+ *
+ *   - A neighbor keeps its slot for at most rotationRounds rechokes in a row.
+ *     While anyone is waiting, one slot is always handed over, so slots rotate
+ *     round-robin through all interested neighbors.
+ *   - Of the neighbors that may keep their slot, the ones taking the most
+ *     upload are kept. A neighbor that cannot absorb what we send is the first
+ *     to be rotated out.
+ *   - Waiting neighbors are ranked by how much they still need: first by how
+ *     few pieces they have, then by how many of the swarm's rarest pieces they
+ *     lack, then by how long they have waited. A neighbor that
+ *     has waited a full rotation goes ahead of all that, and one that just
+ *     lost its slot goes last, so nobody starves.
+ *
+ * The policy only sees Candidate values, so the swarm simulation in bench/
+ * runs the same code as a real peer.
+ */
+public class SeedChoker {
+    // One interested neighbor as seen at a rechoke
+    public static final class Candidate {
+        final int id;
+        final double uploadRate;     // Bytes/s we are sending it
+        final int piecesHeld;
+        final int rarePiecesMissing; // Pieces at the swarm's lowest availability that it lacks
+
+        public Candidate(int id, double uploadRate, int piecesHeld, int rarePiecesMissing) {
+            this.id = id;
+            this.uploadRate = uploadRate;
+            this.piecesHeld = piecesHeld;
+            this.rarePiecesMissing = rarePiecesMissing;
+        }
+    }
+
+    private final int rotationRounds;
+    private final Map<Integer, Integer> roundsHeld = new HashMap<>();  // Unchoked neighbors -> rechokes in a row
+    private final Map<Integer, Long> waitingSince = new HashMap<>();   // Choked neighbors -> round they started waiting
+    private long round = 0;
+
+    public SeedChoker(int rotationRounds) {
+        this.rotationRounds = Math.max(1, rotationRounds);
+    }
+
+    /**
+     * This method is used at every rechoke of a seeder.
+     *
+     * @param candidates Interested neighbors
+     * @param slots      Number of preferred neighbors
+     * @return IDs of the neighbors to unchoke
+     */
+    public synchronized List<Integer> select(List<Candidate> candidates, int slots) {
+        round++;
+        Set<Integer> present = new HashSet<>();
+        List<Candidate> holders = new ArrayList<>();
+        List<Candidate> waiting = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            present.add(candidate.id);
+            Integer held = roundsHeld.get(candidate.id);
+            if (held != null && held < rotationRounds) {
+                holders.add(candidate);
+            } else {
+                waiting.add(candidate);
+            }
+        }
+        waitingSince.keySet().retainAll(present);
+
+        // Keep the holders taking the most, leaving one slot to rotate while someone waits
+        holders.sort(Comparator.comparingDouble((Candidate c) -> c.uploadRate).reversed());
+        int keep = Math.max(0, Math.min(holders.size(), candidates.size() > slots ? slots - 1 : slots));
+        List<Integer> chosen = new ArrayList<>();
+        for (int i = 0; i < keep; i++) {
+            chosen.add(holders.get(i).id);
+        }
+        for (int i = keep; i < holders.size(); i++) {
+            waiting.add(holders.get(i));
+        }
+
+        // Fill the rest. Anyone who waited a full rotation goes first and whoever just lost
+        // a slot goes last, so nobody starves; in between, those furthest behind.
+        int rotation = candidates.size();
+        Collections.shuffle(waiting); // Random among exact ties
+        waiting.sort(Comparator.comparingInt((Candidate c) -> round - waitingSince.getOrDefault(c.id, round) >= rotation ? 0 : 1)
+                .thenComparingInt(c -> roundsHeld.containsKey(c.id) ? 1 : 0)
+                .thenComparingInt(c -> c.piecesHeld)
+                .thenComparingInt(c -> -c.rarePiecesMissing)
+                .thenComparingLong(c -> waitingSince.getOrDefault(c.id, round)));
+        for (int i = 0; i < waiting.size() && chosen.size() < slots; i++) {
+            chosen.add(waiting.get(i).id);
+        }
+
+        Set<Integer> unchoked = new HashSet<>(chosen);
+        roundsHeld.keySet().retainAll(unchoked);
+        for (Candidate candidate : candidates) {
+            if (unchoked.contains(candidate.id)) {
+                roundsHeld.merge(candidate.id, 1, Integer::sum);
+                waitingSince.remove(candidate.id);
+            } else {
+                waitingSince.putIfAbsent(candidate.id, round);
+            }
+        }
+        return chosen;
+    }
+}
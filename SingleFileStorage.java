@@ -0,0 +1,103 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores the whole download in its final file. A leecher preallocates the file
+ * once and every block is written with a positional FileChannel write at
+ * index * pieceSize + offset; a seeder serves straight from its original file.
+ * Completion needs no merge step.
+ */
+public class SingleFileStorage implements PieceStorage {
+    private final File dataFile;
+    private final long fileSize;
+    private final int pieceSize;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long existingLength; // Length the data file had before open(), left by an earlier run
+
+    public SingleFileStorage(File dataFile, long fileSize, int pieceSize) {
+        this.dataFile = dataFile;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+    }
+
+    @Override
+    public void open(boolean hasCompleteFile) throws IOException {
+        if (hasCompleteFile) {
+            file = new RandomAccessFile(dataFile, "r");
+        } else {
+            file = new RandomAccessFile(dataFile, "rw");
+            existingLength = dataFile.length();
+            file.setLength(fileSize); // Reserve the full size up front
+        }
+        channel = file.getChannel();
+    }
+
+    // Absolute position of a block inside the data file
+    private long position(int pieceIndex, int offset) {
+        return (long) pieceIndex * pieceSize + offset;
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException {
+        long position = position(pieceIndex, offset);
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = position(pieceIndex, offset);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of " + dataFile);
+            }
+            position += read;
+        }
+        return data;
+    }
+
+    @Override
+    public long transferBlock(int pieceIndex, int offset, int length, long sent, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position(pieceIndex, offset) + sent, length - sent, target);
+    }
+
+    @Override
+    public boolean mayContain(int pieceIndex) {
+        return Math.min(position(pieceIndex + 1, 0), fileSize) <= existingLength;
+    }
+
+    @Override
+    public boolean provesPresence() {
+        return false; // After the first run the whole file is preallocated
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void complete() throws IOException {
+        flush(); // Data is already in place; just make sure it reached the disk
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing " + dataFile + ": " + e.getMessage());
+        }
+    }
+}
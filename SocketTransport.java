@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+// Blocking transport used by the thread-per-connection mode. Frames are queued and
+// written by a writer task of their own, so the reader thread that completes a piece
+// can tell every neighbor about it without waiting for any of their sockets.
+public class SocketTransport implements PeerTransport {
+    private final Socket socket;
+    private final OutboundQueue out;
+    private final RateEstimator uploadRate;
+
+    // uploadLimit may be null when uploads are not capped
+    public SocketTransport(Socket socket, BufferPool pool, TokenBucket uploadLimit, RateEstimator uploadRate, Executor writerExecutor) {
+        this.socket = socket;
+        this.uploadRate = uploadRate;
+        this.out = new OutboundQueue(pool, uploadLimit, uploadRate);
+        writerExecutor.execute(this::writeLoop);
+    }
+
+    @Override
+    public void send(P2PMessages type) throws IOException {
+        check(out.add(type));
+    }
+
+    @Override
+    public void send(P2PMessages type, int index) throws IOException {
+        check(out.add(type, index));
+    }
+
+    @Override
+    public void send(P2PMessages type, int index, int offset, int length) throws IOException {
+        check(out.add(type, index, offset, length));
+    }
+
+    @Override
+    public void send(P2PMessages type, byte[] payload) throws IOException {
+        check(out.add(type, payload));
+    }
+
+    @Override
+    public void sendPiece(ByteBuffer header, PieceStorage storage, int pieceIndex, int offset, int length) throws IOException {
+        check(out.addPiece(header, storage, pieceIndex, offset, length));
+    }
+
+    @Override
+    public long cancelPiece(int pieceIndex, int offset) {
+        return out.cancelPiece(pieceIndex, offset);
+    }
+
+    @Override
+    public int queuedPieces() {
+        return out.queuedPieces();
+    }
+
+    @Override
+    public boolean hasPendingControl() {
+        return out.hasPendingControl();
+    }
+
+    @Override
+    public RateEstimator getUploadRate() {
+        return uploadRate;
+    }
+
+    private void check(boolean queued) throws IOException {
+        if (!queued) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    // Writer task: waits for queued frames and writes them. Uses sendfile when the socket
+    // was created from a SocketChannel, otherwise goes through the socket's OutputStream.
+    private void writeLoop() {
+        try {
+            WritableByteChannel channel = socket.getChannel() != null
+                    ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            // A false return here only means the upload limit paused PIECEs; awaitPending() waits that out
+            while (out.awaitPending()) {
+                out.writeTo(channel);
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Error writing to socket: " + e.getMessage());
+            }
+            close(); // The reader sees the closed socket and disconnects the handler
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            out.close();
+            out.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Runs many swarms in one JVM for services that embed file distribution. All of
+ * them share one listening port, the selector threads, the executor, the
+ * scheduler, the hash pool, the buffer pool and an engine-wide upload and
+ * download cap. Accepted connections are routed by the swarm ID in the remote
+ * handshake (see NioEngine).
+ *
+ *   SwarmEngine engine = new SwarmEngine(6881, settings);
+ *   Peer swarm = engine.addSwarm("1001", directory, common, peers);
+ *   swarm.downloadCompletion().thenAccept(p -> ...);
+ *   engine.removeSwarm(swarm);
+ *
+ * Each swarm is a Peer configured from Properties with the Common.cfg keys and
+ * a list of PeerInfo.cfg entries, one of which is the swarm's own. The engine's
+ * port replaces that entry's port. Its files and log go under the given
+ * directory. Swarm settings that belong to the engine are ignored: ConnectionMode
+ * (always nio), SelectorThreads, ExecutionMode, DirectBuffers and HashThreads.
+ * MaxUploadRate and MaxDownloadRate still cap the swarm, and the engine caps
+ * all of them together.
+ *
+ * Nothing here ends the process. A swarm raises its futures and keeps seeding
+ * until it is removed.
+ */
+public class SwarmEngine implements AutoCloseable {
+    private final int port;
+    private final PeerExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private final ForkJoinPool hashPool;
+    private final BufferPool bufferPool;
+    private final TokenBucket uploadLimit;
+    private final TokenBucket downloadLimit;
+    private final NioEngine nioEngine;
+    private final List<Peer> swarms = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param port     Listening port for every swarm (0 picks a free one, see getPort())
+     * @param settings Engine-wide keys, named as in Common.cfg: SelectorThreads, ExecutionMode,
+     *                 DirectBuffers, HashThreads, HandshakeTimeout, MaxUploadRate, MaxDownloadRate
+     */
+    public SwarmEngine(int port, Properties settings) throws IOException {
+        int selectorThreads = Integer.parseInt(settings.getProperty("SelectorThreads", "2").trim());
+        int hashThreads = Integer.parseInt(settings.getProperty("HashThreads", "0").trim());
+        int handshakeTimeout = Integer.parseInt(settings.getProperty("HandshakeTimeout", "5000").trim());
+        long maxUploadRate = Long.parseLong(settings.getProperty("MaxUploadRate", "0").trim());
+        long maxDownloadRate = Long.parseLong(settings.getProperty("MaxDownloadRate", "0").trim());
+        executor = PeerExecutor.create(settings.getProperty("ExecutionMode", "platform").trim(), "swarm-engine");
+        scheduler = Executors.newScheduledThreadPool(2);
+        hashPool = hashThreads > 0 ? new ForkJoinPool(hashThreads) : new ForkJoinPool();
+        bufferPool = new BufferPool(Boolean.parseBoolean(settings.getProperty("DirectBuffers", "false").trim()));
+        uploadLimit = new TokenBucket(maxUploadRate * 1024L, null);
+        downloadLimit = new TokenBucket(maxDownloadRate * 1024L, null);
+        nioEngine = new NioEngine("engine", selectorThreads, bufferPool, handshakeTimeout);
+        nioEngine.listen(port);
+        nioEngine.start();
+        this.port = nioEngine.getLocalPort();
+        System.out.println("Swarm engine is listening on port " + this.port);
+    }
+
+    /**
+     * This method is used to join a swarm. It returns once the swarm is set up and
+     * dialing its neighbors; the download goes on in the background.
+     *
+     * @param peerID    This node's ID in the swarm; peers must contain an entry for it
+     * @param directory Where peer_<peerID>/ and the swarm's log are kept
+     * @param common    Common.cfg settings of the swarm
+     * @param peers     PeerInfo.cfg entries of the swarm, in order
+     * @throws IllegalStateException if the engine already runs a swarm with the same SwarmKey (or FileName, FileSize and PieceSize)
+     */
+    public Peer addSwarm(String peerID, File directory, Properties common, List<PeerConfiguration> peers) throws IOException {
+        Peer peer = new Peer(peerID, directory, common, peers, this);
+        swarms.add(peer);
+        try {
+            peer.start();
+        } catch (IOException | RuntimeException e) {
+            peer.close();
+            throw e;
+        }
+        return peer;
+    }
+
+    // Leaves the swarm and frees what it holds; the engine's threads keep serving the others
+    public void removeSwarm(Peer peer) {
+        peer.close();
+    }
+
+    public List<Peer> getSwarms() {
+        return new ArrayList<>(swarms);
+    }
+
+    public int getPort() { return port; }
+    public PeerExecutor getExecutor() { return executor; }
+    public ScheduledExecutorService getScheduler() { return scheduler; }
+    public ForkJoinPool getHashPool() { return hashPool; }
+    public BufferPool getBufferPool() { return bufferPool; }
+    public TokenBucket getUploadLimit() { return uploadLimit; }
+    public TokenBucket getDownloadLimit() { return downloadLimit; }
+    public NioEngine getNioEngine() { return nioEngine; }
+
+    // Called by Peer.close()
+    void forget(Peer peer) {
+        swarms.remove(peer);
+    }
+
+    // Removes every swarm, then stops the shared threads and the listening port
+    @Override
+    public void close() {
+        for (Peer peer : swarms) {
+            peer.close();
+        }
+        nioEngine.shutdown();
+        scheduler.shutdownNow();
+        executor.shutdown();
+        hashPool.shutdownNow();
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Byte-rate limiter used for upload and download caps. Tokens (bytes) refill
+ * at a fixed rate up to one second's worth. A caller reserves the bytes it is
+ * about to transfer and gets back how long it has to wait before the next
+ * transfer. The balance may go negative, so a large block is never split or
+ * starved, and the debt is paid off by the next caller's wait.
+ *
+ * Buckets form a hierarchy: a per-neighbor bucket has the peer-wide bucket as
+ * parent, and a reservation is charged to both. Each transfer waits for the
+ * slower of the two, so one neighbor cannot use more than its own cap, and all
+ * neighbors together cannot use more than the global cap. Neighbors reserve
+ * from the shared parent in turn, so the global budget is shared fairly.
+ */
+public class TokenBucket {
+    private final long bytesPerSecond; // 0 = unlimited
+    private final TokenBucket parent;  // Peer-wide bucket, or null
+    private long tokens;               // Guarded by this; negative while in debt
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond, TokenBucket parent) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.parent = parent;
+        this.tokens = this.bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    // True if this bucket or one of its parents has a cap
+    public boolean isLimited() {
+        return bytesPerSecond > 0 || (parent != null && parent.isLimited());
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * This method is used to charge a transfer to this bucket and its parents.
+     *
+     * @param bytes bytes that are being sent or were just received
+     * @return nanoseconds the caller should wait before its next transfer (0 = none)
+     */
+    public long reserve(long bytes) {
+        long wait = 0;
+        if (bytesPerSecond > 0) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                // Computed in double so that a long idle time cannot overflow; a full bucket holds one second
+                double refill = (now - lastRefill) * (double) bytesPerSecond / 1e9;
+                if (refill >= 1) {
+                    tokens = (long) Math.min(bytesPerSecond, tokens + refill);
+                    lastRefill = now;
+                }
+                tokens -= bytes;
+                if (tokens < 0) {
+                    wait = -tokens * 1_000_000_000L / bytesPerSecond;
+                }
+            }
+        }
+        return parent != null ? Math.max(wait, parent.reserve(bytes)) : wait;
+    }
+}
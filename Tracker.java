@@ -0,0 +1,184 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lightweight tracker: peers announce themselves and get back a random sample of
+ * the other members of their swarm, so a swarm can grow and shrink without
+ * editing PeerInfo.cfg on every node. Runs as its own process:
+ *
+ *   java Tracker [port] [announceIntervalSeconds]
+ *
+ * One request per TCP connection, as text lines:
+ *
+ *   ANNOUNCE <peerID> <host> <port> <complete 0|1> <started|update|completed|stopped> <numWant> <swarm>
+ *
+ *   OK <interval> <complete> <incomplete> <count>
+ *   <peerID> <host> <port>          (count lines)
+ *
+ * or "ERROR <reason>". The swarm is the rest of the line, so one tracker can
+ * serve several swarms. Peers send their SwarmKey, or if none is set
+ * "<FileName> <FileSize> <PieceSize>", e.g. "data.bin 5000000 65536"; a client
+ * has to send the same string to join their swarm. A peer that has not announced for
+ * three intervals is dropped, as is one that announces "stopped".
+ */
+public class Tracker {
+    private static final int MAX_PEERS_RETURNED = 200;
+
+    private final int interval;
+    private final Map<String, Map<Integer, Member>> swarms = new HashMap<>(); // Guarded by this
+    private ServerSocket server;
+
+    // One announced peer
+    private static final class Member {
+        final String host;
+        final int port;
+        boolean complete;
+        long lastSeen;
+
+        Member(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    public Tracker(int interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6969;
+        int interval = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        new Tracker(interval).serve(port);
+    }
+
+    // Accepts announces until the process is stopped
+    public void serve(int port) throws IOException {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(port));
+        System.out.println("Tracker is listening on port " + server.getLocalPort() + ", announce interval " + interval + " s");
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                workers.execute(() -> handle(socket));
+            }
+        } catch (IOException e) {
+            if (!server.isClosed()) {
+                System.err.println("Error in tracker: " + e.getMessage());
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    public void close() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(s.getOutputStream(), false, StandardCharsets.UTF_8)) {
+            s.setSoTimeout(5000);
+            String line = in.readLine();
+            out.print(line == null ? "ERROR empty request\n" : announce(line));
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error handling tracker request: " + e.getMessage());
+        }
+    }
+
+    // Applies one ANNOUNCE line and returns the response text
+    String announce(String line) {
+        String[] tokens = line.trim().split("\\s+", 8);
+        if (tokens.length < 8 || !tokens[0].equals("ANNOUNCE")) {
+            return "ERROR expected ANNOUNCE <peerID> <host> <port> <complete> <event> <numWant> <swarm>\n";
+        }
+        int id;
+        int port;
+        int numWant;
+        try {
+            id = Integer.parseInt(tokens[1]);
+            port = Integer.parseInt(tokens[3]);
+            numWant = Math.min(MAX_PEERS_RETURNED, Math.max(0, Integer.parseInt(tokens[6])));
+        } catch (NumberFormatException e) {
+            return "ERROR " + e.getMessage() + "\n";
+        }
+        String host = tokens[2];
+        boolean complete = tokens[4].equals("1");
+        String event = tokens[5];
+        String swarm = tokens[7];
+
+        List<Integer> sample = new ArrayList<>();
+        StringBuilder response = new StringBuilder();
+        synchronized (this) {
+            Map<Integer, Member> members = swarms.computeIfAbsent(swarm, k -> new HashMap<>());
+            expire(members);
+            if (event.equals("stopped")) {
+                if (members.remove(id) != null) {
+                    System.out.println("Peer " + id + " left " + swarm + " (" + members.size() + " peers)");
+                }
+                numWant = 0;
+            } else {
+                Member member = members.get(id);
+                if (member == null || member.port != port || !member.host.equals(host)) {
+                    member = new Member(host, port);
+                    members.put(id, member);
+                    System.out.println("Peer " + id + " joined " + swarm + " (" + members.size() + " peers)");
+                }
+                member.complete = complete;
+                member.lastSeen = System.nanoTime();
+            }
+            int completeCount = 0;
+            for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+                if (entry.getValue().complete) {
+                    completeCount++;
+                }
+                if (entry.getKey() != id) {
+                    sample.add(entry.getKey());
+                }
+            }
+            Collections.shuffle(sample);
+            sample = sample.subList(0, Math.min(numWant, sample.size()));
+            response.append("OK ").append(interval).append(' ').append(completeCount).append(' ')
+                    .append(members.size() - completeCount).append(' ').append(sample.size()).append('\n');
+            for (int peer : sample) {
+                Member member = members.get(peer);
+                response.append(peer).append(' ').append(member.host).append(' ').append(member.port).append('\n');
+            }
+            if (members.isEmpty()) {
+                swarms.remove(swarm);
+            }
+        }
+        return response.toString();
+    }
+
+    // Drops members that missed three announces
+    private void expire(Map<Integer, Member> members) {
+        long deadline = System.nanoTime() - 3L * interval * 1_000_000_000L;
+        Iterator<Map.Entry<Integer, Member>> it = members.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Member> entry = it.next();
+            if (entry.getValue().lastSeen - deadline < 0) {
+                System.out.println("Peer " + entry.getKey() + " timed out");
+                it.remove();
+            }
+        }
+    }
+}
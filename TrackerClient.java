@@ -0,0 +1,92 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The peer's side of the Tracker protocol: one short-lived connection per announce.
+ */
+public class TrackerClient {
+    private final String trackerHost;
+    private final int trackerPort;
+    private final String swarm;
+    private final int peerID;
+    private final String host;
+    private final int port;
+    private final int timeoutMillis;
+
+    // What the tracker answered
+    public static final class Response {
+        public final int interval;      // Seconds until the next announce
+        public final int complete;      // Swarm members with the whole file, including us
+        public final int incomplete;
+        public final List<PeerConfiguration> peers;
+
+        Response(int interval, int complete, int incomplete, List<PeerConfiguration> peers) {
+            this.interval = interval;
+            this.complete = complete;
+            this.incomplete = incomplete;
+            this.peers = peers;
+        }
+    }
+
+    // address is "host:port" (Tracker in Common.cfg)
+    public TrackerClient(String address, String swarm, int peerID, String host, int port, int timeoutMillis) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Tracker must be host:port, got " + address);
+        }
+        this.trackerHost = address.substring(0, colon);
+        this.trackerPort = Integer.parseInt(address.substring(colon + 1));
+        this.swarm = swarm;
+        this.peerID = peerID;
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public String getAddress() {
+        return trackerHost + ":" + trackerPort;
+    }
+
+    /**
+     * This method is used to announce this peer and fetch up to numWant other members.
+     *
+     * @param event started, update, completed or stopped
+     */
+    public Response announce(String event, boolean complete, int numWant) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(trackerHost, trackerPort), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write(("ANNOUNCE " + peerID + " " + host + " " + port + " " + (complete ? 1 : 0) + " "
+                    + event + " " + numWant + " " + swarm + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String status = in.readLine();
+            if (status == null || !status.startsWith("OK ")) {
+                throw new IOException("Tracker answered " + status);
+            }
+            String[] header = status.split("\\s+");
+            int count = Integer.parseInt(header[4]);
+            List<PeerConfiguration> peers = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Tracker response ended after " + i + " of " + count + " peers");
+                }
+                String[] tokens = line.trim().split("\\s+");
+                peers.add(new PeerConfiguration(Integer.parseInt(tokens[0]), tokens[1], Integer.parseInt(tokens[2]), false));
+            }
+            return new Response(Integer.parseInt(header[1]), Integer.parseInt(header[2]), Integer.parseInt(header[3]), peers);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed tracker response: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+/**
+ * Minimal microbenchmark harness for the classes in bench/, in the spirit of JMH
+ * without needing a build tool: each benchmark is warmed up, then timed over a
+ * few fixed-length iterations, and results land in a sink so the JIT cannot
+ * drop the work. Numbers are comparable between runs on the same machine, which
+ * is what is needed to check a change for regressions.
+ *
+ * Tunable with system properties:
+ *   -Dbench.warmup=5       warmup iterations
+ *   -Dbench.iterations=5   measured iterations
+ *   -Dbench.time=500       milliseconds per iteration
+ * A benchmark runs only if its name contains the filter given as the first
+ * program argument (if any).
+ */
+final class Bench {
+    // One call performs 'opsPerCall' operations and returns something derived from them
+    interface Op {
+        long run() throws Exception;
+    }
+
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.time", 500) * 1_000_000;
+
+    static volatile long sink;
+
+    private final String filter;
+
+    Bench(String[] args) {
+        this.filter = args.length > 0 ? args[0] : "";
+    }
+
+    boolean enabled(String name) {
+        return name.contains(filter);
+    }
+
+    /**
+     * This method is used to time one benchmark and print ns/op and ops/s.
+     *
+     * @param bytesPerOp If positive, throughput is also printed in MB/s
+     */
+    void measure(String name, long opsPerCall, long bytesPerOp, Op op) throws Exception {
+        if (!enabled(name)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(opsPerCall, op);
+        }
+        double[] nanosPerOp = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            nanosPerOp[i] = iteration(opsPerCall, op);
+        }
+        Arrays.sort(nanosPerOp);
+        double median = nanosPerOp[ITERATIONS / 2];
+        StringBuilder line = new StringBuilder(String.format("%-48s %12.1f ns/op  (min %.1f, max %.1f)  %14.0f ops/s",
+                name, median, nanosPerOp[0], nanosPerOp[ITERATIONS - 1], 1e9 / median));
+        if (bytesPerOp > 0) {
+            line.append(String.format("  %10.1f MB/s", bytesPerOp * 1e9 / median / (1024 * 1024)));
+        }
+        System.out.println(line);
+    }
+
+    // Runs the op repeatedly for one iteration and returns the mean ns per operation
+    private static double iteration(long opsPerCall, Op op) throws Exception {
+        long ops = 0;
+        long result = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            result += op.run();
+            ops += opsPerCall;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink += result;
+        return (double) elapsed / ops;
+    }
+}
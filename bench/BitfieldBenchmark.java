@@ -0,0 +1,124 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bitfield operations at 10^3 to 10^6 pieces. The "bytes" cases are the old
+ * layout Peer used (a byte[] with the high bit first, guarded by the owner's
+ * monitor, and full scans for the piece count and the interest check); the
+ * "bitfield" cases are the Bitfield class that replaced it.
+ *
+ *   java -cp out BitfieldBenchmark [filter]
+ */
+public class BitfieldBenchmark {
+    private static final int BATCH = 1024;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        for (int pieces : new int[] {1_000, 10_000, 100_000, 1_000_000}) {
+            runBytes(bench, pieces);
+            runBitfield(bench, pieces);
+        }
+    }
+
+    private static int[] randomIndexes(int pieces) {
+        int[] indexes = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            indexes[i] = ThreadLocalRandom.current().nextInt(pieces);
+        }
+        return indexes;
+    }
+
+    private static void runBytes(Bench bench, int pieces) throws Exception {
+        String prefix = "bitfield." + pieces + ".bytes.";
+        Owner local = new Owner(pieces);
+        byte[] remote = new byte[(pieces + 7) / 8];
+        int[] indexes = randomIndexes(pieces);
+        // Local peer has every other piece, the remote peer has the same ones: nothing interesting
+        for (int i = 0; i < pieces; i += 2) {
+            local.set(i);
+            remote[i / 8] |= (byte) (1 << (7 - (i % 8)));
+        }
+
+        bench.measure(prefix + "hasPiece", BATCH, 0, () -> {
+            long hits = 0;
+            for (int index : indexes) {
+                if (local.has(index)) {
+                    hits++;
+                }
+            }
+            return hits;
+        });
+        bench.measure(prefix + "updateBitfield", BATCH, 0, () -> {
+            for (int index : indexes) {
+                local.set(index);
+            }
+            return indexes[0];
+        });
+        bench.measure(prefix + "count", 1, 0, () -> {
+            long count = 0;
+            for (int i = 0; i < pieces; i++) {
+                if (local.has(i)) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        bench.measure(prefix + "interestScan", 1, 0, () -> {
+            for (int i = 0; i < pieces; i++) {
+                if (!local.has(i) && (remote[i / 8] & (1 << (7 - (i % 8)))) != 0) {
+                    return i;
+                }
+            }
+            return -1;
+        });
+    }
+
+    private static void runBitfield(Bench bench, int pieces) throws Exception {
+        String prefix = "bitfield." + pieces + ".bitfield.";
+        Bitfield local = new Bitfield(pieces);
+        Bitfield remote = new Bitfield(pieces);
+        int[] indexes = randomIndexes(pieces);
+        for (int i = 0; i < pieces; i += 2) {
+            local.set(i);
+            remote.set(i);
+        }
+
+        bench.measure(prefix + "hasPiece", BATCH, 0, () -> {
+            long hits = 0;
+            for (int index : indexes) {
+                if (local.get(index)) {
+                    hits++;
+                }
+            }
+            return hits;
+        });
+        bench.measure(prefix + "updateBitfield", BATCH, 0, () -> {
+            long changed = 0;
+            for (int index : indexes) {
+                if (local.set(index)) {
+                    changed++;
+                }
+            }
+            return changed;
+        });
+        bench.measure(prefix + "count", 1, 0, local::cardinality);
+        bench.measure(prefix + "interestScan", 1, 0, () -> remote.hasAnyNotIn(local) ? 1 : 0);
+        bench.measure(prefix + "snapshot", 1, 0, () -> local.toByteArray().length);
+    }
+
+    // Same layout and locking as Peer's original byte[] bitfield
+    private static final class Owner {
+        private final byte[] bitfield;
+
+        Owner(int pieces) {
+            bitfield = new byte[(pieces + 7) / 8];
+        }
+
+        synchronized boolean has(int pieceIndex) {
+            return (bitfield[pieceIndex / 8] & (1 << (7 - (pieceIndex % 8)))) != 0;
+        }
+
+        synchronized void set(int pieceIndex) {
+            bitfield[pieceIndex / 8] |= (1 << (7 - (pieceIndex % 8)));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Frame encode/decode cost. The "legacy" cases use the Message class (a new
+ * object and payload array per frame); the others use the path the transports
+ * take now: primitive fields put into a reused buffer, and MessageView reading
+ * fields in place. The loopback case sends REQUEST frames through a real
+ * SocketTransport and reads them back with a FrameReader.
+ *
+ * Compile and run from the project root:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out CodecBenchmark [filter]
+ */
+public class CodecBenchmark {
+    private static final int BATCH = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+
+        // Encode: REQUEST in block mode (index, offset, length)
+        bench.measure("codec.encode.request.legacy", BATCH, 0, () -> {
+            long total = 0;
+            for (int i = 0; i < BATCH; i++) {
+                ByteBuffer payload = ByteBuffer.allocate(12);
+                payload.putInt(i).putInt(i << 14).putInt(16384);
+                total += new Message(P2PMessages.REQUEST, payload.array()).toByteBuffer().remaining();
+            }
+            return total;
+        });
+        // Frames appended one after another to a reused buffer, as NioConnection does with controlOut
+        ByteBuffer out = ByteBuffer.allocate(17 * BATCH);
+        bench.measure("codec.encode.request.reused", BATCH, 0, () -> {
+            out.clear();
+            for (int i = 0; i < BATCH; i++) {
+                out.putInt(13).put(P2PMessages.REQUEST.getValue()).putInt(i).putInt(i << 14).putInt(16384);
+            }
+            return out.position() + out.get(17 * (BATCH - 1) + 8);
+        });
+
+        // Decode: a PIECE frame with a 16 KiB block, header fields plus access to the body
+        byte[] pieceFrame = pieceBody(16384);
+        bench.measure("codec.decode.piece16k.legacy", BATCH, 0, () -> {
+            long total = 0;
+            for (int i = 0; i < BATCH; i++) {
+                Message message = Message.decode(pieceFrame, pieceFrame.length);
+                ByteBuffer payload = ByteBuffer.wrap(message.getPLoad());
+                total += payload.getInt() + payload.getInt() + (message.getPLoad().length - 8);
+            }
+            return total;
+        });
+        ByteBuffer frame = ByteBuffer.wrap(pieceFrame);
+        MessageView view = new MessageView();
+        bench.measure("codec.decode.piece16k.view", BATCH, 0, () -> {
+            long total = 0;
+            for (int i = 0; i < BATCH; i++) {
+                view.wrap(frame, 0, pieceFrame.length);
+                total += view.getInt(0) + view.getInt(4) + view.payload(8).remaining();
+            }
+            return total;
+        });
+
+        // Round trip over loopback with the real blocking transport and reader
+        if (bench.enabled("codec.loopback.request")) {
+            BufferPool pool = new BufferPool(false);
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Socket sender = SocketChannel.open(server.getLocalAddress()).socket();
+            Socket receiver = server.accept().socket();
+            SocketTransport transport = new SocketTransport(sender, pool, null, new RateEstimator(1000), task -> new Thread(task).start());
+            FrameReader reader = new FrameReader(receiver, pool, 1 << 20);
+            bench.measure("codec.loopback.request", BATCH, 0, () -> {
+                long total = 0;
+                for (int i = 0; i < BATCH; i++) {
+                    transport.send(P2PMessages.REQUEST, i, i << 14, 16384);
+                }
+                for (int i = 0; i < BATCH; i++) {
+                    total += reader.next().getInt(0);
+                }
+                return total;
+            });
+            transport.close();
+            reader.close();
+            receiver.close();
+            server.close();
+        }
+    }
+
+    // Frame body of a block-mode PIECE: type, index, offset, data
+    private static byte[] pieceBody(int blockSize) {
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + blockSize);
+        body.put(P2PMessages.PIECE.getValue()).putInt(7).putInt(16384);
+        return body.array();
+    }
+}
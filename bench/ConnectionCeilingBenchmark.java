@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many blocking peer connections one process can hold in each
+ * PeerExecutor mode. Every accepted socket gets a reader task that blocks in
+ * FrameReader.next(), exactly like PeerConnectionHandler.run().
+ * Connections are added until the target is reached or the JVM/OS refuses
+ * (no more native threads, file descriptors or heap).
+ *
+ * Compile and run from the project root:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out ConnectionCeilingBenchmark platform 20000
+ *   java -cp out ConnectionCeilingBenchmark virtual 20000     (Java 21+)
+ */
+public class ConnectionCeilingBenchmark {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int target = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int step = Math.max(1, target / 10);
+
+        PeerExecutor executor = PeerExecutor.create(mode, "bench");
+        System.out.println("Mode: " + executor.getMode() + ", target connections: " + target);
+
+        BufferPool pool = new BufferPool(false);
+        ServerSocket server = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        AtomicInteger readers = new AtomicInteger();
+        List<Socket> accepted = new ArrayList<>();
+        executor.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    synchronized (accepted) {
+                        accepted.add(socket);
+                    }
+                    // One blocking reader per connection, as in the blocking handler mode
+                    executor.execute(() -> {
+                        readers.incrementAndGet();
+                        try {
+                            FrameReader reader = new FrameReader(socket, pool, 1 << 20);
+                            while (true) {
+                                reader.next();
+                            }
+                        } catch (IOException e) {
+                            readers.decrementAndGet();
+                        }
+                    });
+                }
+            } catch (IOException | Error e) {
+                System.out.println("Accept loop stopped: " + e);
+            }
+        });
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<Socket> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        String stopReason = "target reached";
+        try {
+            for (int i = 1; i <= target; i++) {
+                clients.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                if (i % step == 0) {
+                    waitForReaders(readers, i);
+                    report(i, readers.get(), threads, start);
+                }
+            }
+        } catch (IOException | Error e) {
+            stopReason = e.toString();
+        }
+        waitForReaders(readers, clients.size());
+
+        System.out.println("Stopped: " + stopReason);
+        System.out.println("Connection ceiling: " + readers.get() + " connections with blocked readers");
+        report(clients.size(), readers.get(), threads, start);
+
+        for (Socket socket : clients) {
+            socket.close();
+        }
+        server.close();
+        System.exit(0);
+    }
+
+    // Gives reader tasks up to 5 seconds to catch up with the opened connections
+    private static void waitForReaders(AtomicInteger readers, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (readers.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void report(int opened, int readers, ThreadMXBean threads, long start) {
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("opened=" + opened + " readers=" + readers
+                + " platformThreads=" + threads.getThreadCount()
+                + " heapUsedMB=" + usedHeapMb
+                + " elapsedMs=" + elapsedMs);
+    }
+}
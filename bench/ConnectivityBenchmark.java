@@ -0,0 +1,177 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How fast one Peer gets connected to a large swarm, and how fast it restores it.
+ * The Peer is listed last in PeerInfo.cfg, so it dials every other entry. Most
+ * entries are stub neighbors in this JVM that answer the handshake and then only
+ * read. A few are down: some refuse the connect, and some accept the connect but
+ * never answer the handshake.
+ *
+ * Reported are the time until every live neighbor is connected, and the time to
+ * get them all back after the stubs drop every connection at once.
+ *
+ * Peer reads its configuration from the working directory, so run this from an
+ * empty scratch directory. Extra arguments are appended to Common.cfg:
+ *   mkdir /tmp/connect && cd /tmp/connect
+ *   java -cp <project>/out ConnectivityBenchmark 500 5 "ConnectionMode blocking"
+ */
+public class ConnectivityBenchmark {
+    private static final int FIRST_ID = 20001;
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int down = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        if (new File("Common.cfg").exists() || new File("PeerInfo.cfg").exists()) {
+            System.err.println("Run from an empty directory: Common.cfg/PeerInfo.cfg would be overwritten.");
+            return;
+        }
+
+        // peers - 1 neighbors: 'down' of them refuse, 'down' never answer the handshake, the rest are live
+        int neighbors = peers - 1;
+        int live = neighbors - 2 * down;
+        List<Stub> stubs = new ArrayList<>();
+        List<ServerSocket> silent = new ArrayList<>();
+        ExecutorService stubThreads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (PrintWriter info = new PrintWriter(new FileWriter("PeerInfo.cfg"))) {
+            for (int i = 0; i < neighbors; i++) {
+                int id = FIRST_ID + i;
+                int port;
+                if (i < live) {
+                    Stub stub = new Stub(id);
+                    stubs.add(stub);
+                    stubThreads.execute(() -> stub.acceptLoop(stubThreads));
+                    port = stub.server.getLocalPort();
+                } else if (i < live + down) {
+                    ServerSocket listener = new ServerSocket(0); // Never accepted: connects, then silence
+                    silent.add(listener);
+                    port = listener.getLocalPort();
+                } else {
+                    port = freePort(); // Closed again: connection refused
+                }
+                info.println(id + " localhost " + port + " 0");
+            }
+            info.println((FIRST_ID + neighbors) + " localhost " + freePort() + " 0");
+        }
+        writeConfig(args);
+
+        Peer peer = new Peer(String.valueOf(FIRST_ID + neighbors));
+        long start = System.nanoTime();
+        peer.start();
+        waitForNeighbors(peer, live);
+        double connected = (System.nanoTime() - start) / 1e6;
+
+        // Drop everything from the far side; the Peer has to notice and dial again
+        long dropped = System.nanoTime();
+        for (Stub stub : stubs) {
+            stub.dropAll();
+        }
+        while (peer.getClientHandlers().size() == live) {
+            Thread.sleep(1);
+        }
+        waitForNeighbors(peer, live);
+        double restored = (System.nanoTime() - dropped) / 1e6;
+
+        System.out.printf("connectivity.%d (%d refused, %d silent)  connected %d neighbors in %.0f ms, restored after drop in %.0f ms%n",
+                peers, down, down, live, connected, restored);
+        System.exit(0); // Peer threads are not daemons
+    }
+
+    private static void waitForNeighbors(Peer peer, int live) throws InterruptedException {
+        while (peer.getClientHandlers().size() < live) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void writeConfig(String[] args) throws IOException {
+        try (PrintWriter cfg = new PrintWriter(new FileWriter("Common.cfg"))) {
+            cfg.println("NumberOfPreferredNeighbors 4");
+            cfg.println("UnchokingInterval 5");
+            cfg.println("OptimisticUnchokingInterval 15");
+            cfg.println("FileName data.bin");
+            cfg.println("FileSize 1048576");
+            cfg.println("PieceSize 262144");
+            cfg.println("LogToConsole false");
+            cfg.println("MetricsInterval 0");
+            cfg.println("ResumeCheckpointInterval 0");
+            for (int i = 2; i < args.length; i++) {
+                cfg.println(args[i]);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // A neighbor that completes the handshake, then reads and ignores everything
+    private static final class Stub {
+        final int id;
+        final ServerSocket server;
+        final List<Socket> accepted = new ArrayList<>();
+
+        Stub(int id) throws IOException {
+            this.id = id;
+            this.server = new ServerSocket(0, 64);
+        }
+
+        void acceptLoop(ExecutorService threads) {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    synchronized (accepted) {
+                        accepted.add(socket);
+                    }
+                    threads.execute(() -> serve(socket));
+                }
+            } catch (IOException e) {
+                // Benchmark is over
+            }
+        }
+
+        void serve(Socket socket) {
+            try (InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+                new DataInputStream(in).readFully(new byte[32]);
+                byte[] handshake = new byte[32];
+                byte[] header = "P2PFILESHARINGPROJ".getBytes();
+                System.arraycopy(header, 0, handshake, 0, header.length);
+                ByteBuffer.wrap(handshake, 28, 4).putInt(id);
+                out.write(handshake);
+                out.flush();
+                byte[] sink = new byte[4096];
+                while (in.read(sink) != -1) {
+                    // Discard BITFIELD, INTERESTED and whatever follows
+                }
+            } catch (IOException e) {
+                // Dropped
+            }
+        }
+
+        void dropAll() throws IOException {
+            synchronized (accepted) {
+                for (Socket socket : accepted) {
+                    socket.close();
+                }
+                accepted.clear();
+            }
+        }
+    }
+}
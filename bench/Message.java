@@ -1,9 +1,11 @@
 import java.nio.ByteBuffer;
-import java.io.IOException;
-import java.net.Socket;
-import java.io.InputStream;
-import java.io.OutputStream;
 
+/**
+ * The original frame codec: one Message object and payload array per frame.
+ * The transports now write primitive fields into reused buffers and read frames
+ * in place with MessageView, so this is kept only as the "legacy" baseline of
+ * CodecBenchmark.
+ */
 public class Message {
     private int length;           // Total length of the message (type + payload)
     private P2PMessages type;     // Enum representing the type of message
@@ -41,40 +43,10 @@ public class Message {
     }
 
     /**
-     * This method is used to receive a BitTorrent-style P2P message from a socket.
-     * It first reads the length (4 bytes), then reads the full message based on that length.
-     * It extracts the message type and payload, if any, and returns a new Message object.
+     * This method is used to turn the body of a frame (type byte followed by the
+     * payload, without the 4-byte length prefix) back into a Message.
      */
-    public static Message receiveP2PBitTorrentMessages(Socket socket) throws IOException {
-        InputStream in = socket.getInputStream();
-
-        byte[] lenByte = new byte[4]; // Buffer to store message length
-        int lengthOfByte = 0;
-
-        // Read exactly 4 bytes to get the message length
-        while (lengthOfByte < 4) {
-            int finalRlt = in.read(lenByte, lengthOfByte, 4 - lengthOfByte);
-            if (finalRlt == -1) {
-                throw new IOException("End of stream");
-            }
-            lengthOfByte += finalRlt;
-        }
-
-        // Convert the 4 bytes to an int to get the message length
-        int length = ByteBuffer.wrap(lenByte).getInt();
-
-        // Now read the actual message of the given length
-        byte[] msgByt = new byte[length];
-        lengthOfByte = 0;
-
-        while (lengthOfByte < length) {
-            int resultingPayload = in.read(msgByt, lengthOfByte, length - lengthOfByte);
-            if (resultingPayload == -1) {
-                throw new IOException("End of stream");
-            }
-            lengthOfByte += resultingPayload;
-        }
-
+    public static Message decode(byte[] msgByt, int length) {
         // Extract message type (first byte) and payload (remaining bytes, if any)
         byte typeB = msgByt[0];
         P2PMessages p2pmsgtype = P2PMessages.fromByte(typeB);
@@ -90,13 +62,10 @@ public class Message {
     }
 
     /**
-     * This method is used to send a BitTorrent-style P2P message over a socket.
-     * It prepares a byte buffer containing the length, type, and payload (if any),
-     * then writes it to the socket's output stream.
+     * This method is used to encode the full wire frame (length, type and payload)
+     * into a ByteBuffer that is flipped and ready to be written to a channel.
      */
-    public void sendMessage(Socket socket) throws IOException {
-        OutputStream out = socket.getOutputStream();
-
+    public ByteBuffer toByteBuffer() {
         // Allocate space: 4 bytes for length, 1 for type, and payload bytes
         ByteBuffer buff = ByteBuffer.allocate(4 + length);
 
@@ -108,9 +77,7 @@ public class Message {
         if (pload != null) {
             buff.put(pload);
         }
-
-        // Write the buffer to the socket and flush
-        out.write(buff.array());
-        out.flush();
+        buff.flip();
+        return buff;
     }
 }
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many swarms in one JVM on two SwarmEngines. A seeding engine and a leeching
+ * engine each have one listening port, and every swarm shares their selector
+ * threads, executor, scheduler and hash pool. Each swarm shares its own random
+ * file. The benchmark adds all swarms at once and waits for the download futures.
+ * It reports the time until every one has completed, and the live threads, which
+ * apart from one log writer per swarm do not grow with the number of swarms.
+ * Standalone Peers would each start their own selector, scheduler and hash
+ * threads. Then every swarm is removed again.
+ *
+ * Files and logs go under a scratch directory:
+ *   java -cp <project>/out MultiSwarmBenchmark 24 2048 /tmp/swarms
+ */
+public class MultiSwarmBenchmark {
+    public static void main(String[] args) throws Exception {
+        int swarms = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 2048) * 1024;
+        File root = new File(args.length > 2 ? args[2] : "swarms");
+        if (root.exists()) {
+            System.err.println(root + " exists; pass an empty scratch directory.");
+            return;
+        }
+
+        Properties settings = new Properties();
+        settings.setProperty("SelectorThreads", "2");
+        try (SwarmEngine seeds = new SwarmEngine(0, settings); SwarmEngine leeches = new SwarmEngine(0, settings)) {
+            List<File> seedFiles = new ArrayList<>();
+            List<Properties> commons = new ArrayList<>();
+            List<List<PeerConfiguration>> peerLists = new ArrayList<>();
+            for (int i = 0; i < swarms; i++) {
+                String fileName = "data" + i + ".bin";
+                Properties common = swarmConfig(fileName, fileSize);
+                List<PeerConfiguration> peers = Arrays.asList(
+                        new PeerConfiguration(1, "localhost", seeds.getPort(), true),
+                        new PeerConfiguration(2, "localhost", leeches.getPort(), false)); // Dials the seeder
+                File seedFile = new File(root, "seed/swarm" + i + "/peer_1/" + fileName);
+                seedFile.getParentFile().mkdirs();
+                writeRandomFile(seedFile, fileSize, i);
+                seeds.addSwarm("1", new File(root, "seed/swarm" + i), common, peers);
+                seedFiles.add(seedFile);
+                commons.add(common);
+                peerLists.add(peers);
+            }
+
+            long start = System.nanoTime();
+            List<Peer> leechers = new ArrayList<>();
+            List<CompletableFuture<Peer>> downloads = new ArrayList<>();
+            for (int i = 0; i < swarms; i++) {
+                Peer leecher = leeches.addSwarm("2", new File(root, "leech/swarm" + i), commons.get(i), peerLists.get(i));
+                leechers.add(leecher);
+                downloads.add(leecher.downloadCompletion());
+            }
+            CompletableFuture.allOf(downloads.toArray(CompletableFuture<?>[]::new)).get(10, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int logWriters = 0;
+            int threads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("logger-")) {
+                    logWriters++;
+                } else {
+                    threads++;
+                }
+            }
+
+            int verified = 0;
+            for (int i = 0; i < swarms; i++) {
+                File copy = new File(root, "leech/swarm" + i + "/peer_2/data" + i + ".bin");
+                if (Files.mismatch(seedFiles.get(i).toPath(), copy.toPath()) == -1) {
+                    verified++;
+                }
+            }
+            for (Peer leecher : leechers) {
+                leeches.removeSwarm(leecher);
+            }
+            for (Peer seeder : seeds.getSwarms()) {
+                seeds.removeSwarm(seeder);
+            }
+            System.out.printf("multiswarm.%dx%dKiB  all downloaded in %.2f s, %d threads (+%d log writers) for %d swarms on 2 engines, %d of %d files verified%n",
+                    swarms, fileSize / 1024, seconds, threads, logWriters, swarms, verified, swarms);
+        }
+        System.exit(0);
+    }
+
+    private static Properties swarmConfig(String fileName, long fileSize) {
+        Properties common = new Properties();
+        common.setProperty("NumberOfPreferredNeighbors", "1");
+        common.setProperty("UnchokingInterval", "1");
+        common.setProperty("OptimisticUnchokingInterval", "1");
+        common.setProperty("FileName", fileName);
+        common.setProperty("FileSize", String.valueOf(fileSize));
+        common.setProperty("PieceSize", "65536");
+        common.setProperty("LogToConsole", "false");
+        common.setProperty("MetricsInterval", "0");
+        common.setProperty("ResumeCheckpointInterval", "0");
+        return common;
+    }
+
+    private static void writeRandomFile(File file, long size, long seed) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(seed);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+}
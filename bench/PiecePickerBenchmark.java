@@ -0,0 +1,59 @@
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Piece selection over many neighbors: a PiecePicker fed with the bitfields of
+ * N neighbors, then asked for the next piece for a random neighbor with the
+ * same candidate test PeerConnectionHandler.requestPiece uses (the neighbor
+ * has it and it is not claimed yet). Half the pieces are already claimed, so
+ * the picker has to skip candidates like it does mid-download.
+ *
+ *   java -cp out PiecePickerBenchmark [filter]
+ */
+public class PiecePickerBenchmark {
+    private static final int BATCH = 256;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        for (int pieces : new int[] {1_000, 10_000, 100_000}) {
+            for (int neighbors : new int[] {8, 64, 512}) {
+                for (PiecePicker.Policy policy : PiecePicker.Policy.values()) {
+                    run(bench, pieces, neighbors, policy);
+                }
+            }
+        }
+    }
+
+    private static void run(Bench bench, int pieces, int neighbors, PiecePicker.Policy policy) throws Exception {
+        String name = "picker." + pieces + "p." + neighbors + "n." + policy.name().toLowerCase();
+        if (!bench.enabled(name)) {
+            return;
+        }
+        Random random = new Random(42);
+        PiecePicker picker = new PiecePicker(policy, pieces, new Bitfield(pieces));
+        Bitfield[] remote = new Bitfield[neighbors];
+        for (int n = 0; n < neighbors; n++) {
+            // Each neighbor has a random ~30% of the file
+            remote[n] = new Bitfield(pieces);
+            for (int i = 0; i < pieces; i++) {
+                if (random.nextInt(10) < 3) {
+                    remote[n].set(i);
+                }
+            }
+            picker.addPeer(remote[n]);
+        }
+        BitSet claimed = new BitSet(pieces);
+        for (int i = 0; i < pieces; i += 2) {
+            claimed.set(i);
+        }
+
+        bench.measure(name, BATCH, 0, () -> {
+            long total = 0;
+            for (int i = 0; i < BATCH; i++) {
+                Bitfield has = remote[(i * 31) % neighbors];
+                total += picker.pick(p -> has.get(p) && !claimed.get(p));
+            }
+            return total;
+        });
+    }
+}
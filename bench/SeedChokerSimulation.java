@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Discrete-time swarm simulation comparing the two SeedChoking policies: the
+ * original random shuffle and SeedChoker's rotation. One seeder and a flash
+ * crowd of leechers share a file over a full mesh. Every peer has its own
+ * upload and download capacity, and a fraction of the leechers are slow.
+ *
+ * Both runs of a trial use the same swarm. Leechers always choke tit-for-tat
+ * with an optimistic unchoke, as Peer does; only peers that have the complete
+ * file (the seeder, and leechers once they finish) use the policy under test.
+ * SeedChoker itself is the class a real peer runs; the transfer model is
+ * simplified to fluid progress on rarest-first pieces, so absolute times are
+ * only meaningful relative to each other.
+ *
+ *   java -cp out SeedChokerSimulation [leechers] [pieces] [trials]
+ */
+public class SeedChokerSimulation {
+    private static final double STEP = 0.1;           // Seconds per simulation step
+    private static final int STEPS_PER_RECHOKE = 10;  // UnchokingInterval 1
+    private static final int OPTIMISTIC_ROUNDS = 3;   // OptimisticUnchokingInterval 3
+    private static final int PREFERRED = 3;           // NumberOfPreferredNeighbors
+    private static final double SEED_UPLOAD = 8;      // Pieces/s
+    private static final double SLOW_FRACTION = 0.3;
+    private static final double RATE_DECAY = Math.exp(-STEP / 1.0); // EWMA time constant of one rechoke interval
+    private static final double GIVE_UP_SECONDS = 36_000;
+
+    public static void main(String[] args) {
+        int leechers = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int pieces = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        double[] lastRandom = new double[trials];
+        double[] lastRotate = new double[trials];
+        double[] meanRandom = new double[trials];
+        double[] meanRotate = new double[trials];
+        for (int trial = 0; trial < trials; trial++) {
+            double[] random = new Swarm(leechers, pieces, trial, false).run();
+            double[] rotate = new Swarm(leechers, pieces, trial, true).run();
+            lastRandom[trial] = random[0];
+            meanRandom[trial] = random[1];
+            lastRotate[trial] = rotate[0];
+            meanRotate[trial] = rotate[1];
+            System.out.printf("trial %2d  random: last %7.1f s, mean %7.1f s   rotate: last %7.1f s, mean %7.1f s%n",
+                    trial, random[0], random[1], rotate[0], rotate[1]);
+        }
+        System.out.printf("seedchoker.%dx%d  random: last %.1f s, mean %.1f s   rotate: last %.1f s, mean %.1f s   (last %+.1f%%)%n",
+                leechers, pieces, average(lastRandom), average(meanRandom), average(lastRotate), average(meanRotate),
+                100 * (average(lastRotate) / average(lastRandom) - 1));
+    }
+
+    private static double average(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    // One simulated peer; index 0 is the seeder
+    private static final class SimPeer {
+        final int id;
+        final double upload;    // Pieces/s
+        final double download;  // Pieces/s
+        final BitSet have;
+        final double[] partial; // Progress on each missing piece, kept across chokes like BlockTracker
+        final int[] current;    // Piece being fetched from each neighbor, -1 if none
+        final double[] received; // EWMA of pieces/s received from each neighbor
+        final double[] sent;     // EWMA of pieces/s sent to each neighbor
+        final Set<Integer> unchoked = new HashSet<>();
+        int optimistic = -1;
+        final SeedChoker seedChoker = new SeedChoker(3);
+        double completedAt = -1;
+
+        SimPeer(int id, int peers, int pieces, double upload, double download) {
+            this.id = id;
+            this.upload = upload;
+            this.download = download;
+            this.have = new BitSet(pieces);
+            this.partial = new double[pieces];
+            this.current = new int[peers];
+            this.received = new double[peers];
+            this.sent = new double[peers];
+            Arrays.fill(current, -1);
+        }
+    }
+
+    private static final class Swarm {
+        final int pieces;
+        final boolean rotate;
+        final Random random;
+        final SimPeer[] peers;
+        final int[] availability; // Copies of each piece among all peers
+
+        Swarm(int leechers, int pieces, long seed, boolean rotate) {
+            this.pieces = pieces;
+            this.rotate = rotate;
+            Random capacities = new Random(seed); // Same swarm for both policies
+            this.random = new Random(seed * 31 + 7);
+            this.peers = new SimPeer[leechers + 1];
+            this.availability = new int[pieces];
+            peers[0] = new SimPeer(0, peers.length, pieces, SEED_UPLOAD, 0);
+            peers[0].have.set(0, pieces);
+            peers[0].completedAt = 0;
+            Arrays.fill(availability, 1);
+            for (int i = 1; i < peers.length; i++) {
+                boolean slow = capacities.nextDouble() < SLOW_FRACTION;
+                double upload = slow ? 0.25 + capacities.nextDouble() * 0.5 : 1.5 + capacities.nextDouble() * 2.5;
+                double download = slow ? 2 + capacities.nextDouble() * 2 : 6 + capacities.nextDouble() * 6;
+                peers[i] = new SimPeer(i, peers.length, pieces, upload, download);
+            }
+        }
+
+        // Returns {time the last leecher completed, mean completion time}
+        double[] run() {
+            int step = 0;
+            int round = 0;
+            while (!allComplete()) {
+                double now = step * STEP;
+                if (now > GIVE_UP_SECONDS) {
+                    throw new IllegalStateException("swarm did not complete");
+                }
+                if (step % STEPS_PER_RECHOKE == 0) {
+                    for (SimPeer peer : peers) {
+                        rechoke(peer, round);
+                    }
+                    round++;
+                }
+                transfer(now + STEP);
+                step++;
+            }
+            double last = 0;
+            double sum = 0;
+            for (int i = 1; i < peers.length; i++) {
+                last = Math.max(last, peers[i].completedAt);
+                sum += peers[i].completedAt;
+            }
+            return new double[] {last, sum / (peers.length - 1)};
+        }
+
+        boolean allComplete() {
+            for (SimPeer peer : peers) {
+                if (peer.completedAt < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean interested(SimPeer receiver, SimPeer uploader) {
+            if (receiver == uploader || receiver.completedAt >= 0) {
+                return false;
+            }
+            BitSet wanted = (BitSet) uploader.have.clone();
+            wanted.andNot(receiver.have);
+            return !wanted.isEmpty();
+        }
+
+        void rechoke(SimPeer peer, int round) {
+            List<Integer> interested = new ArrayList<>();
+            for (SimPeer other : peers) {
+                if (interested(other, peer)) {
+                    interested.add(other.id);
+                }
+            }
+            List<Integer> preferred;
+            if (peer.completedAt >= 0 && rotate) {
+                int min = Integer.MAX_VALUE;
+                for (int count : availability) {
+                    min = Math.min(min, count);
+                }
+                List<SeedChoker.Candidate> candidates = new ArrayList<>();
+                for (int id : interested) {
+                    SimPeer other = peers[id];
+                    int rareMissing = 0;
+                    for (int p = other.have.nextClearBit(0); p < pieces; p = other.have.nextClearBit(p + 1)) {
+                        if (availability[p] == min) {
+                            rareMissing++;
+                        }
+                    }
+                    candidates.add(new SeedChoker.Candidate(id, peer.sent[id], other.have.cardinality(), rareMissing));
+                }
+                preferred = peer.seedChoker.select(candidates, PREFERRED);
+            } else {
+                Collections.shuffle(interested, random);
+                if (peer.completedAt < 0) {
+                    interested.sort((a, b) -> Double.compare(peer.received[b], peer.received[a])); // Tit-for-tat
+                }
+                preferred = interested.subList(0, Math.min(PREFERRED, interested.size()));
+            }
+            peer.unchoked.clear();
+            peer.unchoked.addAll(preferred);
+
+            // Optimistic unchoke among the rest, rotated every few rounds
+            if (round % OPTIMISTIC_ROUNDS == 0 || peer.optimistic < 0 || !interested.contains(peer.optimistic)) {
+                List<Integer> choked = new ArrayList<>(interested);
+                choked.removeAll(peer.unchoked);
+                peer.optimistic = choked.isEmpty() ? -1 : choked.get(random.nextInt(choked.size()));
+            }
+            if (peer.optimistic >= 0) {
+                peer.unchoked.add(peer.optimistic);
+            }
+        }
+
+        // Rarest piece the uploader has and the receiver lacks, preferring one nobody else is sending it
+        int pickPiece(SimPeer receiver, SimPeer uploader) {
+            Set<Integer> inFlight = new HashSet<>();
+            for (int piece : receiver.current) {
+                if (piece >= 0) {
+                    inFlight.add(piece);
+                }
+            }
+            int best = -1;
+            int bestDuplicate = -1;
+            int ties = 0;
+            for (int p = receiver.have.nextClearBit(0); p < pieces; p = receiver.have.nextClearBit(p + 1)) {
+                if (!uploader.have.get(p)) {
+                    continue;
+                }
+                if (inFlight.contains(p)) {
+                    bestDuplicate = p; // Endgame fallback
+                    continue;
+                }
+                if (best < 0 || availability[p] < availability[best]) {
+                    best = p;
+                    ties = 1;
+                } else if (availability[p] == availability[best] && random.nextInt(++ties) == 0) {
+                    best = p;
+                }
+            }
+            return best >= 0 ? best : bestDuplicate;
+        }
+
+        void transfer(double time) {
+            int n = peers.length;
+            double[][] offered = new double[n][n]; // [uploader][receiver] pieces this step
+            double[] incoming = new double[n];
+            for (SimPeer uploader : peers) {
+                List<Integer> targets = new ArrayList<>();
+                for (int id : uploader.unchoked) {
+                    if (interested(peers[id], uploader)) {
+                        targets.add(id);
+                    }
+                }
+                for (int id : targets) {
+                    offered[uploader.id][id] = uploader.upload * STEP / targets.size();
+                    incoming[id] += offered[uploader.id][id];
+                }
+            }
+            for (SimPeer uploader : peers) {
+                for (int r = 0; r < n; r++) {
+                    double amount = offered[uploader.id][r];
+                    SimPeer receiver = peers[r];
+                    if (amount > 0 && incoming[r] > receiver.download * STEP) {
+                        amount *= receiver.download * STEP / incoming[r]; // Receiver's link is the bottleneck
+                    }
+                    uploader.sent[r] *= RATE_DECAY;
+                    receiver.received[uploader.id] *= RATE_DECAY;
+                    if (amount > 0) {
+                        deliver(uploader, receiver, amount, time);
+                        uploader.sent[r] += amount * (1 - RATE_DECAY) / STEP;
+                        receiver.received[uploader.id] += amount * (1 - RATE_DECAY) / STEP;
+                    }
+                }
+            }
+        }
+
+        void deliver(SimPeer uploader, SimPeer receiver, double amount, double time) {
+            while (amount > 1e-12 && receiver.completedAt < 0) {
+                int piece = receiver.current[uploader.id];
+                if (piece < 0 || receiver.have.get(piece)) {
+                    piece = pickPiece(receiver, uploader);
+                    receiver.current[uploader.id] = piece;
+                    if (piece < 0) {
+                        return;
+                    }
+                }
+                double used = Math.min(amount, 1 - receiver.partial[piece]);
+                receiver.partial[piece] += used;
+                amount -= used;
+                if (receiver.partial[piece] >= 1 - 1e-9) {
+                    receiver.have.set(piece);
+                    availability[piece]++;
+                    receiver.current[uploader.id] = -1;
+                    if (receiver.have.cardinality() == pieces) {
+                        receiver.completedAt = time;
+                    }
+                }
+            }
+        }
+    }
+}
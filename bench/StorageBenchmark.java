@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * Block write and read throughput of every PieceStorage backend. One operation
+ * is a full pass over the file in BlockSize chunks: "write" stores every block
+ * (then calls complete(), which is the merge step for piece-files), "read"
+ * reads every block into the heap, and "transfer" streams every block to
+ * /dev/null with transferBlock, the zero-copy upload path. "multi-file" spreads
+ * the same bytes over MULTI_FILES files that do not line up with pieces, with
+ * fewer open files allowed than there are files.
+ *
+ *   java -cp out -Dbench.fileMB=64 -Dbench.block=16384 StorageBenchmark [filter]
+ *
+ * Files are created in a temporary directory (or -Dbench.dir) and deleted afterwards.
+ */
+public class StorageBenchmark {
+    private static final int PIECE_SIZE = 256 * 1024;
+    private static final int MULTI_FILES = 100;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        long fileSize = Long.getLong("bench.fileMB", 64) * 1024 * 1024;
+        int blockSize = Integer.getInteger("bench.block", 16384);
+        File dir = System.getProperty("bench.dir") != null
+                ? new File(System.getProperty("bench.dir"))
+                : Files.createTempDirectory("storage-bench").toFile();
+        dir.mkdirs();
+        Logger logger = new Logger(new File(dir, "bench.log").getPath());
+        logger.setConsoleEcho(false);
+        try {
+            for (String mode : new String[] {"single-file", "piece-files", "mmap", "multi-file"}) {
+                run(bench, mode, dir, logger, fileSize, blockSize);
+            }
+        } finally {
+            logger.close();
+            deleteAll(dir);
+        }
+    }
+
+    private static PieceStorage create(String mode, File dir, Logger logger, long fileSize, int totalPieces) throws IOException {
+        switch (mode) {
+            case "multi-file":
+                File list = new File(dir, "files.list");
+                try (PrintWriter out = new PrintWriter(list)) {
+                    long each = fileSize / MULTI_FILES;
+                    for (int i = 0; i < MULTI_FILES; i++) {
+                        out.println((i < MULTI_FILES - 1 ? each : fileSize - each * (MULTI_FILES - 1)) + " part_" + i + ".bin");
+                    }
+                }
+                return new MultiFileStorage(new File(dir, "files"), FileLayout.load(list), PIECE_SIZE, 16);
+            case "piece-files":
+                return new PieceFileStorage(dir.getPath(), "data.bin", PIECE_SIZE, totalPieces, logger, "bench");
+            case "mmap":
+                return new MappedFileStorage(new File(dir, "data.bin"), fileSize, PIECE_SIZE, 64L * 1024 * 1024, 16, true);
+            default:
+                return new SingleFileStorage(new File(dir, "data.bin"), fileSize, PIECE_SIZE);
+        }
+    }
+
+    private static void run(Bench bench, String mode, File dir, Logger logger, long fileSize, int blockSize) throws Exception {
+        String prefix = "storage." + mode + "." + blockSize + "b.";
+        if (!bench.enabled(prefix)) {
+            return;
+        }
+        int totalPieces = (int) ((fileSize + PIECE_SIZE - 1) / PIECE_SIZE);
+        PieceStorage storage = create(mode, dir, logger, fileSize, totalPieces);
+        storage.open(false);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        long blocks = fileSize / blockSize;
+
+        bench.measure(prefix + "write", 1, fileSize, () -> {
+            for (int piece = 0; piece < totalPieces; piece++) {
+                for (int offset = 0; offset < PIECE_SIZE; offset += blockSize) {
+                    block.clear();
+                    storage.writeBlock(piece, offset, block);
+                }
+            }
+            storage.complete();
+            return blocks;
+        });
+        bench.measure(prefix + "read", 1, fileSize, () -> {
+            long total = 0;
+            for (int piece = 0; piece < totalPieces; piece++) {
+                for (int offset = 0; offset < PIECE_SIZE; offset += blockSize) {
+                    total += storage.readBlock(piece, offset, blockSize)[0];
+                }
+            }
+            return total;
+        });
+        try (FileOutputStream devNull = new FileOutputStream("/dev/null")) {
+            FileChannel target = devNull.getChannel();
+            bench.measure(prefix + "transfer", 1, fileSize, () -> {
+                long total = 0;
+                for (int piece = 0; piece < totalPieces; piece++) {
+                    for (int offset = 0; offset < PIECE_SIZE; offset += blockSize) {
+                        long sent = 0;
+                        while (sent < blockSize) {
+                            sent += storage.transferBlock(piece, offset, blockSize, sent, target);
+                        }
+                        total += sent;
+                    }
+                }
+                return total;
+            });
+        } catch (IOException e) {
+            System.out.println(prefix + "transfer skipped: " + e.getMessage());
+        }
+        storage.close();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                deleteAll(file);
+            } else if (!file.getName().equals("bench.log")) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteAll(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
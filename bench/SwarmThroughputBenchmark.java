@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * End-to-end throughput between two in-process peers over loopback: a seeder
+ * and one leecher are started from generated Common.cfg / PeerInfo.cfg files
+ * and the time until the leecher has the complete file is reported as MB/s.
+ * The time includes connection setup and the first unchoke interval (1 s), so
+ * use a file large enough for that to be small in comparison.
+ *
+ * Peer reads its configuration from the working directory, so run this from an
+ * empty scratch directory. Extra arguments are appended to Common.cfg:
+ *   mkdir /tmp/swarm && cd /tmp/swarm
+ *   java -cp <project>/out SwarmThroughputBenchmark 256 "BlockSize 16384" "ConnectionMode blocking"
+ */
+public class SwarmThroughputBenchmark {
+    public static void main(String[] args) throws Exception {
+        int fileMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        long fileSize = (long) fileMB * 1024 * 1024;
+        if (new File("Common.cfg").exists() || new File("PeerInfo.cfg").exists()) {
+            System.err.println("Run from an empty directory: Common.cfg/PeerInfo.cfg would be overwritten.");
+            return;
+        }
+
+        writeConfig(fileSize, args);
+        File seedFile = new File("peer_9001/data.bin");
+        seedFile.getParentFile().mkdirs();
+        writeRandomFile(seedFile, fileSize);
+
+        Peer seeder = new Peer("9001");
+        Peer leecher = new Peer("9002");
+        long start = System.nanoTime();
+        seeder.start();
+        leecher.start();
+        while (!leecher.hasCompleteFile()) {
+            Thread.sleep(5);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long mismatch = Files.mismatch(seedFile.toPath(), new File("peer_9002/data.bin").toPath());
+        System.out.printf("swarm.loopback.%dMB  %.2f s  %.1f MB/s  %s%n", fileMB, seconds, fileMB / seconds,
+                mismatch == -1 ? "file verified" : "FILES DIFFER at byte " + mismatch);
+        System.exit(mismatch == -1 ? 0 : 1); // Peer threads are not daemons
+    }
+
+    private static void writeConfig(long fileSize, String[] args) throws IOException {
+        try (PrintWriter cfg = new PrintWriter(new FileWriter("Common.cfg"))) {
+            cfg.println("NumberOfPreferredNeighbors 1");
+            cfg.println("UnchokingInterval 1");
+            cfg.println("OptimisticUnchokingInterval 1");
+            cfg.println("FileName data.bin");
+            cfg.println("FileSize " + fileSize);
+            cfg.println("PieceSize 262144");
+            cfg.println("LogToConsole false");
+            cfg.println("MetricsInterval 0");
+            for (int i = 1; i < args.length; i++) {
+                cfg.println(args[i]);
+            }
+        }
+        try (PrintWriter peers = new PrintWriter(new FileWriter("PeerInfo.cfg"))) {
+            peers.println("9001 localhost " + freePort() + " 1");
+            peers.println("9002 localhost " + freePort() + " 0");
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(7).nextBytes(chunk);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+#!/bin/sh
+# Builds the peer, the benchmarks and the unit checks into out/ with every lint warning turned into an error.
+#
+#   ./build.sh                            compile the sources, bench/ and test/
+#   ./build.sh check                      compile, then run the unit checks in test/
+#   ./build.sh bench <Class> [args...]    compile, then run one benchmark from bench/
+#   ./build.sh clean                      remove out/
+set -e
+cd "$(dirname "$0")"
+OUT=out
+
+compile() {
+    rm -rf "$OUT"
+    mkdir -p "$OUT"
+    javac -encoding UTF-8 -Xlint:all -Werror -d "$OUT" *.java bench/*.java test/*.java
+}
+
+case "${1:-compile}" in
+    compile)
+        compile
+        ;;
+    check)
+        compile
+        java -cp "$OUT" Checks
+        ;;
+    bench)
+        [ -n "$2" ] || { echo "usage: $0 bench <Class> [args...]" >&2; exit 2; }
+        compile
+        shift
+        java -cp "$OUT" "$@"
+        ;;
+    clean)
+        rm -rf "$OUT"
+        ;;
+    *)
+        echo "usage: $0 [compile | check | bench <Class> [args...] | clean]" >&2
+        exit 2
+        ;;
+esac
@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+/**
+ * Bitfield with 70 pieces: a full word and a last word with only 6 valid bits,
+ * so the 58 spare bits must never count as pieces.
+ */
+final class BitfieldChecks {
+    static void run() {
+        Bitfield bitfield = new Bitfield(70);
+        Checks.check(bitfield.set(69), "first set of the last piece");
+        Checks.check(!bitfield.set(69), "second set of the same piece");
+        Checks.equal(1, bitfield.cardinality(), "count after setting one piece twice");
+
+        // Out-of-range indexes, e.g. from a bad HAVE, throw and leave the count alone
+        Checks.fails(IndexOutOfBoundsException.class, () -> bitfield.set(70), "set past the last piece");
+        Checks.fails(IndexOutOfBoundsException.class, () -> bitfield.set(127), "set of the last spare bit");
+        Checks.fails(IndexOutOfBoundsException.class, () -> bitfield.set(-1), "set of a negative index");
+        Checks.fails(IndexOutOfBoundsException.class, () -> bitfield.get(70), "get past the last piece");
+        Checks.equal(1, bitfield.cardinality(), "count after rejected sets");
+        Checks.equal(-1, bitfield.nextSetBit(70), "nextSetBit past the end");
+
+        // Spare bits set on the wire are dropped by load()
+        byte[] allOnes = new byte[9];
+        Arrays.fill(allOnes, (byte) 0xFF);
+        Bitfield loaded = new Bitfield(70);
+        loaded.load(allOnes);
+        Checks.equal(70, loaded.cardinality(), "count after loading a payload with spare bits set");
+        Checks.check(loaded.isComplete(), "complete after loading all ones");
+        Checks.equal((byte) 0xFC, loaded.toByteArray()[8], "spare bits of the last byte on the wire");
+        Checks.equal(0, new Bitfield(70).countNotIn(loaded), "empty set has nothing the full one lacks");
+
+        Bitfield all = new Bitfield(70);
+        all.setAll();
+        Checks.equal(70, all.cardinality(), "count after setAll");
+        Checks.equal(69, all.nextSetBit(69), "nextSetBit at the last piece");
+        Checks.check(!all.hasAnyNotIn(loaded), "setAll and a loaded full payload agree");
+
+        // Wire order: piece 0 is the high bit of the first byte
+        Bitfield sparse = new Bitfield(70);
+        for (int piece : new int[] {0, 7, 8, 63, 64}) {
+            sparse.set(piece);
+        }
+        byte[] wire = sparse.toByteArray();
+        Checks.equal(9, wire.length, "payload length for 70 pieces");
+        Checks.equal((byte) 0x81, wire[0], "pieces 0 and 7 on the wire");
+        Checks.equal((byte) 0x80, wire[1], "piece 8 on the wire");
+        Checks.equal((byte) 0x01, wire[7], "piece 63 on the wire");
+        Checks.equal((byte) 0x80, wire[8], "piece 64 on the wire");
+        Bitfield copy = new Bitfield(70);
+        copy.load(wire);
+        Checks.equal(5, copy.cardinality(), "count after a round trip");
+        Checks.check(!copy.hasAnyNotIn(sparse) && !sparse.hasAnyNotIn(copy), "round trip keeps the same pieces");
+        Checks.equal(65, all.countNotIn(sparse), "pieces the sparse set lacks");
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Objects;
+
+/**
+ * Minimal unit-check harness for the classes in test/, without needing a test
+ * framework: each *Checks class has a static run() that calls check(), equal()
+ * and fails(), and main() runs all of them. Every failed check is printed, and
+ * the exit status is 1 if there was one, so a script can gate on it.
+ *
+ *   ./build.sh check
+ */
+final class Checks {
+    interface Action {
+        void run() throws Exception;
+    }
+
+    private static String group;
+    private static int passed = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        group("Bitfield", BitfieldChecks::run);
+        group("ResumeJournal", ResumeJournalChecks::run);
+        group("FileLayout", FileLayoutChecks::run);
+        group("PiecePicker", PiecePickerChecks::run);
+        group("OutboundQueue", OutboundQueueChecks::run);
+        group("TokenBucket", TokenBucketChecks::run);
+        group("RateEstimator", RateEstimatorChecks::run);
+        group("SeedChoker", SeedChokerChecks::run);
+        group("PieceManifest", PieceManifestChecks::run);
+        group("MetricsRegistry", MetricsRegistryChecks::run);
+        group("NioFraming", NioFramingChecks::run);
+        group("ConnectionManager", ConnectionManagerChecks::run);
+        group("SwarmEngineRouting", SwarmEngineRoutingChecks::run);
+        System.out.println(passed + " checks passed, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    // Runs one class's checks; an unexpected exception fails the group and the next one still runs
+    private static void group(String name, Action checks) {
+        group = name;
+        try {
+            checks.run();
+        } catch (Throwable e) {
+            check(false, "unexpected " + e);
+        }
+    }
+
+    static void check(boolean condition, String what) {
+        if (condition) {
+            passed++;
+        } else {
+            failed++;
+            System.out.println("FAILED " + group + ": " + what);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        check(Objects.equals(expected, actual), what + ": expected " + expected + ", got " + actual);
+    }
+
+    static void fails(Class<? extends Throwable> expected, Action action, String what) {
+        try {
+            action.run();
+            check(false, what + ": no " + expected.getSimpleName());
+        } catch (Throwable e) {
+            check(expected.isInstance(e), what + ": threw " + e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ConnectionManager backoff with a Dialer that really connects over loopback:
+ * attempts to a closed port back off between half and all of a doubling delay
+ * capped at maxDelay, a handshake resets the backoff, a dropped connection is
+ * redialed, and stop() ends the attempts. Upper bounds allow a busy machine
+ * some slack, since it only ever makes an attempt late.
+ */
+final class ConnectionManagerChecks {
+    private static final long BASE_MILLIS = 50;
+    private static final long MAX_MILLIS = 400;
+    private static final long SLACK_MILLIS = 150;
+    private static final int FAILURES = 6;
+
+    static void run() throws Exception {
+        File log = File.createTempFile("connection-checks", ".log");
+        Logger logger = new Logger(log.getPath());
+        logger.setConsoleEcho(false);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        BlockingQueue<Long> attempts = new LinkedBlockingQueue<>();
+        AtomicReference<ConnectionManager> manager = new AtomicReference<>();
+        // Each attempt's start time is queued once it has its outcome, so the checks act between attempts
+        ConnectionManager.Dialer dialer = target -> {
+            long startedAt = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(target.hostName, target.portNumber), 1000);
+                manager.get().connected(target.ID);
+            } catch (IOException e) {
+                manager.get().failed(target.ID, String.valueOf(e.getMessage()));
+            }
+            attempts.add(startedAt);
+        };
+        manager.set(new ConnectionManager("1", dialer, scheduler, logger, BASE_MILLIS, MAX_MILLIS));
+        // Bound but not listening: refuses connections, and no dialing socket can take it as its own
+        // local port, which would make a connection to itself succeed
+        Socket placeholder = new Socket();
+        placeholder.setReuseAddress(true);
+        placeholder.bind(new InetSocketAddress("localhost", 0));
+        int port = placeholder.getLocalPort();
+        PeerConfiguration neighbor = new PeerConfiguration(2, "localhost", port, false);
+
+        try {
+            // Nothing listens yet: every attempt fails and the next one waits longer, up to maxDelay
+            manager.get().dialAll(Collections.singletonList(neighbor));
+            long previous = next(attempts);
+            for (int failures = 0; failures < FAILURES - 1; failures++) {
+                long at = next(attempts);
+                long ceiling = Math.min(MAX_MILLIS, BASE_MILLIS << failures);
+                long gap = (at - previous) / 1_000_000;
+                Checks.check(gap >= ceiling / 2 - 1 && gap <= ceiling + SLACK_MILLIS,
+                        "retry after " + (failures + 1) + " failures came after " + gap + " ms, expected " + ceiling / 2 + ".." + ceiling);
+                previous = at;
+            }
+
+            // The neighbor comes up: the next attempt connects and resets the backoff
+            placeholder.close();
+            try (ServerSocket server = new ServerSocket()) {
+                server.setReuseAddress(true);
+                server.bind(new InetSocketAddress("localhost", port));
+                long connectedAt = next(attempts);
+                long gap = (connectedAt - previous) / 1_000_000;
+                Checks.check(gap >= MAX_MILLIS / 2 - 1 && gap <= MAX_MILLIS + SLACK_MILLIS, "attempt once up came after " + gap + " ms of capped backoff");
+                Thread.sleep(100);
+                Checks.check(attempts.isEmpty(), "no attempts while connected");
+
+                // A dropped connection is redialed after the base delay, not the backoff it had reached
+                long droppedAt = System.nanoTime();
+                manager.get().disconnected(2);
+                long redialAt = next(attempts);
+                gap = (redialAt - droppedAt) / 1_000_000;
+                Checks.check(gap >= BASE_MILLIS / 2 - 1 && gap <= BASE_MILLIS + SLACK_MILLIS, "redial after a drop came after " + gap + " ms");
+
+                // Once stopped, a drop is not redialed
+                manager.get().stop();
+                manager.get().disconnected(2);
+                Checks.check(attempts.poll(MAX_MILLIS + SLACK_MILLIS, TimeUnit.MILLISECONDS) == null, "no attempts after stop()");
+            }
+        } finally {
+            placeholder.close();
+            scheduler.shutdownNow();
+            logger.close();
+            log.delete();
+        }
+    }
+
+    // Time of the next attempt; fails the check run if none comes within a few max delays
+    private static long next(BlockingQueue<Long> attempts) throws InterruptedException {
+        Long at = attempts.poll(5 * MAX_MILLIS, TimeUnit.MILLISECONDS);
+        if (at == null) {
+            throw new IllegalStateException("no connection attempt within " + 5 * MAX_MILLIS + " ms");
+        }
+        return at;
+    }
+}
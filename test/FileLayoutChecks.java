@@ -0,0 +1,76 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * FileLayout boundaries: positions on either side of each file start, empty
+ * files, sizes past 2 GB and rejected entries. MultiFileStorage then writes and
+ * reads a block that crosses from one file into the next.
+ */
+final class FileLayoutChecks {
+    static void run() throws IOException {
+        File dir = Files.createTempDirectory("layout-checks").toFile();
+        FileLayout layout = layout(dir, "# comment", "100 a.bin", "", "0 empty.bin", "50 sub/b.bin", "1 c.bin");
+        Checks.equal(4, layout.fileCount(), "entries without comments and blank lines");
+        Checks.equal(151L, layout.getTotalSize(), "total size");
+        Checks.equal(150L, layout.get(3).start, "start of the last file");
+        Checks.equal(0, layout.fileAt(0), "file at the first byte");
+        Checks.equal(0, layout.fileAt(99), "file at the last byte of the first file");
+        Checks.equal(2, layout.fileAt(100), "file after an empty one");
+        Checks.equal(2, layout.fileAt(149), "file at the last byte of the third file");
+        Checks.equal(3, layout.fileAt(150), "file at the last byte");
+
+        FileLayout large = layout(dir, "3000000000 big.bin", "10 small.bin");
+        Checks.equal(3000000010L, large.getTotalSize(), "total size past 2 GB");
+        Checks.equal(0, large.fileAt(2999999999L), "file at the last byte of a 3 GB file");
+        Checks.equal(1, large.fileAt(3000000000L), "file right after a 3 GB file");
+
+        Checks.fails(IllegalArgumentException.class, () -> layout(dir, "10 ../outside.bin"), "path leaving the directory");
+        Checks.fails(IllegalArgumentException.class, () -> layout(dir, "10 /etc/passwd"), "absolute path");
+        Checks.fails(IllegalArgumentException.class, () -> layout(dir, "-1 a.bin"), "negative size");
+        Checks.fails(IllegalArgumentException.class, () -> layout(dir, "10"), "missing path");
+        Checks.fails(IllegalArgumentException.class, () -> layout(dir, "# nothing"), "empty list");
+
+        // Piece 1 of 64 bytes covers 64..127: the last 36 bytes of a.bin and the first 28 of sub/b.bin
+        File root = new File(dir, "shared");
+        MultiFileStorage storage = new MultiFileStorage(root, layout, 64, 2);
+        storage.open(false);
+        byte[] block = new byte[64];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (i + 1);
+        }
+        storage.writeBlock(1, 0, ByteBuffer.wrap(block));
+        Checks.check(Arrays.equals(block, storage.readBlock(1, 0, 64)), "block read back across a file boundary");
+        storage.flush();
+        storage.close();
+        byte[] a = Files.readAllBytes(new File(root, "a.bin").toPath());
+        byte[] b = Files.readAllBytes(new File(root, "sub/b.bin").toPath());
+        Checks.equal(100, a.length, "preallocated length of the first file");
+        Checks.equal((byte) 1, a[64], "first byte of the block in the first file");
+        Checks.equal((byte) 36, a[99], "last byte of the first file");
+        Checks.equal((byte) 37, b[0], "first byte of the next file after the empty one");
+        Checks.equal((byte) 64, b[27], "last byte of the block");
+        Checks.equal((byte) 0, b[28], "byte after the block");
+
+        deleteRecursively(dir);
+    }
+
+    private static FileLayout layout(File dir, String... lines) throws IOException {
+        File list = new File(dir, "files.txt");
+        Files.write(list.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        return FileLayout.load(list);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Helpers for checks that talk to a running peer over loopback: a seeding
+ * swarm in a temporary directory, and a raw client that writes handshakes and
+ * frames byte by byte and reads back what the peer sends.
+ */
+final class Loopback {
+    static final int PIECE_SIZE = 16384;
+    static final int TIMEOUT_MILLIS = 5000;
+
+    // Common.cfg settings of a small swarm that rechokes every second and logs nothing to the console
+    static Properties swarmConfig(String swarmKey, String fileName, long fileSize) {
+        Properties common = new Properties();
+        common.setProperty("NumberOfPreferredNeighbors", "1");
+        common.setProperty("UnchokingInterval", "1");
+        common.setProperty("OptimisticUnchokingInterval", "1");
+        common.setProperty("FileName", fileName);
+        common.setProperty("FileSize", String.valueOf(fileSize));
+        common.setProperty("PieceSize", String.valueOf(PIECE_SIZE));
+        common.setProperty("SwarmKey", swarmKey);
+        common.setProperty("LogToConsole", "false");
+        common.setProperty("MetricsInterval", "0");
+        common.setProperty("ResumeCheckpointInterval", "0");
+        return common;
+    }
+
+    // Adds a swarm to the engine in which peer 1 seeds 'content'; peer 2 is listed but never listens
+    static Peer seed(SwarmEngine engine, File directory, Properties common, byte[] content) throws IOException {
+        File data = new File(directory, "peer_1/" + common.getProperty("FileName"));
+        data.getParentFile().mkdirs();
+        Files.write(data.toPath(), content);
+        List<PeerConfiguration> peers = Arrays.asList(
+                new PeerConfiguration(1, "localhost", engine.getPort(), true),
+                new PeerConfiguration(2, "localhost", unusedPort(), false));
+        return engine.addSwarm("1", directory, common, peers);
+    }
+
+    static byte[] randomContent(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    // The 32-byte handshake a peer of the given swarm sends, built here rather than by Peer
+    static byte[] handshake(String header, long swarmID, int peerID) {
+        ByteBuffer handshake = ByteBuffer.allocate(32);
+        handshake.put(header.getBytes(StandardCharsets.US_ASCII));
+        handshake.putLong(20, swarmID);
+        handshake.putInt(28, peerID);
+        return handshake.array();
+    }
+
+    static Socket connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    // Writes one byte at a time with a pause in between, so the reader sees many partial reads
+    static void writeSlowly(OutputStream out, byte[] bytes) throws IOException, InterruptedException {
+        for (byte b : bytes) {
+            out.write(b);
+            out.flush();
+            Thread.sleep(2);
+        }
+    }
+
+    static byte[] frame(P2PMessages type, byte[] payload) {
+        return ByteBuffer.allocate(5 + payload.length).putInt(1 + payload.length).put(type.getValue()).put(payload).array();
+    }
+
+    static byte[] readHandshake(DataInputStream in) throws IOException {
+        byte[] handshake = new byte[32];
+        in.readFully(handshake);
+        return handshake;
+    }
+
+    // Skips frames of other types until one of the given type arrives, and returns its payload
+    static byte[] readUntil(DataInputStream in, P2PMessages type) throws IOException {
+        while (true) {
+            int length = in.readInt();
+            P2PMessages received = P2PMessages.fromByte(in.readByte());
+            byte[] payload = new byte[length - 1];
+            in.readFully(payload);
+            if (received == type) {
+                return payload;
+            }
+        }
+    }
+
+    // True once the peer has closed the connection; false if it is still open after the timeout
+    static boolean closedByRemote(Socket socket) throws IOException {
+        try {
+            byte[] discard = new byte[4096];
+            while (socket.getInputStream().read(discard) != -1) {
+                // Frames sent before the close
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            return true; // Reset by the peer
+        }
+    }
+
+    static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static File tempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * MetricsRegistry publishing when a neighbor reconnects: the new connection's
+ * registry takes over the JMX name, and the old one's unregister leaves it.
+ */
+final class MetricsRegistryChecks {
+    static void run() throws Exception {
+        String objectName = "p2p:type=Neighbor,id=checks,neighbor=2";
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+
+        MetricsRegistry old = new MetricsRegistry(objectName);
+        old.counter("bytesDown").add(1);
+        old.register();
+        MetricsRegistry reconnected = new MetricsRegistry(objectName);
+        reconnected.counter("bytesDown").add(2);
+        reconnected.register();
+        old.unregister();
+        Checks.check(server.isRegistered(name), "MBean of the reconnected neighbor kept when the old connection closes");
+        Checks.equal(2L, server.getAttribute(name, "bytesDown"), "MBean shows the reconnected neighbor's counters");
+        reconnected.unregister();
+        Checks.check(!server.isRegistered(name), "MBean removed when the last connection closes");
+        reconnected.unregister();
+        Checks.check(!server.isRegistered(name), "a second unregister is harmless");
+    }
+}
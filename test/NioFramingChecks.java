@@ -0,0 +1,118 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * NIO framing against a seeding swarm over loopback: a handshake and frames
+ * that arrive a byte at a time, the handshake reply, and connections closed
+ * for a bad header, an unknown swarm, an unknown message type, or a length
+ * prefix that is zero, negative or above the frame limit. FrameReader, the
+ * blocking side, is checked over a socket pair the same way.
+ */
+final class NioFramingChecks {
+    private static final String HEADER = "P2PFILESHARINGPROJ";
+    private static final int FILE_SIZE = 5 * Loopback.PIECE_SIZE - 1000;
+
+    static void run() throws Exception {
+        File directory = Loopback.tempDirectory("nio-checks");
+        byte[] content = Loopback.randomContent(FILE_SIZE, 11);
+        Properties common = Loopback.swarmConfig("nio checks", "data.bin", FILE_SIZE);
+        long swarmID = Peer.swarmID("nio checks");
+        try (SwarmEngine engine = new SwarmEngine(0, new Properties())) {
+            Peer seeder = Loopback.seed(engine, directory, common, content);
+            int port = engine.getPort();
+
+            try (Socket socket = Loopback.connect(port)) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                Loopback.writeSlowly(out, Loopback.handshake(HEADER, swarmID, 2));
+                byte[] reply = Loopback.readHandshake(in);
+                Checks.equal(HEADER, new String(reply, 0, 18), "handshake reply header");
+                Checks.equal(swarmID, Peer.swarmOf(reply), "swarm ID in the handshake reply");
+                Checks.equal(1, ByteBuffer.wrap(reply, 28, 4).getInt(), "peer ID in the handshake reply");
+
+                byte[] bitfield = Loopback.readUntil(in, P2PMessages.BITFIELD);
+                Checks.equal(1, bitfield.length, "BITFIELD payload length for 5 pieces");
+                Checks.equal(0xF8, bitfield[0] & 0xFF, "seeder's bitfield has all 5 pieces and no spare bits");
+
+                // INTERESTED and a REQUEST for the short last piece, each written a byte at a time
+                Loopback.writeSlowly(out, Loopback.frame(P2PMessages.INTERESTED, new byte[0]));
+                Loopback.readUntil(in, P2PMessages.UNCHOKE);
+                Loopback.writeSlowly(out, Loopback.frame(P2PMessages.REQUEST, ByteBuffer.allocate(4).putInt(4).array()));
+                byte[] piece = Loopback.readUntil(in, P2PMessages.PIECE);
+                Checks.equal(4, ByteBuffer.wrap(piece).getInt(), "index of the PIECE received");
+                Checks.check(Arrays.equals(Arrays.copyOfRange(content, 4 * Loopback.PIECE_SIZE, FILE_SIZE), Arrays.copyOfRange(piece, 4, piece.length)),
+                        "PIECE body of " + (piece.length - 4) + " bytes matches the file");
+            }
+
+            Checks.check(closedAfter(port, Loopback.handshake("P2PFILESHARINGPRJ!", swarmID, 3), new byte[0]), "connection closed on a bad handshake header");
+            Checks.check(closedAfter(port, Loopback.handshake(HEADER, swarmID + 1, 3), new byte[0]), "connection closed on a handshake for an unknown swarm");
+            byte[] handshake = Loopback.handshake(HEADER, swarmID, 4);
+            int limit = seeder.getMaxFrameLength();
+            Checks.check(limit >= 13 + Loopback.PIECE_SIZE && limit < 1 << 20, "frame limit of " + limit + " bytes covers a PIECE");
+            Checks.check(closedAfter(port, handshake, lengthPrefix(Integer.MAX_VALUE)), "connection closed on a 2^31 - 1 byte length prefix");
+            Checks.check(closedAfter(port, handshake, lengthPrefix(limit + 1)), "connection closed on a length prefix one above the limit");
+            Checks.check(closedAfter(port, handshake, lengthPrefix(0)), "connection closed on a zero length prefix");
+            Checks.check(closedAfter(port, handshake, lengthPrefix(-1)), "connection closed on a negative length prefix");
+            Checks.check(closedAfter(port, handshake, new byte[] {0, 0, 0, 1, 99}), "connection closed on an unknown message type");
+            Checks.check(engine.getSwarms().contains(seeder), "swarm still served after the bad connections");
+        } finally {
+            Loopback.delete(directory);
+        }
+
+        frameReaderChecks();
+    }
+
+    // Sends a handshake and then 'bytes', and reports whether the peer closed the connection
+    private static boolean closedAfter(int port, byte[] handshake, byte[] bytes) throws IOException {
+        try (Socket socket = Loopback.connect(port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(handshake);
+            out.write(bytes);
+            out.flush();
+            return Loopback.closedByRemote(socket);
+        }
+    }
+
+    private static byte[] lengthPrefix(int length) {
+        return ByteBuffer.allocate(4).putInt(length).array();
+    }
+
+    // FrameReader reassembles frames written a byte at a time and refuses a length above its limit
+    private static void frameReaderChecks() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             Socket writer = Loopback.connect(server.getLocalPort());
+             Socket accepted = server.accept()) {
+            accepted.setSoTimeout(Loopback.TIMEOUT_MILLIS);
+            FrameReader reader = new FrameReader(accepted, new BufferPool(false), 1024);
+            byte[] have = Loopback.frame(P2PMessages.HAVE, ByteBuffer.allocate(4).putInt(7).array());
+            byte[] bitfield = Loopback.frame(P2PMessages.BITFIELD, new byte[1000]);
+            Thread slow = new Thread(() -> {
+                try {
+                    Loopback.writeSlowly(writer.getOutputStream(), have);
+                    Loopback.writeSlowly(writer.getOutputStream(), Arrays.copyOf(bitfield, 40));
+                    writer.getOutputStream().write(bitfield, 40, bitfield.length - 40);
+                    writer.getOutputStream().write(lengthPrefix(1025));
+                } catch (IOException | InterruptedException e) {
+                    // The checks below fail on the missing frames
+                }
+            });
+            slow.start();
+            MessageView first = reader.next();
+            Checks.equal(P2PMessages.HAVE, first.getType(), "type of a frame written a byte at a time");
+            Checks.equal(7, first.getInt(0), "HAVE index after partial reads");
+            MessageView second = reader.next();
+            Checks.equal(P2PMessages.BITFIELD, second.getType(), "type of a frame split across writes");
+            Checks.equal(1000, second.payloadLength(), "payload length of a frame split across writes");
+            Checks.fails(IOException.class, reader::next, "length prefix above the reader's limit");
+            slow.join();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutboundQueue lanes: control frames go out before HAVEs and HAVEs before
+ * PIECEs, a PIECE already on the wire is finished before anything else, and
+ * CANCEL only drops PIECEs that have not started.
+ */
+final class OutboundQueueChecks {
+    private static final int PIECE_SIZE = 256;
+
+    static void run() throws IOException {
+        File data = Files.createTempFile("queue-checks", ".bin").toFile();
+        Files.write(data.toPath(), new byte[4 * PIECE_SIZE]);
+        SingleFileStorage storage = new SingleFileStorage(data, 4 * PIECE_SIZE, PIECE_SIZE);
+        storage.open(true);
+        BufferPool pool = new BufferPool(false);
+
+        OutboundQueue queue = new OutboundQueue(pool, null, null);
+        queue.addPiece(pieceHeader(0, 0, 100), storage, 0, 0, 100);
+        queue.add(P2PMessages.HAVE, 1);
+        queue.add(P2PMessages.INTERESTED);
+        queue.add(P2PMessages.HAVE, 2);
+        queue.add(P2PMessages.REQUEST, 3, 0, 16384);
+        Checks.check(queue.hasPendingControl(), "control frames pending before the write");
+        Channel channel = new Channel();
+        Checks.check(queue.writeTo(channel), "queue drained");
+        Checks.equal("[INTERESTED, REQUEST 3, HAVE 1, HAVE 2, PIECE 0]", channel.frames().toString(), "lane order");
+        Checks.check(!queue.hasPending(), "nothing pending after the queue drained");
+
+        // The socket fills in the middle of a PIECE: it is finished before a CHOKE queued meanwhile
+        queue.addPiece(pieceHeader(1, 0, 200), storage, 1, 0, 200);
+        queue.addPiece(pieceHeader(2, 0, 200), storage, 2, 0, 200);
+        channel = new Channel();
+        channel.capacity = 50;
+        Checks.check(!queue.writeTo(channel), "write stops when the socket is full");
+        Checks.equal(0L, queue.throttleNanos(), "a full socket is not the upload limit");
+        queue.add(P2PMessages.CHOKE);
+        Checks.equal(0L, queue.cancelPiece(1, 0), "bytes dropped by cancelling the PIECE on the wire");
+        Checks.equal(2, queue.queuedPieces(), "queued PIECEs, counting the one on the wire");
+        Checks.equal(200L, queue.cancelPiece(2, 0), "bytes dropped by cancelling a queued PIECE");
+        Checks.equal(0L, queue.cancelPiece(2, 0), "bytes dropped by cancelling it again");
+        channel.capacity = Integer.MAX_VALUE;
+        Checks.check(queue.writeTo(channel), "queue drained after the socket emptied");
+        Checks.equal("[PIECE 1, CHOKE]", channel.frames().toString(), "partial PIECE finished first");
+
+        queue.close();
+        Checks.check(!queue.add(P2PMessages.UNCHOKE), "append after close");
+        Checks.check(!queue.hasPending(), "nothing pending after close");
+        queue.release();
+        storage.close();
+        data.delete();
+    }
+
+    // Block-mode PIECE header: length, type, index, offset
+    private static ByteBuffer pieceHeader(int pieceIndex, int offset, int length) {
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(9 + length).put(P2PMessages.PIECE.getValue()).putInt(pieceIndex).putInt(offset);
+        return header.flip();
+    }
+
+    // Collects what is written; accepts at most 'capacity' more bytes, like a socket buffer
+    private static final class Channel implements WritableByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int capacity = Integer.MAX_VALUE;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int n = Math.min(source.remaining(), capacity);
+            byte[] chunk = new byte[n];
+            source.get(chunk);
+            bytes.write(chunk, 0, n);
+            capacity -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        // Type and first payload int of every frame written, e.g. "HAVE 1"
+        List<String> frames() {
+            List<String> frames = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.remaining() >= 5) {
+                int length = buffer.getInt();
+                int end = buffer.position() + length;
+                P2PMessages type = P2PMessages.fromByte(buffer.get());
+                frames.add(length >= 5 ? type + " " + buffer.getInt() : type.toString());
+                buffer.position(end);
+            }
+            return frames;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * PieceManifest hashed in parallel over a file with a short last piece, sent
+ * as a MANIFEST payload and rebuilt, then used to verify pieces.
+ */
+final class PieceManifestChecks {
+    private static final int PIECE_SIZE = 1000;
+    private static final int PIECES = 11;
+    private static final long FILE_SIZE = PIECES * PIECE_SIZE - 333L;
+
+    static void run() throws IOException {
+        byte[] content = new byte[(int) FILE_SIZE];
+        new Random(7).nextBytes(content);
+        File data = Files.createTempFile("manifest-checks", ".bin").toFile();
+        Files.write(data.toPath(), content);
+        SingleFileStorage storage = new SingleFileStorage(data, FILE_SIZE, PIECE_SIZE);
+        storage.open(true);
+        BlockTracker blocks = new BlockTracker(FILE_SIZE, PIECE_SIZE, 0, PIECES);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        PieceManifest manifest = PieceManifest.compute(storage, blocks, PIECES, pool);
+        pool.shutdown();
+        storage.close();
+        data.delete();
+
+        byte[] payload = manifest.toBytes();
+        Checks.equal(PIECES * PieceManifest.DIGEST_LENGTH, payload.length, "MANIFEST payload length");
+        PieceManifest received = PieceManifest.fromBytes(payload, PIECES);
+        Checks.check(received != null && received.sameAs(manifest), "manifest rebuilt from its payload");
+        payload[0] ^= 1;
+        Checks.check(received.sameAs(manifest), "rebuilt manifest does not share the payload array");
+        Checks.check(PieceManifest.fromBytes(payload, PIECES + 1) == null, "payload for another piece count");
+
+        // Past 67M pieces the digests no longer fit in one frame; int math would wrap around
+        Checks.equal(PIECES * PieceManifest.DIGEST_LENGTH, PieceManifest.payloadLength(PIECES), "payload length for a small file");
+        Checks.fails(IllegalArgumentException.class, () -> PieceManifest.payloadLength(1 << 26), "payload length for 2^26 pieces");
+        Checks.fails(IllegalArgumentException.class, () -> PieceManifest.payloadLength(Integer.MAX_VALUE), "payload length for 2^31 - 1 pieces");
+        Checks.check(PieceManifest.fromBytes(new byte[0], 1 << 27) == null, "empty payload for 2^27 pieces, which wraps to 0 in int math");
+
+        for (int i = 0; i < PIECES; i++) {
+            int from = i * PIECE_SIZE;
+            byte[] piece = Arrays.copyOfRange(content, from, (int) Math.min(FILE_SIZE, from + PIECE_SIZE));
+            Checks.check(received.verify(i, piece), "piece " + i + " of " + piece.length + " bytes verifies");
+        }
+        byte[] last = Arrays.copyOfRange(content, (PIECES - 1) * PIECE_SIZE, (int) FILE_SIZE);
+        Checks.check(!received.verify(PIECES - 2, last), "a piece does not verify at another index");
+        Checks.check(!received.verify(PIECES - 1, Arrays.copyOf(last, PIECE_SIZE)), "a short piece padded to full length does not verify");
+        last[last.length - 1] ^= 1;
+        Checks.check(!received.verify(PIECES - 1, last), "a piece with one flipped bit does not verify");
+    }
+}
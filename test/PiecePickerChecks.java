@@ -0,0 +1,65 @@
+/**
+ * PiecePicker buckets as neighbors come, announce pieces and leave: rarest
+ * first only ever picks from the lowest bucket that has a candidate, never a
+ * piece nobody has, and never one we already have.
+ */
+final class PiecePickerChecks {
+    static void run() {
+        Bitfield have = bitfield(8, 0);
+        PiecePicker picker = new PiecePicker(PiecePicker.Policy.RAREST_FIRST, 8, have);
+        Checks.equal(7, picker.remainingPieces(), "remaining pieces with piece 0 on disk");
+        Checks.equal(-1, picker.pick(i -> true), "pick without neighbors");
+
+        Bitfield a = bitfield(8, 0, 1, 2, 3, 4, 5, 6, 7);
+        Bitfield b = bitfield(8, 1, 2, 3);
+        Bitfield c = bitfield(8, 1, 2);
+        picker.addPeer(a);
+        picker.addPeer(b);
+        picker.addPeer(c);
+        Checks.equal(3, picker.getAvailability(1), "availability of a piece all three have");
+        Checks.equal(2, picker.getAvailability(3), "availability of a piece two have");
+        for (int round = 0; round < 20; round++) {
+            int picked = picker.pick(i -> true);
+            Checks.check(picked >= 4, "rarest pick " + picked + " is one of 4..7");
+        }
+        Checks.equal(3, picker.pick(i -> i <= 3), "rarest pick among 0..3");
+        Checks.equal(-1, picker.pick(i -> i == 0), "pick of a piece we have");
+
+        // A HAVE moves piece 5 up a bucket
+        picker.increment(5);
+        for (int round = 0; round < 20; round++) {
+            int picked = picker.pick(i -> i >= 3);
+            Checks.check(picked == 4 || picked == 6 || picked == 7, "rarest pick " + picked + " after a HAVE for piece 5");
+        }
+
+        // Once the only holder leaves, pieces 4, 6 and 7 are in bucket 0 and never picked
+        picker.removePeer(a);
+        Checks.equal(0, picker.getAvailability(4), "availability after the only holder left");
+        Checks.equal(-1, picker.pick(i -> i == 4), "pick of a piece nobody has");
+        for (int round = 0; round < 20; round++) {
+            int picked = picker.pick(i -> true);
+            Checks.check(picked == 3 || picked == 5, "rarest pick " + picked + " after a neighbor left");
+        }
+
+        picker.pieceCompleted(3);
+        picker.pieceCompleted(3);
+        Checks.equal(6, picker.remainingPieces(), "remaining pieces after completing one twice");
+        Checks.equal(5, picker.pick(i -> true), "rarest pick after completing piece 3");
+        Checks.equal(1, picker.pickAny(i -> true), "pickAny takes the lowest needed piece");
+        Checks.check(picker.rarestPieces().get(4), "rarestPieces includes a piece nobody has");
+
+        PiecePicker sequential = new PiecePicker(PiecePicker.Policy.fromConfig("sequential"), 8, have);
+        sequential.addPeer(bitfield(8, 6, 7));
+        Checks.equal(6, sequential.pick(i -> i >= 6), "sequential pick among the neighbor's pieces");
+        Checks.equal(2, sequential.pick(i -> i >= 2), "sequential pick ignores availability");
+        Checks.equal(PiecePicker.Policy.RANDOM_FIRST, PiecePicker.Policy.fromConfig(" random-first "), "policy from config");
+    }
+
+    private static Bitfield bitfield(int size, int... pieces) {
+        Bitfield bitfield = new Bitfield(size);
+        for (int piece : pieces) {
+            bitfield.set(piece);
+        }
+        return bitfield;
+    }
+}
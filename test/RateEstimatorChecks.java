@@ -0,0 +1,37 @@
+/**
+ * RateEstimator decay, side-effect-free reads and convergence to the rate of
+ * a steady stream. Timed checks allow a wide margin for a busy machine.
+ */
+final class RateEstimatorChecks {
+    static void run() throws InterruptedException {
+        RateEstimator idle = new RateEstimator(1000);
+        Checks.equal(0.0, idle.bytesPerSecond(), "rate before anything was recorded");
+        Checks.check(!Double.isNaN(new RateEstimator(0).bytesPerSecond()), "rate with a zero time constant");
+
+        // A burst counts as bytes / timeConstant and then decays as e^(-age / timeConstant)
+        RateEstimator burst = new RateEstimator(1000);
+        burst.record(1_000_000);
+        double first = burst.bytesPerSecond();
+        double second = burst.bytesPerSecond();
+        Checks.check(first > 950_000 && first <= 1_000_000, "rate right after a 1 MB burst: " + first);
+        Checks.check(second <= first && second > 950_000, "a second read neither adds nor resets: " + second);
+        Thread.sleep(500);
+        double later = burst.bytesPerSecond();
+        Checks.check(later > 400_000 && later < 620_000, "rate half a time constant later (e^-0.5 = 0.61): " + later);
+        burst.record(0);
+        Checks.check(burst.bytesPerSecond() <= later, "recording nothing does not raise the rate");
+
+        // After five time constants of a steady stream the estimate follows its rate
+        RateEstimator steady = new RateEstimator(200);
+        long start = System.nanoTime();
+        long total = 0;
+        while (System.nanoTime() - start < 1_000_000_000L) {
+            steady.record(10_000);
+            total += 10_000;
+            Thread.sleep(10);
+        }
+        double actual = total * 1e9 / (System.nanoTime() - start);
+        double estimate = steady.bytesPerSecond();
+        Checks.check(Math.abs(estimate - actual) < 0.25 * actual, "estimate " + (long) estimate + " B/s for a stream of " + (long) actual + " B/s");
+    }
+}
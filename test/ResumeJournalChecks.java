@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * ResumeJournal in a scratch directory: torn and corrupt journal records,
+ * a checkpoint replacing the journal, and checkpoints that must be ignored.
+ */
+final class ResumeJournalChecks {
+    private static final int PIECE_SIZE = 1024;
+    private static final int PIECES = 10;
+    private static final long FILE_SIZE = PIECES * PIECE_SIZE - 100L; // Short last piece
+
+    static void run() throws IOException {
+        File dir = Files.createTempDirectory("journal-checks").toFile();
+        File journalFile = new File(dir, "data.bin.journal");
+        File checkpointFile = new File(dir, "data.bin.resume");
+
+        ResumeJournal.State first = load(dir);
+        Checks.equal(0, first.trusted.cardinality(), "trusted pieces on a first start");
+        Checks.check(first.unconfirmed.isEmpty(), "no journaled pieces on a first start");
+        Checks.check(first.manifest == null, "no manifest on a first start");
+
+        // Two whole records, then a crash in the middle of the third
+        ResumeJournal journal = new ResumeJournal(dir, "data.bin", FILE_SIZE, PIECE_SIZE, PIECES);
+        journal.load();
+        journal.append(3);
+        journal.append(5);
+        journal.close();
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(ByteBuffer.allocate(8).putInt(7).array(), 0, 5);
+        }
+        ResumeJournal.State torn = load(dir);
+        Checks.equal("{3, 5}", torn.unconfirmed.toString(), "journaled pieces before a torn record");
+
+        // A record that fails its check ends the journal, even if whole records follow
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(16);
+            file.seek(16);
+            file.writeInt(8);
+            file.writeInt(8);
+            file.writeInt(9);
+            file.writeInt(9 ^ 0x5A5A5A5A);
+        }
+        Checks.equal("{3, 5}", load(dir).unconfirmed.toString(), "journaled pieces before a corrupt record");
+
+        // A checkpoint covers the journaled pieces and empties the journal
+        SingleFileStorage storage = new SingleFileStorage(new File(dir, "data.bin"), FILE_SIZE, PIECE_SIZE);
+        storage.open(false);
+        byte[] digests = new byte[PIECES * PieceManifest.DIGEST_LENGTH];
+        digests[digests.length - 1] = 42;
+        PieceManifest manifest = PieceManifest.fromBytes(digests, PIECES);
+        Bitfield bitfield = new Bitfield(PIECES);
+        journal = new ResumeJournal(dir, "data.bin", FILE_SIZE, PIECE_SIZE, PIECES);
+        journal.load();
+        for (int piece : new int[] {3, 5, 9}) {
+            bitfield.set(piece);
+            journal.append(piece);
+        }
+        journal.checkpoint(bitfield, manifest, storage);
+        journal.close();
+        storage.close();
+        Checks.equal(0L, journalFile.length(), "journal length after a checkpoint");
+        ResumeJournal.State resumed = load(dir);
+        Checks.equal(3, resumed.trusted.cardinality(), "trusted pieces after a checkpoint");
+        Checks.check(resumed.trusted.get(9), "short last piece is trusted");
+        Checks.check(resumed.unconfirmed.isEmpty(), "no journaled pieces after a checkpoint");
+        Checks.check(resumed.manifest != null && resumed.manifest.sameAs(manifest), "manifest kept in the checkpoint");
+
+        // A checkpoint for another piece size, or one that fails its CRC, trusts nothing
+        ResumeJournal other = new ResumeJournal(dir, "data.bin", FILE_SIZE, PIECE_SIZE * 2, (PIECES + 1) / 2);
+        ResumeJournal.State mismatched = other.load();
+        other.close();
+        Checks.equal(0, mismatched.trusted.cardinality(), "trusted pieces for another piece size");
+        Checks.check(mismatched.manifest == null, "no manifest for another piece size");
+        try (RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw")) {
+            file.seek(30);
+            file.write(file.read() ^ 1);
+        }
+        ResumeJournal.State corrupt = load(dir);
+        Checks.equal(0, corrupt.trusted.cardinality(), "trusted pieces from a corrupt checkpoint");
+        Checks.check(corrupt.manifest == null, "no manifest from a corrupt checkpoint");
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    // Loads the state like a restarted peer and closes the journal again
+    private static ResumeJournal.State load(File dir) throws IOException {
+        ResumeJournal journal = new ResumeJournal(dir, "data.bin", FILE_SIZE, PIECE_SIZE, PIECES);
+        ResumeJournal.State state = journal.load();
+        journal.close();
+        return state;
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SeedChoker rotation: who gets a slot first, which holder keeps one, and that
+ * slots rotate through every waiting neighbor without anyone holding one for
+ * more than rotationRounds rechokes in a row.
+ */
+final class SeedChokerChecks {
+    static void run() {
+        // Waiting neighbors: fewest pieces first, then most of the rarest pieces missing
+        SeedChoker choker = new SeedChoker(3);
+        List<SeedChoker.Candidate> ranked = Arrays.asList(
+                new SeedChoker.Candidate(1, 0, 50, 0),
+                new SeedChoker.Candidate(2, 0, 10, 1),
+                new SeedChoker.Candidate(3, 0, 10, 4),
+                new SeedChoker.Candidate(4, 0, 30, 9));
+        Checks.equal(Arrays.asList(3, 2), choker.select(ranked, 2), "first rechoke by pieces held, then rare pieces missing");
+
+        // With someone waiting, only the holder taking the most upload keeps its slot
+        List<SeedChoker.Candidate> rates = Arrays.asList(
+                new SeedChoker.Candidate(1, 0, 50, 0),
+                new SeedChoker.Candidate(2, 500, 10, 1),
+                new SeedChoker.Candidate(3, 100, 10, 4),
+                new SeedChoker.Candidate(4, 0, 30, 9));
+        List<Integer> second = choker.select(rates, 2);
+        Checks.equal(2, second.get(0), "holder kept by upload rate");
+        Checks.equal(4, second.get(1), "freed slot goes to the neediest waiting neighbor");
+
+        // Equal neighbors, 2 slots for 5: slots rotate and nobody starves or holds on
+        SeedChoker rotating = new SeedChoker(3);
+        List<SeedChoker.Candidate> equal = new ArrayList<>();
+        for (int id = 1; id <= 5; id++) {
+            equal.add(new SeedChoker.Candidate(id, 1000, 20, 2));
+        }
+        Map<Integer, Integer> inARow = new HashMap<>();
+        Map<Integer, Integer> longestWait = new HashMap<>();
+        Map<Integer, Integer> waited = new HashMap<>();
+        int maxInARow = 0;
+        List<Integer> previous = new ArrayList<>();
+        boolean alwaysRotates = true;
+        boolean neverMoreThanSlots = true;
+        for (int round = 0; round < 30; round++) {
+            List<Integer> chosen = rotating.select(equal, 2);
+            neverMoreThanSlots &= chosen.size() == 2 && new HashSet<>(chosen).size() == 2;
+            alwaysRotates &= round == 0 || !previous.containsAll(chosen);
+            for (int id = 1; id <= 5; id++) {
+                if (chosen.contains(id)) {
+                    int held = inARow.merge(id, 1, Integer::sum);
+                    maxInARow = Math.max(maxInARow, held);
+                    waited.put(id, 0);
+                } else {
+                    inARow.put(id, 0);
+                    longestWait.merge(id, waited.merge(id, 1, Integer::sum), Math::max);
+                }
+            }
+            previous = chosen;
+        }
+        Checks.check(neverMoreThanSlots, "two distinct neighbors unchoked every round");
+        Checks.check(alwaysRotates, "a slot changes hands every round while someone waits");
+        Checks.check(maxInARow <= 3, "longest hold of " + maxInARow + " rechokes with rotationRounds 3");
+        for (int id = 1; id <= 5; id++) {
+            int wait = longestWait.getOrDefault(id, 0);
+            Checks.check(wait <= 5, "neighbor " + id + " waited at most one rotation, waited " + wait);
+        }
+
+        // NumberOfPreferredNeighbors 0 leaves no slots, before and after neighbors held some
+        SeedChoker none = new SeedChoker(3);
+        Checks.equal(0, none.select(equal, 0).size(), "no neighbors unchoked without slots");
+        none.select(equal, 2);
+        Checks.equal(0, none.select(equal, 0).size(), "holders lose their slots when there are none");
+
+        // With a slot for everyone, nobody is choked
+        Checks.equal(3, new SeedChoker(3).select(equal.subList(0, 3), 4).size(), "all neighbors unchoked when slots suffice");
+    }
+}
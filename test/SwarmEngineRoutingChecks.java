@@ -0,0 +1,87 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SwarmEngine routing of accepted connections by the swarm ID in handshake
+ * bytes 20..27: two swarms behind one port each answer their own handshakes,
+ * an unknown, missing or removed swarm ID is closed, and a second engine
+ * downloads both files through the shared port.
+ */
+final class SwarmEngineRoutingChecks {
+    private static final String HEADER = "P2PFILESHARINGPROJ";
+    private static final int SMALL_SIZE = 3 * Loopback.PIECE_SIZE;
+    private static final int LARGE_SIZE = 10 * Loopback.PIECE_SIZE - 77;
+
+    static void run() throws Exception {
+        File directory = Loopback.tempDirectory("routing-checks");
+        byte[] small = Loopback.randomContent(SMALL_SIZE, 21);
+        byte[] large = Loopback.randomContent(LARGE_SIZE, 22);
+        Properties smallCommon = Loopback.swarmConfig("routing small", "small.bin", SMALL_SIZE);
+        Properties largeCommon = Loopback.swarmConfig("routing large", "large.bin", LARGE_SIZE);
+        long smallID = Peer.swarmID("routing small");
+        long largeID = Peer.swarmID("routing large");
+        try (SwarmEngine seeds = new SwarmEngine(0, new Properties());
+             SwarmEngine leeches = new SwarmEngine(0, new Properties())) {
+            Peer smallSeed = Loopback.seed(seeds, new File(directory, "seed/small"), smallCommon, small);
+            Loopback.seed(seeds, new File(directory, "seed/large"), largeCommon, large);
+            int port = seeds.getPort();
+
+            // The bitfield's length tells the two swarms apart: 3 pieces fit one byte, 10 need two
+            Checks.equal(smallID, handshakeReply(port, smallID, 3, 1), "swarm ID answered for the first swarm");
+            Checks.equal(largeID, handshakeReply(port, largeID, 3, 2), "swarm ID answered for the second swarm");
+            Checks.check(closedAfterHandshake(port, largeID ^ smallID), "connection closed for a swarm the engine does not run");
+            Checks.check(closedAfterHandshake(port, 0), "connection closed for a handshake without a swarm ID, with two swarms");
+
+            // Peer 2 of each swarm dials peer 1 through the seeding engine's one port
+            Peer smallLeech = leeches.addSwarm("2", new File(directory, "leech/small"), smallCommon, peers(port, leeches.getPort()));
+            Peer largeLeech = leeches.addSwarm("2", new File(directory, "leech/large"), largeCommon, peers(port, leeches.getPort()));
+            smallLeech.downloadCompletion().get(60, TimeUnit.SECONDS);
+            largeLeech.downloadCompletion().get(60, TimeUnit.SECONDS);
+            Checks.check(Arrays.equals(small, Files.readAllBytes(new File(directory, "leech/small/peer_2/small.bin").toPath())), "first swarm's file downloaded through the shared port");
+            Checks.check(Arrays.equals(large, Files.readAllBytes(new File(directory, "leech/large/peer_2/large.bin").toPath())), "second swarm's file downloaded through the shared port");
+
+            // A removed swarm is no longer routed; the other one still is
+            seeds.removeSwarm(smallSeed);
+            Checks.check(closedAfterHandshake(port, smallID), "connection closed for a removed swarm");
+            Checks.equal(largeID, handshakeReply(port, largeID, 3, 2), "swarm ID answered for the remaining swarm");
+        } finally {
+            Loopback.delete(directory);
+        }
+    }
+
+    private static List<PeerConfiguration> peers(int seedPort, int leechPort) {
+        return Arrays.asList(
+                new PeerConfiguration(1, "localhost", seedPort, true),
+                new PeerConfiguration(2, "localhost", leechPort, false));
+    }
+
+    // Handshakes as peerID with the given swarm ID and returns the swarm ID of the reply
+    private static long handshakeReply(int port, long swarmID, int peerID, int bitfieldLength) throws IOException {
+        try (Socket socket = Loopback.connect(port)) {
+            socket.getOutputStream().write(Loopback.handshake(HEADER, swarmID, peerID));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] reply = Loopback.readHandshake(in);
+            Checks.equal(1, ByteBuffer.wrap(reply, 28, 4).getInt(), "peer ID in the reply for swarm " + Long.toHexString(swarmID));
+            Checks.equal(bitfieldLength, Loopback.readUntil(in, P2PMessages.BITFIELD).length, "BITFIELD length from swarm " + Long.toHexString(swarmID));
+            return Peer.swarmOf(reply);
+        }
+    }
+
+    private static boolean closedAfterHandshake(int port, long swarmID) throws IOException {
+        try (Socket socket = Loopback.connect(port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(Loopback.handshake(HEADER, swarmID, 3));
+            out.flush();
+            return Loopback.closedByRemote(socket);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenBucket waits, alone and under a parent, and the pace of a sender that
+ * honors them. Timed checks allow a wide margin, since a busy machine only
+ * ever makes the sender slower.
+ */
+final class TokenBucketChecks {
+    static void run() throws InterruptedException {
+        TokenBucket unlimited = new TokenBucket(0, null);
+        Checks.check(!unlimited.isLimited(), "a zero rate is unlimited");
+        Checks.equal(0L, unlimited.reserve(1L << 40), "wait of an unlimited bucket");
+        Checks.check(new TokenBucket(0, new TokenBucket(1000, null)).isLimited(), "limited through its parent");
+
+        // A full bucket holds one second; the debt past it is paid off by waiting
+        TokenBucket bucket = new TokenBucket(1_000_000, null);
+        Checks.equal(0L, bucket.reserve(1_000_000), "wait for the first second's worth");
+        long wait = bucket.reserve(500_000);
+        Checks.check(wait > 300_000_000L && wait <= 500_000_000L, "wait of " + wait + " ns for half a second in debt");
+
+        // The slower of child and parent decides the wait
+        TokenBucket parent = new TokenBucket(1_000_000, null);
+        TokenBucket child = new TokenBucket(100_000, parent);
+        wait = child.reserve(150_000);
+        Checks.check(wait > 300_000_000L && wait <= 500_000_000L, "wait of " + wait + " ns set by the child's cap");
+        TokenBucket sibling = new TokenBucket(10_000_000, parent);
+        wait = sibling.reserve(1_000_000);
+        Checks.check(wait > 50_000_000L && wait <= 150_000_000L, "wait of " + wait + " ns set by the parent's cap");
+
+        // After the first second's burst, 2 MB at 4 MB/s take about half a second
+        TokenBucket paced = new TokenBucket(4_000_000, null);
+        long start = System.nanoTime();
+        for (int sent = 0; sent < 6_000_000; sent += 100_000) {
+            TimeUnit.NANOSECONDS.sleep(paced.reserve(100_000));
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        Checks.check(elapsedMillis >= 400 && elapsedMillis < 2000, "6 MB at 4 MB/s took " + elapsedMillis + " ms");
+    }
+}